@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -38,12 +39,26 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import com.ericsson.eif.tfs.oslc.exception.UnauthorizedException;
+import com.ericsson.eif.tfs.oslc.factories.AsyncUpdateQueue;
+import com.ericsson.eif.tfs.oslc.factories.BatchUpdate;
+import com.ericsson.eif.tfs.oslc.factories.ChangeRequestCache;
+import com.ericsson.eif.tfs.oslc.factories.TFSChangeRequestFactory;
+import com.ericsson.eif.tfs.oslc.factories.TFSWorkItemFactory;
+import com.ericsson.eif.tfs.oslc.factories.WorkItemHydrator;
+import com.ericsson.eif.tfs.oslc.factories.WorkItemLocks;
 import com.ericsson.eif.tfs.oslc.mapping.AttributesMapper;
+import com.ericsson.eif.tfs.oslc.mapping.HistoryIndex;
+import com.ericsson.eif.tfs.oslc.mapping.MappingFileWatcher;
+import com.ericsson.eif.tfs.oslc.mapping.MappingSnapshot;
 import com.ericsson.eif.tfs.oslc.mapping.ProductMapper;
 import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
 import com.ericsson.eif.tfs.oslc.resources.TFSChangeRequest;
+import com.ericsson.eif.tfs.oslc.serialization.StreamingCollection;
 import com.ericsson.eif.tfs.oslc.servlet.ServiceProviderCatalogSingleton;
 import com.ericsson.eif.tfs.oslc.servlet.ServletListener;
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
+import com.ericsson.eif.tfs.oslc.utils.TfsUserLookup;
+import com.ericsson.eif.tfs.oslc.utils.TrLinkIndex;
 import com.microsoft.tfs.core.TFSTeamProjectCollection;
 import com.microsoft.tfs.core.clients.workitem.WorkItem;
 import com.microsoft.tfs.core.clients.workitem.WorkItemClient;
@@ -82,6 +97,35 @@ public class TFSAdapterManager {
     private static String productMappingFile;
     
     private static String mhweb_related_cr_url;
+    
+    private static int hydrationBatchSize = WorkItemHydrator.DEFAULT_BATCH_SIZE;
+    private static int hydrationParallelism = WorkItemHydrator.DEFAULT_PARALLELISM;
+    private static int pageSize = OslcPaging.DEFAULT_PAGE_SIZE;
+    private static int maxPageSize = OslcPaging.DEFAULT_MAX_PAGE_SIZE;
+    private static boolean streamingCollections = false;
+    private static int streamingWindowSize = StreamingCollection.DEFAULT_WINDOW_SIZE;
+    private static int streamingMaxPageSize = StreamingCollection.DEFAULT_MAX_PAGE_SIZE;
+    private static int changeRequestCacheSize = ChangeRequestCache.DEFAULT_SIZE;
+    private static int changeRequestCacheTtl = ChangeRequestCache.DEFAULT_TTL;
+    private static int mappingParallelism = Runtime.getRuntime().availableProcessors();
+    private static int userCacheSize = TfsUserLookup.DEFAULT_CACHE_SIZE;
+    private static int userCacheTtl = TfsUserLookup.DEFAULT_CACHE_TTL;
+    private static int userCacheNegativeTtl = TfsUserLookup.DEFAULT_CACHE_NEGATIVE_TTL;
+    private static int historyIndexSize = HistoryIndex.DEFAULT_SIZE;
+    private static int mappingWatchDelay = MappingFileWatcher.DEFAULT_DELAY;
+    private static boolean historySingleCommit = false;
+    private static int saveRetries = TFSWorkItemFactory.DEFAULT_SAVE_RETRIES;
+    private static int saveRetryDelay = TFSWorkItemFactory.DEFAULT_SAVE_RETRY_DELAY;
+    private static int batchParallelism = BatchUpdate.DEFAULT_PARALLELISM;
+    private static int batchMaxSize = BatchUpdate.DEFAULT_MAX_SIZE;
+    private static File asyncJournal = null;
+    private static AsyncUpdateQueue.Fsync asyncFsync = AsyncUpdateQueue.Fsync.ALWAYS;
+    private static int asyncFsyncInterval = AsyncUpdateQueue.DEFAULT_FSYNC_INTERVAL;
+    private static int asyncParallelism = AsyncUpdateQueue.DEFAULT_PARALLELISM;
+    private static int asyncMaxPending = AsyncUpdateQueue.DEFAULT_MAX_PENDING;
+    private static int lockStripes = WorkItemLocks.DEFAULT_STRIPES;
+    private static int lockTimeout = WorkItemLocks.DEFAULT_TIMEOUT;
+    private static int trIndexReconcileInterval = TrLinkIndex.DEFAULT_RECONCILE_INTERVAL;
 
     private static Logger logger = LogManager.getLogger(TFSAdapterManager.class.getName());
 
@@ -211,6 +255,17 @@ public class TFSAdapterManager {
 		// the tfs mapper will load field names
 		TFSMapper.getInstance().load();
 		
+		// Use a snapshot of the mapping files if configured, see
+		// MappingSnapshot
+		String mappingSnapshot = properties.getProperty("tfs_mapping_snapshot");
+		if (mappingSnapshot != null && !mappingSnapshot.trim().isEmpty()) {
+		    File snapshotFile = new File(mappingSnapshot.trim());
+		    if (!snapshotFile.isAbsolute()) {
+		        snapshotFile = new File(adapterServletHome, mappingSnapshot.trim());
+		    }
+		    MappingSnapshot.open(snapshotFile);
+		}
+
 		// get the attributes mapping file - required - and load it:
 		attributesMappingFile = properties.getProperty("tfs_adapter_mapping_file");
 		if (attributesMappingFile == null) {
@@ -231,6 +286,7 @@ public class TFSAdapterManager {
             logAndExit("Products mapping missing - exiting");
         }
         ProductMapper.getInstance().load();
+        MappingSnapshot.saveIfChanged();
 
 		// Configure TFS native library:
 		String tfsNativeDir = properties
@@ -257,6 +313,87 @@ public class TFSAdapterManager {
             mhweb_related_cr_url += "/";
         }
         
+        hydrationBatchSize = getIntProperty(properties,
+                "tfs_hydration_batch_size", WorkItemHydrator.DEFAULT_BATCH_SIZE);
+        hydrationParallelism = getIntProperty(properties,
+                "tfs_hydration_parallelism", WorkItemHydrator.DEFAULT_PARALLELISM);
+        pageSize = getIntProperty(properties, "tfs_page_size",
+                OslcPaging.DEFAULT_PAGE_SIZE);
+        maxPageSize = Math.max(pageSize, getIntProperty(properties,
+                "tfs_max_page_size", OslcPaging.DEFAULT_MAX_PAGE_SIZE));
+        streamingCollections = Boolean.parseBoolean(properties.getProperty(
+                "tfs_streaming_collections", "false").trim());
+        streamingWindowSize = getIntProperty(properties,
+                "tfs_streaming_window_size", StreamingCollection.DEFAULT_WINDOW_SIZE);
+        streamingMaxPageSize = Math.max(maxPageSize, getIntProperty(properties,
+                "tfs_streaming_max_page_size", StreamingCollection.DEFAULT_MAX_PAGE_SIZE));
+        changeRequestCacheSize = getIntProperty(properties,
+                "tfs_ecr_cache_size", ChangeRequestCache.DEFAULT_SIZE, 0);
+        changeRequestCacheTtl = getIntProperty(properties,
+                "tfs_ecr_cache_ttl", ChangeRequestCache.DEFAULT_TTL, 0);
+        mappingParallelism = getIntProperty(properties,
+                "tfs_mapping_parallelism", Runtime.getRuntime().availableProcessors());
+        userCacheSize = getIntProperty(properties,
+                "tfs_user_cache_size", TfsUserLookup.DEFAULT_CACHE_SIZE, 0);
+        userCacheTtl = getIntProperty(properties,
+                "tfs_user_cache_ttl", TfsUserLookup.DEFAULT_CACHE_TTL, 0);
+        userCacheNegativeTtl = getIntProperty(properties,
+                "tfs_user_cache_negative_ttl", TfsUserLookup.DEFAULT_CACHE_NEGATIVE_TTL, 0);
+        historyIndexSize = getIntProperty(properties,
+                "tfs_history_index_size", HistoryIndex.DEFAULT_SIZE, 0);
+        mappingWatchDelay = getIntProperty(properties,
+                "tfs_mapping_watch_delay", MappingFileWatcher.DEFAULT_DELAY, 0);
+        String historyCommit = properties.getProperty("tfs_history_commit",
+                "multiple").trim();
+        if (historyCommit.equalsIgnoreCase("multiple")) {
+            historySingleCommit = false;
+        } else if (historyCommit.equalsIgnoreCase("single")) {
+            historySingleCommit = true;
+        } else {
+            logger.warn("Invalid value for tfs_history_commit: "
+                    + historyCommit + ", using multiple");
+            historySingleCommit = false;
+        }
+        saveRetries = getIntProperty(properties, "tfs_save_retries",
+                TFSWorkItemFactory.DEFAULT_SAVE_RETRIES, 0);
+        saveRetryDelay = getIntProperty(properties, "tfs_save_retry_delay",
+                TFSWorkItemFactory.DEFAULT_SAVE_RETRY_DELAY, 0);
+        batchParallelism = getIntProperty(properties, "tfs_batch_parallelism",
+                BatchUpdate.DEFAULT_PARALLELISM);
+        batchMaxSize = getIntProperty(properties, "tfs_batch_max_size",
+                BatchUpdate.DEFAULT_MAX_SIZE);
+        if (Boolean.parseBoolean(properties.getProperty("tfs_async_updates",
+                "false").trim())) {
+            String journal = properties.getProperty("tfs_async_journal",
+                    "updates.journal").trim();
+            asyncJournal = new File(journal);
+            if (!asyncJournal.isAbsolute()) {
+                asyncJournal = new File(adapterServletHome, journal);
+            }
+        }
+        String fsync = properties.getProperty("tfs_async_fsync", "always")
+                .trim();
+        try {
+            asyncFsync = AsyncUpdateQueue.Fsync.valueOf(fsync.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid value for tfs_async_fsync: " + fsync
+                    + ", using always");
+            asyncFsync = AsyncUpdateQueue.Fsync.ALWAYS;
+        }
+        asyncFsyncInterval = getIntProperty(properties,
+                "tfs_async_fsync_interval", AsyncUpdateQueue.DEFAULT_FSYNC_INTERVAL);
+        asyncParallelism = getIntProperty(properties, "tfs_async_parallelism",
+                AsyncUpdateQueue.DEFAULT_PARALLELISM);
+        asyncMaxPending = getIntProperty(properties, "tfs_async_max_pending",
+                AsyncUpdateQueue.DEFAULT_MAX_PENDING);
+        lockStripes = getIntProperty(properties, "tfs_lock_stripes",
+                WorkItemLocks.DEFAULT_STRIPES);
+        lockTimeout = getIntProperty(properties, "tfs_lock_timeout",
+                WorkItemLocks.DEFAULT_TIMEOUT, 0);
+        trIndexReconcileInterval = getIntProperty(properties,
+                "tfs_tr_index_reconcile_interval",
+                TrLinkIndex.DEFAULT_RECONCILE_INTERVAL, 0);
+        
 		for (Object key : properties.keySet()) {
 	        Object value = properties.get(key);
 			if (value instanceof String) {
@@ -285,6 +422,38 @@ public class TFSAdapterManager {
             throw new RuntimeException(e);
         }
 
+        // Reload the mapping files when changed
+        if (mappingWatchDelay > 0) {
+            MappingFileWatcher.start(Arrays.asList(
+                    AttributesMapper.getInstance(),
+                    ProductMapper.getInstance()), mappingWatchDelay,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            TFSChangeRequestFactory.invalidateCache();
+                            TfsUserLookup.invalidateCache();
+                        }
+                    });
+        }
+
+        // Look up the Bug of a TR locally
+        if (trIndexReconcileInterval > 0) {
+            TrLinkIndex.start(trIndexReconcileInterval);
+        }
+
+        // Queue updates to apply them in the background, applying the ones
+        // pending since the last stop
+        if (asyncJournal != null) {
+            try {
+                AsyncUpdateQueue.start(asyncJournal, asyncFsync,
+                        asyncFsyncInterval, asyncParallelism, asyncMaxPending);
+            } catch (IOException e) {
+                // Fatal - the pending updates would be lost
+                logger.error("Failed to open " + asyncJournal, e);
+                throw new RuntimeException(e);
+            }
+        }
+
 		logger.info("Initialize of TFS adapter done.");
 	}
     
@@ -296,6 +465,30 @@ public class TFSAdapterManager {
         return workItemId ;
     }
     
+    private static int getIntProperty(Properties properties, String key,
+            int defaultValue) {
+        return getIntProperty(properties, key, defaultValue, 1);
+    }
+    
+    private static int getIntProperty(Properties properties, String key,
+            int defaultValue, int min) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue >= min) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        logger.warn("Invalid value for property " + key + ": " + value
+                + " - using default " + defaultValue);
+        return defaultValue;
+    }
+    
     public static String getTfsServerUrl() {
         return tfsServerUrl;
     }
@@ -315,6 +508,13 @@ public class TFSAdapterManager {
 	{
 		// Shutdown connections to data backbone etc...
 		// Start of user code contextDestroyed
+		TFSWorkItemFactory.shutdown();
+		TFSChangeRequestFactory.shutdown();
+		BatchUpdate.shutdown();
+		AsyncUpdateQueue.shutdown();
+		WorkItemLocks.shutdown();
+		TrLinkIndex.shutdown();
+		MappingFileWatcher.shutdown();
 		// End of user code
 	}
 
@@ -468,5 +668,92 @@ public class TFSAdapterManager {
     public static String getProductMappingFile() {
         return productMappingFile;
     }
+    
+    public static int getHydrationBatchSize() {
+        return hydrationBatchSize;
+    }
+    
+    public static int getHydrationParallelism() {
+        return hydrationParallelism;
+    }
+    
+    public static int getPageSize() {
+        return pageSize;
+    }
+    
+    public static int getMaxPageSize() {
+        return maxPageSize;
+    }
+    
+    public static boolean isStreamingCollections() {
+        return streamingCollections;
+    }
+    
+    public static int getStreamingWindowSize() {
+        return streamingWindowSize;
+    }
+    
+    public static int getStreamingMaxPageSize() {
+        return streamingMaxPageSize;
+    }
+    
+    public static int getChangeRequestCacheSize() {
+        return changeRequestCacheSize;
+    }
+    
+    public static int getChangeRequestCacheTtl() {
+        return changeRequestCacheTtl;
+    }
+    
+    public static int getMappingParallelism() {
+        return mappingParallelism;
+    }
+    
+    public static int getUserCacheSize() {
+        return userCacheSize;
+    }
+    
+    public static int getUserCacheTtl() {
+        return userCacheTtl;
+    }
+    
+    public static int getUserCacheNegativeTtl() {
+        return userCacheNegativeTtl;
+    }
+    
+    public static int getHistoryIndexSize() {
+        return historyIndexSize;
+    }
+    
+    public static int getMappingWatchDelay() {
+        return mappingWatchDelay;
+    }
+    
+    public static boolean isHistorySingleCommit() {
+        return historySingleCommit;
+    }
+    
+    public static int getSaveRetries() {
+        return saveRetries;
+    }
+    
+    public static int getSaveRetryDelay() {
+        return saveRetryDelay;
+    }
+    
+    public static int getBatchParallelism() {
+        return batchParallelism;
+    }
+    
+    public static int getBatchMaxSize() {
+        return batchMaxSize;
+    }
+    
+    public static int getLockStripes() {
+        return lockStripes;
+    }
+    
+    public static int getLockTimeout() {
+        return lockTimeout;
+    }
 }
-
@@ -0,0 +1,415 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONObject;
+import org.eclipse.lyo.oslc4j.provider.json4j.JsonHelper;
+
+import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Queue of change request updates applied in the background, so that a PUT
+ * can be acknowledged before the workitem is saved in TFS. An update is
+ * appended to an {@link UpdateJournal} before it is acknowledged, and the
+ * updates still pending when the adapter stopped are applied again at the
+ * next start.
+ * <p>
+ * Updates are applied by a pool of threads, as by a PUT - see
+ * {@link BatchUpdate#update(String, EnterpriseChangeRequest, javax.servlet.http.HttpServletRequest)}.
+ * Updates of the same workitem are applied one at a time, in the order they
+ * were queued. An update with an If-Match is applied only if it matches the
+ * ETag of the workitem when the update is applied, else it fails with 412.
+ * The outcome of the most recent updates is kept for
+ * {@link #getStatus(long)}. The ids of the updates are not reused after a
+ * restart.
+ */
+public class AsyncUpdateQueue {
+
+    static Logger logger = Logger.getLogger(AsyncUpdateQueue.class);
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    public static final int DEFAULT_FSYNC_INTERVAL = 1000;
+    private static final int COMPLETED_SIZE = 10000;
+
+    /**
+     * When queued updates are forced to disk
+     */
+    public enum Fsync {
+        /** before the update is acknowledged */
+        ALWAYS,
+        /** every fsync interval, by a background thread */
+        INTERVAL,
+        /** when the OS decides */
+        NEVER
+    }
+
+    /**
+     * The state of a queued update. Status and report are those of
+     * {@link BatchUpdate.Result}, set when the update is done.
+     */
+    public static class Status {
+        private final long id;
+        private final String workItemId;
+        private final BatchUpdate.Result result;
+
+        Status(long id, String workItemId, BatchUpdate.Result result) {
+            this.id = id;
+            this.workItemId = workItemId;
+            this.result = result;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getWorkItemId() {
+            return workItemId;
+        }
+
+        public boolean isDone() {
+            return result != null;
+        }
+
+        public int getStatus() {
+            return result != null ? result.getStatus() : 0;
+        }
+
+        public String getReport() {
+            return result != null ? result.getReport() : null;
+        }
+
+        public int getRevision() {
+            return result != null ? result.getRevision() : -1;
+        }
+    }
+
+    /**
+     * An update queued, the change request is read from the payload when
+     * queued before a restart
+     */
+    private static class Update {
+        private final long id;
+        private final String workItemId;
+        private final String payload;
+        private final String ifMatch;
+        private final EnterpriseChangeRequest ecr;
+
+        Update(long id, String workItemId, String payload, String ifMatch,
+                EnterpriseChangeRequest ecr) {
+            this.id = id;
+            this.workItemId = workItemId;
+            this.payload = payload;
+            this.ifMatch = ifMatch;
+            this.ecr = ecr;
+        }
+    }
+
+    private static AsyncUpdateQueue instance;
+
+    private final UpdateJournal journal;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService flusher;
+    private final int maxPending;
+    private long nextId = 1;
+    // Queued updates per workitem, the first is being applied
+    private final Map<String, Deque<Update>> queues = new HashMap<>();
+    private final Map<Long, Update> pending = new HashMap<>();
+    private final Cache<Long, Status> completed = CacheBuilder.newBuilder()
+            .maximumSize(COMPLETED_SIZE).build();
+
+    private AsyncUpdateQueue(File file, Fsync fsync, int fsyncInterval,
+            int parallelism, int maxPending) {
+        this.journal = new UpdateJournal(file, fsync);
+        this.maxPending = maxPending;
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("tfs-async-%d").build());
+        if (fsync == Fsync.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("tfs-async-fsync").build());
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    journal.flush();
+                }
+            }, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Starts the queue with the journal file, applying the updates pending in
+     * the journal.
+     * 
+     * @param file
+     * @param fsync
+     * @param fsyncInterval
+     *            milliseconds, for {@link Fsync#INTERVAL}
+     * @param parallelism
+     * @param maxPending
+     * @throws IOException
+     *             if the journal cannot be read or written
+     */
+    public static synchronized void start(File file, Fsync fsync,
+            int fsyncInterval, int parallelism, int maxPending)
+            throws IOException {
+        shutdown();
+        AsyncUpdateQueue queue = new AsyncUpdateQueue(file, fsync,
+                fsyncInterval, parallelism, maxPending);
+        try {
+            queue.replay();
+        } catch (IOException e) {
+            queue.stop();
+            throw e;
+        }
+        instance = queue;
+    }
+
+    /**
+     * @return the queue, or null if updates are applied synchronously
+     */
+    public static synchronized AsyncUpdateQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Stops the queue - called when the adapter is shut down. Updates not
+     * yet done are applied at the next start.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    /**
+     * Queues an update of the workitem, returning once it is in the journal
+     * 
+     * @param workItemId
+     * @param ecr
+     * @param ifMatch
+     *            the If-Match of the update, checked when it is applied, or
+     *            null
+     * @return the id of the update, see {@link #getStatus(long)}
+     * @throws IOException
+     *             if the update could not be written to the journal
+     * @throws IllegalStateException
+     *             if the max number of pending updates is reached
+     */
+    public long submit(String workItemId, EnterpriseChangeRequest ecr,
+            String ifMatch) throws IOException {
+        String payload;
+        try {
+            payload = JsonHelper.createJSON(null, null, null,
+                    new Object[] { ecr }, null).toString();
+        } catch (Exception e) {
+            throw new IOException("Failed to serialize change request for "
+                    + workItemId, e);
+        }
+        synchronized (this) {
+            if (pending.size() >= maxPending) {
+                throw new IllegalStateException("Too many pending updates: "
+                        + pending.size());
+            }
+            long id = nextId++;
+            journal.appendQueued(id, workItemId, payload, ifMatch);
+            enqueue(new Update(id, workItemId, payload, ifMatch, ecr));
+            return id;
+        }
+    }
+
+    /**
+     * @param id
+     * @return the state of the update, or null if not known
+     */
+    public Status getStatus(long id) {
+        synchronized (this) {
+            Update update = pending.get(id);
+            if (update != null) {
+                return new Status(id, update.workItemId, null);
+            }
+        }
+        return completed.getIfPresent(id);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void replay() throws IOException {
+        Map<Long, UpdateJournal.Record> queued = new LinkedHashMap<>();
+        for (UpdateJournal.Record record : journal.read()) {
+            if (record.isQueued()) {
+                nextId = Math.max(nextId, record.id + 1);
+                queued.put(record.id, record);
+            } else if (record.isDone()) {
+                nextId = Math.max(nextId, record.id + 1);
+                queued.remove(record.id);
+            } else {
+                nextId = Math.max(nextId, record.id);
+            }
+        }
+        journal.open(queued.values(), nextId);
+        if (!queued.isEmpty()) {
+            logger.info("Applying " + queued.size()
+                    + " updates pending in the journal");
+        }
+        synchronized (this) {
+            for (UpdateJournal.Record record : queued.values()) {
+                enqueue(new Update(record.id, record.workItemId,
+                        record.payload, record.ifMatch, null));
+            }
+        }
+    }
+
+    // Called holding the lock
+    private void enqueue(Update update) {
+        pending.put(update.id, update);
+        Deque<Update> queue = queues.get(update.workItemId);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(update.workItemId, queue);
+        }
+        queue.add(update);
+        if (queue.size() == 1) {
+            schedule(update);
+        }
+    }
+
+    private void schedule(final Update update) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(update);
+            }
+        });
+    }
+
+    private void apply(Update update) {
+        boolean done = false;
+        try {
+            if (Thread.currentThread().isInterrupted()) {
+                // Stopped - left pending, to be applied at the next start
+                return;
+            }
+            BatchUpdate.Result result = null;
+            EnterpriseChangeRequest ecr = update.ecr;
+            if (ecr == null) {
+                try {
+                    ecr = (EnterpriseChangeRequest) JsonHelper.fromJSON(
+                            new JSONObject(update.payload),
+                            EnterpriseChangeRequest.class)[0];
+                } catch (Exception e) {
+                    logger.error("Unreadable change request in journal for "
+                            + "update " + update.id, e);
+                    result = new BatchUpdate.Result(update.workItemId, 400,
+                            "Unreadable change request: " + e.getMessage(), -1);
+                }
+            }
+            if (result == null) {
+                result = BatchUpdate.update(update.workItemId, ecr,
+                        update.ifMatch, null);
+            }
+
+            try {
+                journal.appendDone(update.id, result.getStatus(),
+                        result.getReport());
+            } catch (IOException e) {
+                // The update is applied again at the next start
+                logger.error("Failed to journal completion of update "
+                        + update.id, e);
+            }
+            completed.put(update.id, new Status(update.id,
+                    update.workItemId, result));
+            done = true;
+        } finally {
+            if (!done && !Thread.currentThread().isInterrupted()) {
+                logger.error("Update " + update.id + " of workitem: "
+                        + update.workItemId
+                        + " not completed, left pending for the next start");
+            }
+            next(update, done);
+        }
+    }
+
+    // Removes the update from the queue of its workitem and schedules the
+    // next update of the workitem. An update not done is left in the journal.
+    private synchronized void next(Update update, boolean done) {
+        if (done) {
+            pending.remove(update.id);
+        }
+        Deque<Update> queue = queues.get(update.workItemId);
+        queue.poll();
+        if (queue.isEmpty()) {
+            queues.remove(update.workItemId);
+        } else if (!executor.isShutdown()) {
+            schedule(queue.peek());
+        }
+        if (pending.isEmpty()) {
+            try {
+                journal.truncate(nextId);
+            } catch (IOException e) {
+                logger.error("Failed to truncate the journal", e);
+            }
+        }
+    }
+
+    private void stop() {
+        executor.shutdownNow();
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,247 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+import com.ericsson.eif.tfs.oslc.exception.UpdateWorkItemException;
+import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Updates a batch of workitems, each from its own change request, as if each
+ * was updated with a PUT of its own. The workitems are updated in parallel,
+ * bounded by tfs_batch_parallelism. Change requests for the same workitem
+ * are applied one at a time, in the order given.
+ */
+public class BatchUpdate {
+
+    static Logger logger = Logger.getLogger(BatchUpdate.class);
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private static ExecutorService executor;
+
+    /**
+     * The outcome of updating one workitem of the batch, with the HTTP status
+     * a PUT of the change request alone would have returned.
+     */
+    public static class Result {
+        private final String workItemId;
+        private final int status;
+        private final String report;
+        private final int revision;
+
+        Result(String workItemId, int status, String report, int revision) {
+            this.workItemId = workItemId;
+            this.status = status;
+            this.report = report;
+            this.revision = revision;
+        }
+
+        public String getWorkItemId() {
+            return workItemId;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * The {@link ValidationMessages} report, or the error message if the
+         * update failed
+         */
+        public String getReport() {
+            return report;
+        }
+
+        /**
+         * The revision of the workitem after the update, -1 if not known
+         */
+        public int getRevision() {
+            return revision;
+        }
+    }
+
+    /**
+     * Updates the workitems from the change requests, workItemIds[i] from
+     * changeRequests[i].
+     * 
+     * @param workItemIds
+     * @param changeRequests
+     * @param httpServletRequest
+     * @return the results, in the order of the change requests
+     */
+    public static List<Result> update(List<String> workItemIds,
+            List<EnterpriseChangeRequest> changeRequests,
+            final HttpServletRequest httpServletRequest) {
+
+        final Result[] results = new Result[workItemIds.size()];
+
+        // Index of the change requests per workitem, in order
+        Map<String, List<Integer>> byWorkItem = new LinkedHashMap<>();
+        for (int i = 0; i < workItemIds.size(); i++) {
+            String workItemId = workItemIds.get(i);
+            if (workItemId == null) {
+                results[i] = new Result(null, 400,
+                        "No workitem id for change request", -1);
+                continue;
+            }
+            List<Integer> indexes = byWorkItem.get(workItemId);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                byWorkItem.put(workItemId, indexes);
+            }
+            indexes.add(i);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService executor = getExecutor();
+        for (final Map.Entry<String, List<Integer>> entry : byWorkItem
+                .entrySet()) {
+            final List<EnterpriseChangeRequest> ecrs = new ArrayList<>();
+            for (int i : entry.getValue()) {
+                ecrs.add(changeRequests.get(i));
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<Integer> indexes = entry.getValue();
+                    for (int j = 0; j < indexes.size(); j++) {
+                        results[indexes.get(j)] = update(entry.getKey(),
+                                ecrs.get(j), null, httpServletRequest);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while updating workitems", e);
+        } catch (ExecutionException e) {
+            // update(String, ...) reports its failures in the result
+            throw new RuntimeException(e.getCause());
+        }
+
+        List<Result> resultList = new ArrayList<>(results.length);
+        for (Result result : results) {
+            resultList.add(result);
+        }
+        return resultList;
+    }
+
+    /**
+     * Updates the workitem from the change request, catching the errors a
+     * PUT would have returned as a status
+     * 
+     * @param workItemId
+     * @param ecr
+     * @param ifMatch
+     *            the If-Match of the change request, or <b>null</b>
+     * @param httpServletRequest
+     * @return
+     */
+    static Result update(String workItemId, EnterpriseChangeRequest ecr,
+            String ifMatch, HttpServletRequest httpServletRequest) {
+        try {
+            ValidationMessages messages = TFSChangeRequestFactory
+                    .updateChangeRequest(ecr, workItemId, ifMatch,
+                            httpServletRequest);
+            return new Result(workItemId, 200, messages.createReport(),
+                    messages.getRevision());
+        } catch (UpdateWorkItemException e) {
+            return new Result(workItemId, getStatus(e), e.getMessage(), -1);
+        } catch (NumberFormatException e) {
+            return new Result(workItemId, 400, "Invalid workitem id: "
+                    + workItemId, -1);
+        } catch (RuntimeException e) {
+            logger.error("Failed to update workitem: " + workItemId, e);
+            return new Result(workItemId, 500, e.getMessage(), -1);
+        }
+    }
+
+    /**
+     * @param e
+     * @return the HTTP status of a failed update
+     */
+    public static int getStatus(UpdateWorkItemException e) {
+        switch (e.getStatusCode()) {
+        case 403:
+        case 404:
+        case 412:
+            return e.getStatusCode();
+        default:
+            return 409;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    TFSAdapterManager.getBatchParallelism(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("tfs-batch-%d").build());
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the threads used for batch updates - called when the adapter is
+     * shut down.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of the change requests mapped from single workitems, keyed by
+ * workitem id and holding the revision it was mapped from. A cached change
+ * request is only used if the workitem is still at that revision, which the
+ * caller checks with a query for just the revision. With a ttl, the check
+ * can be skipped for that long after the change request was mapped or last
+ * checked, see {@link #getIfFresh(int)}. The number of cached change requests is bounded, the least
+ * recently used are evicted first.
+ * <p>
+ * Cached change requests are shared between requests and must not be
+ * modified.
+ */
+public class ChangeRequestCache {
+
+    static Logger logger = Logger.getLogger(ChangeRequestCache.class);
+
+    public static final int DEFAULT_SIZE = 1000;
+    public static final int DEFAULT_TTL = 0;
+
+    /**
+     * A change request and the revision of the workitem it was mapped from
+     */
+    public static class Entry {
+        private final EnterpriseChangeRequest changeRequest;
+        private final int revision;
+        private volatile long checked;
+
+        public Entry(EnterpriseChangeRequest changeRequest, int revision) {
+            this.changeRequest = changeRequest;
+            this.revision = revision;
+            this.checked = System.currentTimeMillis();
+        }
+
+        public EnterpriseChangeRequest getChangeRequest() {
+            return changeRequest;
+        }
+
+        public int getRevision() {
+            return revision;
+        }
+    }
+
+    private final Cache<Integer, Entry> cache;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param size
+     *            the max number of change requests to keep
+     * @param ttl
+     *            seconds to trust a cached change request without checking
+     *            the revision
+     */
+    public ChangeRequestCache(int size, int ttl) {
+        cache = CacheBuilder.newBuilder().maximumSize(size).build();
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttl);
+    }
+
+    /**
+     * Gets the cached change request for the workitem if it was mapped or
+     * checked within the ttl, so that it can be used without checking the
+     * revision
+     * 
+     * @param workItemId
+     * @return the entry, or <b>null</b>
+     */
+    public Entry getIfFresh(int workItemId) {
+        Entry entry = cache.getIfPresent(workItemId);
+        if (entry != null
+                && System.currentTimeMillis() - entry.checked < ttlMillis) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the cached change request for the workitem, if it was mapped from
+     * the given revision
+     * 
+     * @param workItemId
+     * @param revision
+     *            the current revision of the workitem
+     * @return the entry, or <b>null</b> if the workitem has to be mapped
+     */
+    public Entry get(int workItemId, int revision) {
+        Entry entry = cache.getIfPresent(workItemId);
+        if (entry != null) {
+            if (entry.revision == revision) {
+                entry.checked = System.currentTimeMillis();
+                hit();
+                return entry;
+            }
+            cache.invalidate(workItemId);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(int workItemId, Entry entry) {
+        cache.put(workItemId, entry);
+    }
+
+    /**
+     * Removes the change request for a workitem, e.g. when it has been
+     * updated through the adapter
+     * 
+     * @param workItemId
+     */
+    public void invalidate(int workItemId) {
+        cache.invalidate(workItemId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private void hit() {
+        long hitCount = hits.incrementAndGet();
+        if (logger.isDebugEnabled() && hitCount % 1000 == 0) {
+            logger.debug("Change request cache: " + hitCount + " hits, "
+                    + misses.get() + " misses, " + cache.size() + " cached");
+        }
+    }
+}
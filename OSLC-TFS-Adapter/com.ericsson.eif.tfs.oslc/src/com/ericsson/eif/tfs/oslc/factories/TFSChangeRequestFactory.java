@@ -30,9 +30,19 @@ package com.ericsson.eif.tfs.oslc.factories;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.UriInfo;
 
 import org.apache.log4j.Logger;
@@ -40,16 +50,61 @@ import org.apache.log4j.Logger;
 import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
 import com.ericsson.eif.tfs.oslc.TFSConnector;
 import com.ericsson.eif.tfs.oslc.exception.CreateWorkItemException;
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
 import com.ericsson.eif.tfs.oslc.exception.UpdateWorkItemException;
+import com.ericsson.eif.tfs.oslc.mapping.MappingContext;
+import com.ericsson.eif.tfs.oslc.mapping.MappingFileWatcher;
+import com.ericsson.eif.tfs.oslc.mapping.MappingState;
 import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
+import com.ericsson.eif.tfs.oslc.query.OslcSelectParser;
+import com.ericsson.eif.tfs.oslc.query.Term;
+import com.ericsson.eif.tfs.oslc.query.WiqlFilter;
 import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
+import com.ericsson.eif.tfs.oslc.utils.TfsUserLookup;
 import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.microsoft.tfs.core.clients.workitem.WorkItem;
 import com.microsoft.tfs.util.GUID;
 
 public class TFSChangeRequestFactory {
     
     static Logger logger = Logger.getLogger(TFSChangeRequestFactory.class);
+
+    private static ChangeRequestCache cache;
+    private static ExecutorService mappingExecutor;
+
+    // The ECM properties mapped from a work item, in mapping order
+    private static final List<String> ECR_PROPERTIES = Arrays.asList(
+            TFSMapper.ECM_TITLE,
+            TFSMapper.ECM_IDENTIFIER,
+            TFSMapper.ECM_PRIORITY,
+            TFSMapper.ECM_OWNER,
+            TFSMapper.ECM_COUNTRY,
+            TFSMapper.ECM_SITE,
+            TFSMapper.ECM_CUSTOMER,
+            TFSMapper.ECM_IMPACT_ON_ISP,
+            TFSMapper.ECM_DIDDET,
+            TFSMapper.ECM_DESCRIPTION,
+            TFSMapper.ECM_EXPECTED_IMPACT_ON_ISP,
+            TFSMapper.ECM_ANSWER_CODE,
+            TFSMapper.ECM_FAULT_CODE,
+            TFSMapper.ECM_ANSWER,
+            TFSMapper.ECM_STATUS,
+            TFSMapper.ECM_ACTIVITY,
+            TFSMapper.ECM_FIRST_TECHNICAL_CONTACT,
+            TFSMapper.ECM_NODE_PRODUCT,
+            TFSMapper.ECM_NODE_PRODUCT_REVISION,
+            TFSMapper.ECM_PRODUCT,
+            TFSMapper.ECM_PRODUCT_REVISION,
+            TFSMapper.ECM_CORRECTED_PRODUCT,
+            TFSMapper.ECM_CORRECTED_PRODUCT_REVISION,
+            TFSMapper.ECM_CORRECTED_NODE_PRODUCT,
+            TFSMapper.ECM_CORRECTED_NODE_PRODUCT_REVISION,
+            TFSMapper.ECM_CURRENT_MHO,
+            TFSMapper.ECM_ATTACHMENT,
+            TFSMapper.ECM_RELATED_CHANGE_REQUEST);
     
     public static EnterpriseChangeRequest createChangeRequest(
     		EnterpriseChangeRequest ecr,
@@ -77,36 +132,412 @@ public class TFSChangeRequestFactory {
         return ecr;
     }
 
+    /**
+     * Updates the workitem from the change request, see
+     * {@link TFSWorkItemFactory#updateWorkItem(EnterpriseChangeRequest, String, String, HttpServletRequest)}.
+     * 
+     * @param ecr
+     * @param workItemId
+     * @param ifMatch
+     *            the If-Match header, or <b>null</b>
+     * @param httpServletRequest
+     * @return the messages, with the revision saved
+     * @throws UpdateWorkItemException
+     */
     public static ValidationMessages updateChangeRequest(EnterpriseChangeRequest ecr,
-            String workItemId, HttpServletRequest httpServletRequest) throws UpdateWorkItemException {
+            String workItemId, String ifMatch,
+            HttpServletRequest httpServletRequest) throws UpdateWorkItemException {
         
-        return TFSWorkItemFactory.updateWorkItem(
-                ecr,
-                workItemId,
-                httpServletRequest);
+        try {
+            return TFSWorkItemFactory.updateWorkItem(
+                    ecr,
+                    workItemId,
+                    ifMatch,
+                    httpServletRequest);
+        } finally {
+            ChangeRequestCache cache = getCache();
+            if (cache != null) {
+                cache.invalidate(Integer.parseInt(workItemId));
+            }
+        }
     }
     
+    /**
+     * Gets the change request for a workitem. Change requests are cached, see
+     * {@link ChangeRequestCache}, so the returned change request must not be
+     * modified.
+     * 
+     * @param collectionId
+     * @param workItemId
+     * @param uriInfo
+     * @return
+     * @throws URISyntaxException
+     */
     public static EnterpriseChangeRequest getChangeRequest(
             String collectionId,
             String workItemId, UriInfo uriInfo) throws URISyntaxException {
-        WorkItem workItem = TFSWorkItemFactory.getWorkItem(workItemId);
-        EnterpriseChangeRequest ecr = createEnterpriseChangeRequest(workItem, uriInfo);
-        return ecr;
+        return getChangeRequest(collectionId, workItemId,
+                getRevision(workItemId), uriInfo).getChangeRequest();
+    }
+
+    /**
+     * Gets the change request for a workitem at the given revision, together
+     * with the revision it was actually mapped from - the workitem can have
+     * been changed since the revision was read.
+     * 
+     * @param collectionId
+     * @param workItemId
+     * @param revision
+     *            the current revision, see {@link #getRevision(String)}
+     * @param uriInfo
+     * @return
+     * @throws URISyntaxException
+     */
+    public static ChangeRequestCache.Entry getChangeRequest(
+            String collectionId,
+            String workItemId, int revision, UriInfo uriInfo)
+            throws URISyntaxException {
+        int id = Integer.parseInt(workItemId);
+        ChangeRequestCache cache = getCache();
+        ChangeRequestCache.Entry entry = cache != null ? cache.get(id,
+                revision) : null;
+        if (entry == null) {
+            WorkItem workItem = TFSWorkItemFactory.getWorkItem(workItemId);
+            entry = new ChangeRequestCache.Entry(
+                    createEnterpriseChangeRequest(workItem, uriInfo),
+                    TFSWorkItemFactory.getRevision(workItem));
+            if (cache != null) {
+                cache.put(id, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the current revision of a workitem. If the change request is
+     * cached and checked within tfs_ecr_cache_ttl, that revision is used
+     * without asking TFS.
+     * 
+     * @param workItemId
+     * @return the revision, or -1 if the workitem is not found
+     */
+    public static int getRevision(String workItemId) {
+        int id = Integer.parseInt(workItemId);
+        ChangeRequestCache cache = getCache();
+        if (cache != null) {
+            ChangeRequestCache.Entry entry = cache.getIfFresh(id);
+            if (entry != null) {
+                return entry.getRevision();
+            }
+        }
+        return TFSWorkItemFactory.getRevision(id);
+    }
+
+    /**
+     * The strong entity tag of a change request - the workitem id and
+     * revision, and the mapping generation once the mapping is reloaded
+     * (see {@link MappingFileWatcher}) as the same revision then can be
+     * mapped differently.
+     * 
+     * @param workItemId
+     * @param revision
+     * @return
+     */
+    public static EntityTag getEntityTag(String workItemId, int revision) {
+        long generation = MappingState.get().getGeneration();
+        if (generation > 0) {
+            return new EntityTag(workItemId + "-" + revision + "-"
+                    + generation);
+        }
+        return new EntityTag(workItemId + "-" + revision);
+    }
+
+    /**
+     * Checks an If-Match header against the entity tag of a revision, see
+     * {@link #getEntityTag(String, int)}
+     * 
+     * @param ifMatch
+     *            the comma separated entity tags, or "*"
+     * @param workItemId
+     * @param revision
+     * @return true if any of the entity tags matches
+     */
+    public static boolean matches(String ifMatch, String workItemId,
+            int revision) {
+        String eTag = getEntityTag(workItemId, revision).toString();
+        for (String match : ifMatch.split(",")) {
+            match = match.trim();
+            if (match.equals("*") || match.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops all cached change requests, e.g. when the mapping is reloaded.
+     */
+    public static void invalidateCache() {
+        ChangeRequestCache cache = getCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static synchronized ChangeRequestCache getCache() {
+        if (cache == null && TFSAdapterManager.getChangeRequestCacheSize() > 0) {
+            cache = new ChangeRequestCache(
+                    TFSAdapterManager.getChangeRequestCacheSize(),
+                    TFSAdapterManager.getChangeRequestCacheTtl());
+        }
+        return cache;
     }
     
+    /**
+     * Gets a page of change requests - see
+     * {@link TFSWorkItemFactory#getWorkItemIds(String, String, String, OslcPaging)}.
+     * The terms of the oslc.where that can be expressed in WIQL are evaluated
+     * by TFS, the rest on the mapped change requests of the page. So a page
+     * can contain fewer change requests than the page size.
+     * <p>
+     * If oslc.select is given, only the selected properties are mapped and
+     * only the TFS fields they need are fetched. Properties used in the part
+     * of the oslc.where evaluated here are mapped as well.
+     * 
+     * @param collectionId
+     * @param projectId
+     * @param where
+     *            the oslc.where clause, or <b>null</b>
+     * @param select
+     *            the oslc.select clause, or <b>null</b>
+     * @param paging
+     * @param uriInfo
+     * @return
+     * @throws URISyntaxException
+     * @throws InvalidQueryException
+     */
     public static List<EnterpriseChangeRequest> getChangeRequests(
             String collectionId,
             String projectId,
+            String where,
+            String select,
+            OslcPaging paging,
             UriInfo uriInfo
-            ) throws URISyntaxException {
-        List<WorkItem> workItems = new ArrayList<>();
-        List<EnterpriseChangeRequest> results = new ArrayList<>();
-        workItems = TFSWorkItemFactory.getWorkItems(collectionId, projectId);
+            ) throws URISyntaxException, InvalidQueryException {
+        Query query = new Query(where, select);
+        int[] ids = TFSWorkItemFactory.getWorkItemIds(collectionId,
+                projectId, query.getWiqlClause(), paging);
+        return query.map(
+                TFSWorkItemFactory.getWorkItems(ids, query.fieldNames),
+                uriInfo);
+    }
+
+    /**
+     * Gets a page of change requests like
+     * {@link #getChangeRequests(String, String, String, String, OslcPaging, UriInfo)},
+     * but lazily, in windows of at most windowSize workitems. A window is
+     * fetched from TFS and mapped only when the previous window has been
+     * consumed, so at most one window of change requests is held in memory.
+     * The paging is decided before this method returns.
+     * 
+     * @param collectionId
+     * @param projectId
+     * @param where
+     *            the oslc.where clause, or <b>null</b>
+     * @param select
+     *            the oslc.select clause, or <b>null</b>
+     * @param paging
+     * @param windowSize
+     * @param uriInfo
+     * @return
+     * @throws InvalidQueryException
+     */
+    public static Iterator<List<EnterpriseChangeRequest>> getChangeRequestWindows(
+            String collectionId,
+            String projectId,
+            String where,
+            String select,
+            OslcPaging paging,
+            final int windowSize,
+            final UriInfo uriInfo
+            ) throws InvalidQueryException {
+        final Query query = new Query(where, select);
+        final int[] ids = TFSWorkItemFactory.getWorkItemIds(collectionId,
+                projectId, query.getWiqlClause(), paging);
+        return new AbstractIterator<List<EnterpriseChangeRequest>>() {
+            private int from = 0;
+
+            @Override
+            protected List<EnterpriseChangeRequest> computeNext() {
+                if (from >= ids.length) {
+                    return endOfData();
+                }
+                int to = Math.min(from + windowSize, ids.length);
+                int[] windowIds = Arrays.copyOfRange(ids, from, to);
+                from = to;
+                try {
+                    return query.map(TFSWorkItemFactory.getWorkItems(
+                            windowIds, query.fieldNames), uriInfo);
+                } catch (URISyntaxException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The oslc.where and oslc.select of a change request query, with the
+     * workitem fields needed to evaluate them. The query is evaluated and
+     * its change requests mapped with the mapping in use when created.
+     */
+    private static class Query {
+        private final MappingState mapping = MappingState.get();
+        private final WiqlFilter filter;
+        private final Set<String> properties;
+        private final Set<String> fieldNames;
+
+        Query(String where, String select) throws InvalidQueryException {
+            if (where != null && !where.trim().isEmpty()) {
+                filter = WiqlFilter.create(where, TFSConnector
+                        .getWorkItemClient().getFieldDefinitions(), mapping);
+            } else {
+                filter = null;
+            }
+            properties = OslcSelectParser.parse(select, mapping);
+            if (properties != null) {
+                if (filter != null) {
+                    for (Term term : filter.getResidualTerms()) {
+                        properties.add(term.getProperty());
+                    }
+                }
+                fieldNames = TFSMapper.getInstance().getFieldNames(properties,
+                        mapping);
+            } else {
+                fieldNames = null;
+            }
+        }
+
+        String getWiqlClause() {
+            return filter != null ? filter.getWiqlClause() : null;
+        }
+
+        List<EnterpriseChangeRequest> map(List<WorkItem> workItems,
+                UriInfo uriInfo) throws URISyntaxException {
+            List<EnterpriseChangeRequest> results = new ArrayList<>();
+            for (EnterpriseChangeRequest ecr : createEnterpriseChangeRequests(
+                    workItems, properties, mapping, uriInfo)) {
+                if (filter == null || filter.matches(ecr)) {
+                    results.add(ecr);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Creates the {@link EnterpriseChangeRequest}s for the {@link WorkItem}s,
+     * in the same order. The workitems are mapped in parallel on the mapping
+     * executor, see tfs_mapping_parallelism in adapter.properties. The
+     * signums of the owners are looked up for all workitems at once first.
+     * 
+     * @param workItems
+     * @param properties
+     *            the ECM properties to map, or <b>null</b> for all
+     * @param mapping
+     *            the mapping to map all workitems with
+     * @param uriInfo
+     * @return
+     * @throws URISyntaxException
+     */
+    private static List<EnterpriseChangeRequest> createEnterpriseChangeRequests(
+            List<WorkItem> workItems, final Set<String> properties,
+            final MappingState mapping, final UriInfo uriInfo)
+            throws URISyntaxException {
+        if (workItems.size() > 1
+                && (properties == null || properties
+                        .contains(TFSMapper.ECM_OWNER))) {
+            prefetchOwners(workItems);
+        }
+
+        List<EnterpriseChangeRequest> ecrs = new ArrayList<>(workItems.size());
+        ExecutorService executor = getMappingExecutor();
+        if (executor == null || workItems.size() < 2) {
+            for (WorkItem workItem : workItems) {
+                ecrs.add(createEnterpriseChangeRequest(workItem, properties,
+                        mapping, uriInfo));
+            }
+            return ecrs;
+        }
+
+        List<Future<EnterpriseChangeRequest>> futures = new ArrayList<>(
+                workItems.size());
+        for (final WorkItem workItem : workItems) {
+            futures.add(executor.submit(new Callable<EnterpriseChangeRequest>() {
+                @Override
+                public EnterpriseChangeRequest call() throws URISyntaxException {
+                    return createEnterpriseChangeRequest(workItem, properties,
+                            mapping, uriInfo);
+                }
+            }));
+        }
+        try {
+            for (Future<EnterpriseChangeRequest> future : futures) {
+                ecrs.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while mapping workitems", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return ecrs;
+    }
+
+    // One identity lookup for the distinct owners instead of one per workitem
+    private static void prefetchOwners(List<WorkItem> workItems) {
+        Set<String> owners = new HashSet<>();
         for (WorkItem workItem : workItems) {
-            results.add(createEnterpriseChangeRequest(workItem, uriInfo));
+            owners.add(TFSMapper.getFieldValue(workItem.getFields(),
+                    TFSMapper.TFS_OWNER));
+        }
+        TfsUserLookup.getInstance().prefetchSignums(owners);
+    }
+
+    private static void cancel(List<Future<EnterpriseChangeRequest>> futures) {
+        for (Future<EnterpriseChangeRequest> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static synchronized ExecutorService getMappingExecutor() {
+        if (mappingExecutor == null
+                && TFSAdapterManager.getMappingParallelism() > 1) {
+            mappingExecutor = Executors.newFixedThreadPool(
+                    TFSAdapterManager.getMappingParallelism(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("tfs-mapping-%d").build());
+        }
+        return mappingExecutor;
+    }
+
+    /**
+     * Stops the threads used for mapping workitems - called when the adapter
+     * is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (mappingExecutor != null) {
+            mappingExecutor.shutdownNow();
+            mappingExecutor = null;
         }
-        
-        return results;
     }
 
     /**
@@ -119,37 +550,35 @@ public class TFSChangeRequestFactory {
      */
     private static EnterpriseChangeRequest createEnterpriseChangeRequest(
             WorkItem workItem, UriInfo uriInfo) throws URISyntaxException {
+        return createEnterpriseChangeRequest(workItem, null,
+                MappingState.get(), uriInfo);
+    }
+
+    /**
+     * Creates an {@link EnterpriseChangeRequest} from the given
+     * {@link WorkItem}, with only the given properties set
+     * 
+     * @param workItem
+     * @param properties
+     *            the ECM properties to map, or <b>null</b> for all
+     * @param mapping
+     * @param uriInfo
+     * @return
+     * @throws URISyntaxException
+     */
+    private static EnterpriseChangeRequest createEnterpriseChangeRequest(
+            WorkItem workItem, Set<String> properties, MappingState mapping,
+            UriInfo uriInfo) throws URISyntaxException {
         EnterpriseChangeRequest ecr = new EnterpriseChangeRequest();
+        // mapping to an ECR keeps no state in the mapper - workitems can be
+        // mapped concurrently, each with a context of its own
         TFSMapper mapper = TFSMapper.getInstance();
-        mapper.clear();
-        mapper.setEcrValues(ecr, TFSMapper.ECM_TITLE, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_IDENTIFIER, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_PRIORITY, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_OWNER, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_COUNTRY, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_SITE, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CUSTOMER, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_IMPACT_ON_ISP, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_DIDDET, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_DESCRIPTION, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_EXPECTED_IMPACT_ON_ISP, workItem); //
-        mapper.setEcrValues(ecr, TFSMapper.ECM_ANSWER_CODE, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_FAULT_CODE, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_ANSWER, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_STATUS, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_ACTIVITY, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_FIRST_TECHNICAL_CONTACT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_NODE_PRODUCT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_NODE_PRODUCT_REVISION, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_PRODUCT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_PRODUCT_REVISION, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CORRECTED_PRODUCT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CORRECTED_PRODUCT_REVISION, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CORRECTED_NODE_PRODUCT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CORRECTED_NODE_PRODUCT_REVISION, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_CURRENT_MHO, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_ATTACHMENT, workItem);
-        mapper.setEcrValues(ecr, TFSMapper.ECM_RELATED_CHANGE_REQUEST, workItem);
+        MappingContext context = new MappingContext(mapping);
+        for (String property : ECR_PROPERTIES) {
+            if (properties == null || properties.contains(property)) {
+                mapper.setEcrValues(ecr, property, workItem, context);
+            }
+        }
         
         TFSWorkItemFactory.setAbout(ecr, workItem);
         return ecr;
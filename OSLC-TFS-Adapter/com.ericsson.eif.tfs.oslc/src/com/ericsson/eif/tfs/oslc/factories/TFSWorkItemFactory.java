@@ -30,7 +30,14 @@ package com.ericsson.eif.tfs.oslc.factories;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -41,12 +48,18 @@ import com.ericsson.eif.tfs.oslc.TFSConnector;
 import com.ericsson.eif.tfs.oslc.exception.CreateWorkItemException;
 import com.ericsson.eif.tfs.oslc.exception.CustomerMappingExpection;
 import com.ericsson.eif.tfs.oslc.exception.UpdateWorkItemException;
+import com.ericsson.eif.tfs.oslc.mapping.MappingContext;
+import com.ericsson.eif.tfs.oslc.mapping.MappingState;
 import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
 import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
 import com.ericsson.eif.tfs.oslc.servlet.ServletListener;
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
 import com.ericsson.eif.tfs.oslc.utils.TFSUtilities;
+import com.ericsson.eif.tfs.oslc.utils.TrLinkIndex;
 import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.microsoft.tfs.core.TFSTeamProjectCollection;
+import com.microsoft.tfs.core.clients.workitem.CoreFieldReferenceNames;
 import com.microsoft.tfs.core.clients.workitem.WorkItem;
 import com.microsoft.tfs.core.clients.workitem.WorkItemClient;
 import com.microsoft.tfs.core.clients.workitem.exceptions.UnableToSaveException;
@@ -62,6 +75,13 @@ public class TFSWorkItemFactory {
 
 	static Logger logger = Logger.getLogger(TFSWorkItemFactory.class);
 
+	public static final int DEFAULT_SAVE_RETRIES = 3;
+	public static final int DEFAULT_SAVE_RETRY_DELAY = 100;
+
+	private static WorkItemHydrator hydrator;
+	private static long hydratorGeneration;
+	private static ExecutorService hydrationExecutor;
+
 	/**
 	 * Creates a new {@link WorkItem} in project based on the product to project
 	 * mapping. See {@link TFSMapper#getProject(String)}
@@ -75,7 +95,9 @@ public class TFSWorkItemFactory {
 			HttpServletRequest httpServletRequest)
 			throws CreateWorkItemException {
 		
-		String projectName = TFSMapper.getInstance().getProject(ecr.getProduct());
+		MappingContext context = new MappingContext();
+		String projectName = TFSMapper.getInstance().getProject(
+				ecr.getProduct(), context);
 		if (projectName == null || projectName.isEmpty()) {
 			String message = "TFS Project Name to create workitem in not defined.";
 			logger.error(message);
@@ -89,7 +111,7 @@ public class TFSWorkItemFactory {
 			throw new CreateWorkItemException(-2, message);
 		}
 		
-		return createWorkItem(project.getID(), ecr, httpServletRequest);
+		return createWorkItem(project.getID(), ecr, context);
 	}
 
 	/**
@@ -104,6 +126,29 @@ public class TFSWorkItemFactory {
 	public static WorkItem createWorkItem(int projectId,
 			EnterpriseChangeRequest ecr, HttpServletRequest httpServletRequest)
 			throws CreateWorkItemException {
+		return createWorkItem(projectId, ecr, new MappingContext());
+	}
+
+	private static WorkItem createWorkItem(int projectId,
+			EnterpriseChangeRequest ecr, MappingContext context)
+			throws CreateWorkItemException {
+
+		// The workitem has no id yet, serialize the creates for the same TR
+		String trId = TFSMapper.getInstance().getTrId(ecr);
+		if (trId == null) {
+			return doCreateWorkItem(projectId, ecr, context);
+		}
+		Lock lock = WorkItemLocks.getInstance().lock(trId);
+		try {
+			return doCreateWorkItem(projectId, ecr, context);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static WorkItem doCreateWorkItem(int projectId,
+			EnterpriseChangeRequest ecr, MappingContext context)
+			throws CreateWorkItemException {
 
 		TFSTeamProjectCollection tpc = TFSConnector.getTpc();
 		WorkItemClient wic = tpc.getWorkItemClient();
@@ -118,38 +163,43 @@ public class TFSWorkItemFactory {
 
 		FieldCollection fields = newWorkItem.getFields();
 		TFSMapper mapper = TFSMapper.getInstance();
-		mapper.clear();
 
 		ValidationMessages messages = new ValidationMessages();
 		try {
-			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_TITLE, ecr, messages);
+			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_TITLE, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_PRIORITY, ecr, 
-					messages);
-			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_COUNTRY, ecr, messages);
+					messages, context);
+			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_COUNTRY, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_CUSTOMER, ecr,
-					messages);
-			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_SITE, ecr, messages);
+					messages, context);
+			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_SITE, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_IMPACT_ON_ISP, ecr,
-					messages);
-			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_DIDDET, ecr, messages);
+					messages, context);
+			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_DIDDET, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_DESCRIPTION, ecr, 
-					messages);
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_ANSWER_CODE, ecr, 
-					messages);
+					messages, context);
 			mapper.mapFromEcr(newWorkItem, TFSMapper.ECM_FAULT_CODE, ecr, 
-					messages);
-			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_STATUS, ecr, messages);
+					messages, context);
+			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_STATUS, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_ACTIVITY, ecr,
-					messages);
+					messages, context);
 			// ignoring TFSMapper.ECM_FIRST_TECHNICAL_CONTACT_INFO
 			// ignoring TFSMapper.ECM_FIRST_TECHNICAL_CONTACT
-			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_PRODUCT, ecr, messages);
+			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_PRODUCT, ecr,
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_PRODUCT_REVISION, ecr,
-					messages);
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_ATTACHMENT, ecr,
-					messages);
+					messages, context);
 			mapper.mapFromEcr(newWorkItem,TFSMapper.ECM_OWNER, ecr,
-					messages);
+					messages, context);
 			
 			// special mapping rules:
 			mapper.mapFromEcrLink(TFSMapper.ECM_RELATED_CHANGE_REQUEST, ecr,
@@ -199,6 +249,8 @@ public class TFSWorkItemFactory {
 			throw new CreateWorkItemException(statusCode, message);
 		}
 
+		TrLinkIndex.update(newWorkItem);
+
 		// Update the about now that we have saved and thus a workitem ID
 		setAbout(ecr, newWorkItem);
 		ecr.setIdentifier(newWorkItem.getID() + "");
@@ -206,34 +258,76 @@ public class TFSWorkItemFactory {
 	}
 
 	/**
-	 * Updates the given workitem based on the incoming ecr
+	 * Updates the given workitem based on the incoming ecr. If an If-Match
+	 * is given it is checked against the revision loaded under the lock of
+	 * the workitem, and the changes are not applied to a later revision if
+	 * another source saves the workitem first.
 	 * 
 	 * @param ecr
 	 * @param workItemId
+	 * @param ifMatch
+	 *            the If-Match header, or <b>null</b>
 	 * @param httpServletRequest
+	 * @return the messages, with the revision saved
 	 * @throws UpdateWorkItemException
+	 *             with status 404 if the workitem is not found, 412 if the
+	 *             If-Match does not match
 	 */
 	public static ValidationMessages updateWorkItem(
-			EnterpriseChangeRequest ecr, String workItemId,
+			EnterpriseChangeRequest ecr, String workItemId, String ifMatch,
 			HttpServletRequest httpServletRequest)
 			throws UpdateWorkItemException {
 
 		logger.debug("TFSWorkItemFactory.updateWorkItem()");
 
+		// Concurrent updates of the workitem are applied one at a time
+		Lock lock = WorkItemLocks.getInstance().lock(workItemId);
+		try {
+			return doUpdateWorkItem(ecr, workItemId, ifMatch);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static ValidationMessages doUpdateWorkItem(
+			EnterpriseChangeRequest ecr, String workItemId, String ifMatch)
+			throws UpdateWorkItemException {
+
 		boolean workItemChanged = false;
 		WorkItem workItem = TFSUtilities.getWorkItem(
 				TFSConnector.getWorkItemClient(), workItemId);
+		if (workItem == null) {
+			throw new UpdateWorkItemException(404, "Workitem not found: "
+					+ workItemId);
+		}
+		int retries = TFSAdapterManager.getSaveRetries();
+		if (ifMatch != null) {
+			int revision = getRevision(workItem);
+			if (!TFSChangeRequestFactory.matches(ifMatch, workItemId,
+					revision)) {
+				throw new UpdateWorkItemException(412, "If-Match " + ifMatch
+						+ " does not match the ETag "
+						+ TFSChangeRequestFactory.getEntityTag(workItemId,
+								revision) + " of the workitem");
+			}
+			// A revision saved by another source fails the update
+			retries = 0;
+		}
+		Map<String, String> loadedHyperlinks = WorkItemChanges
+				.getHyperlinks(workItem);
 
 		ValidationMessages messages = new ValidationMessages();
 		
 		TFSMapper mapper = TFSMapper.getInstance();
-		mapper.clear();
+		MappingContext context = new MappingContext();
 
 		// Handle case where the related item no longer should be connected
 		// to the incoming ecr. If so, we will sever the link and save Bug
-		boolean disconnect = mapper.shouldDisconnect(workItem, ecr, messages);
+		boolean disconnect = mapper.shouldDisconnect(workItem, ecr, messages,
+				context);
 		if (disconnect) {
-			save(workItem, messages);
+			workItem = save(workItem, null, retries, messages);
+			messages.setRevision(getRevision(workItem));
 			return messages; 
 		}
 		
@@ -243,82 +337,87 @@ public class TFSWorkItemFactory {
 
 		// Process the fields in the ECR and update the WI if needed		
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_TITLE, ecr, messages);
+				TFSMapper.ECM_TITLE, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_PRIORITY, ecr, messages);
+				TFSMapper.ECM_PRIORITY, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_COUNTRY, ecr, messages);
+				TFSMapper.ECM_COUNTRY, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_CUSTOMER, ecr, messages);
+				TFSMapper.ECM_CUSTOMER, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem, TFSMapper.ECM_SITE,
-				ecr, messages);
+				ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_IMPACT_ON_ISP, ecr, messages);
+				TFSMapper.ECM_IMPACT_ON_ISP, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_EXPECTED_IMPACT_ON_ISP, ecr, messages);
+				TFSMapper.ECM_EXPECTED_IMPACT_ON_ISP, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_DIDDET, ecr, messages);
+				TFSMapper.ECM_DIDDET, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_DESCRIPTION, ecr, messages);
+				TFSMapper.ECM_DESCRIPTION, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_ANSWER_CODE, ecr, messages);
+				TFSMapper.ECM_ANSWER_CODE, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_FAULT_CODE, ecr, messages);
+				TFSMapper.ECM_FAULT_CODE, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_STATUS, ecr, messages);
+				TFSMapper.ECM_STATUS, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_ACTIVITY, ecr, messages);
+				TFSMapper.ECM_ACTIVITY, ecr, messages, context);
 				
 		// ignoring TFSMapper.ECM_FIRST_TECHNICAL_CONTACT_INFO
 		// ignoring TFSMapper.ECM_FIRST_TECHNICAL_CONTACT
 		
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_PRODUCT, ecr, messages);
+				TFSMapper.ECM_PRODUCT, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_PRODUCT_REVISION, ecr, messages);
+				TFSMapper.ECM_PRODUCT_REVISION, ecr, messages, context);
 		
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_CORRECTED_PRODUCT, ecr, messages);
+				TFSMapper.ECM_CORRECTED_PRODUCT, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_CORRECTED_PRODUCT_REVISION, ecr, messages);
+				TFSMapper.ECM_CORRECTED_PRODUCT_REVISION, ecr,
+				messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_CORRECTED_NODE_PRODUCT, ecr, messages);
+				TFSMapper.ECM_CORRECTED_NODE_PRODUCT, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_CORRECTED_NODE_PRODUCT_REVISION, ecr, messages);
+				TFSMapper.ECM_CORRECTED_NODE_PRODUCT_REVISION, ecr,
+				messages, context);
 
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_OWNER, ecr, messages);
+				TFSMapper.ECM_OWNER, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_ATTACHMENT, ecr, messages);
+				TFSMapper.ECM_ATTACHMENT, ecr, messages, context);
 
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_ANSWER, ecr, messages);
+				TFSMapper.ECM_ANSWER, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_NOTEBOOK, ecr, messages);
+				TFSMapper.ECM_NOTEBOOK, ecr, messages, context);
 		workItemChanged |= mapper.mapFromEcrIfChanged(workItem,
-				TFSMapper.ECM_PROGRESS_INFO, ecr, messages);
+				TFSMapper.ECM_PROGRESS_INFO, ecr, messages, context);
 		
 		// Handle setting of Duplicate
 		workItemChanged |= updateDuplicate(workItem, workItemId, ecr,
-				messages);
+				messages, context);
 
 		// There can be multiple fields from the ecr that provide input to the
-		// TFS_HISTORY field, and each should be saved as a separate entry.
-		// Changes from updating fields is saved in stack, and here we can pop
-		// one change to include in the 1:st save.
+		// TFS_HISTORY field. Changes from updating fields is saved in stack.
+		// In single commit mode all are merged into one entry for the 1:st
+		// save, otherwise each should be saved as a separate entry and here
+		// we can pop one change to include in the 1:st save.
+		String firstUpdate = TFSAdapterManager.isHistorySingleCommit() ? context
+				.popHistoryUpdates() : context.popHistoryUpdate();
 		workItemChanged |= mapper.updateIfChanged(workItem, TFSMapper.TFS_HISTORY,
-				mapper.popHistoryUpdate(), messages);
+				firstUpdate, messages);
 
 		// Commit the changes
 		if (workItemChanged) {
 			// Do NOT save if NOTHING has changed
-			save(workItem, messages);
+			workItem = save(workItem, loadedHyperlinks, retries, messages);
 			workItemChanged = false;
 		}
 
 		// Handle rest of History updates with a syncToLatest as previous
 		// save could have caused TFS server code to update workitem. 
-		String historyUpdate = mapper.popHistoryUpdate();
+		String historyUpdate = context.popHistoryUpdate();
 		
 		// The general pattern* is for TFS Consumer code (plugin) to ignore
 		// content update, but update a field informing if latest change
@@ -333,39 +432,60 @@ public class TFSWorkItemFactory {
 		while (historyUpdate != null) {			
 			if (mapper.updateIfChanged(workItem, TFSMapper.TFS_HISTORY,
 					historyUpdate, messages)) {
-				save(workItem, messages);
+				workItem = save(workItem, messages);
 			}
-			historyUpdate = mapper.popHistoryUpdate();
+			historyUpdate = context.popHistoryUpdate();
 		}
 
+		messages.setRevision(getRevision(workItem));
 		return messages;
 	}
 	
 	// Set the Duplicate state for any connected workitems
 	private static boolean updateDuplicate(WorkItem workItem,
 			String workItemId, EnterpriseChangeRequest ecr,
-			ValidationMessages messages) {
+			ValidationMessages messages, MappingContext context) {
 
 		String updatedBugIds = "";
 		TFSMapper mapper = TFSMapper.getInstance();
-		List<WorkItem> updatedBugs = mapper.updateDuplicate(ecr, workItem,
-				workItemId, messages);
+		WorkItemClient wic = TFSConnector.getWorkItemClient();
+
+		// Modify and save the bugs under their locks - if errors, continue.
+		// The lock of this workitem is held, so only wait a limited time for
+		// theirs.
+		for (String duplicateTR : mapper.getDuplicateTRs(ecr)) {
+			WorkItem bug = TFSUtilities.getBugForTR(wic, duplicateTR);
+			if (bug == null) {
+				continue;
+			}
 
-		// Save the changed bugs - if errors, continue
-		for (WorkItem bug : updatedBugs) {
+			Lock lock = WorkItemLocks.getInstance().tryLock(
+					Integer.toString(bug.getID()));
+			if (lock == null) {
+				logger.error("Failed to update Duplicate state for bug: "
+						+ bug.getID() + ", busy");
+				continue;
+			}
 			try {
+				// Open to get all fields for workitem
+				bug.open();
+				if (!mapper.setDuplicate(bug, workItemId, messages)) {
+					continue;
+				}
 				save(bug, messages);
 				updatedBugIds += (updatedBugIds.isEmpty() ? "" : ", ")
 						+ bug.getID();
 			} catch (UpdateWorkItemException e) {
 				logger.error("Failed to update Duplicate state for bug: "
 						+ bug.getID());
+			} finally {
+				lock.unlock();
 			}
 		}
 
 		// Update History with info that Bugs are set as Duplicate to this
 		if (!updatedBugIds.isEmpty()) {
-			mapper.pushHistoryUpdate("Bug(s) "
+			context.pushHistoryUpdate("Bug(s) "
 					+ updatedBugIds + " is (are) set as Duplicate to this Bug.");
 			return true;
 		} else {
@@ -396,34 +516,107 @@ public class TFSWorkItemFactory {
 	}
 
 	/**
-	 * Gets all {@link WorkItem}s for a collection and a project If projectId is
-	 * <b>null</b>, it returns all workItems in the collection
+	 * Gets the ids of a page of {@link WorkItem}s for a collection and a
+	 * project. If projectId is <b>null</b>, the page is taken from all
+	 * workItems in the collection. Only the ids are queried for the whole
+	 * collection, the full workItems can then be fetched for the page with
+	 * {@link #getWorkItems(int[], Collection)}.
 	 * 
 	 * @param collectionId
 	 * @param projectId
+	 * @param wiqlClause
+	 *            additional WIQL condition, or <b>null</b>
+	 * @param paging
+	 *            the page to get, updated with if there is a next page
 	 * @return
 	 */
-	public static List<WorkItem> getWorkItems(String collectionId,
-			String projectId) {
+	public static int[] getWorkItemIds(String collectionId,
+			String projectId, String wiqlClause, OslcPaging paging) {
 		WorkItemClient workItemClient = TFSConnector.getWorkItemClient();
-		String wiqlQuery;
+		List<String> conditions = new ArrayList<>();
 		if (projectId != null) {
 			Project project = workItemClient.getProjects().getByID(
 					Integer.parseInt(projectId));
-			wiqlQuery = "Select ID, Title from WorkItems where (System.AreaPath = '"
-					+ project.getName() + "') order by ID";
-		} else {
-			wiqlQuery = "Select ID, Title from WorkItems order by ID";
+			conditions.add("(System.AreaPath = '" + project.getName() + "')");
+		}
+		if (wiqlClause != null) {
+			conditions.add("(" + wiqlClause + ")");
+		}
+		String wiqlQuery = "Select ID from WorkItems";
+		for (int i = 0; i < conditions.size(); i++) {
+			wiqlQuery += (i == 0 ? " where " : " and ") + conditions.get(i);
 		}
-		WorkItemCollection workItems = workItemClient.query(wiqlQuery);
-		List<WorkItem> workItemList = new ArrayList<>();
-		for (int i = 0; i < workItems.size(); i++) {
-			// get full workitem to ensure we have access to all fields
-			WorkItem workItem = workItems.getWorkItem(i);
-			WorkItem wi = workItemClient.getWorkItemByID(workItem.getID());
-			workItemList.add(wi);
+		wiqlQuery += " order by ID";
+		logger.debug("Query: " + wiqlQuery);
+
+		int[] ids = workItemClient.query(wiqlQuery).getIDs();
+		long from = (long) paging.getPage() * paging.getPageSize();
+		long to = Math.min(from + paging.getPageSize(), ids.length);
+		paging.setHasNextPage(to < ids.length);
+		if (from >= ids.length) {
+			return new int[0];
+		}
+		return Arrays.copyOfRange(ids, (int) from, (int) to);
+	}
+
+	/**
+	 * Gets the {@link WorkItem}s for the ids, in batches and in the order of
+	 * the ids. Only the given fields are fetched in the batches, the links
+	 * are still fetched per workitem when mapped - see
+	 * {@link WorkItemHydrator}.
+	 * 
+	 * @param ids
+	 * @param fieldNames
+	 *            the fields to get, or <b>null</b> for all mapped fields
+	 * @return
+	 */
+	public static List<WorkItem> getWorkItems(int[] ids,
+			Collection<String> fieldNames) {
+		if (ids.length == 0) {
+			return new ArrayList<>();
+		}
+		WorkItemClient workItemClient = TFSConnector.getWorkItemClient();
+		// get workitems in batches with the fields needed for the mapping
+		WorkItemHydrator workItemHydrator = getHydrator(workItemClient);
+		if (fieldNames == null) {
+			return workItemHydrator.getWorkItems(ids);
+		}
+		return workItemHydrator.getWorkItems(
+				WorkItemHydrator.createSource(workItemClient, fieldNames), ids);
+	}
+
+	// The hydrator gets the fields of the mapping in use, and is replaced
+	// when the mapping is reloaded
+	private static synchronized WorkItemHydrator getHydrator(
+			WorkItemClient workItemClient) {
+		MappingState mapping = MappingState.get();
+		if (hydrator == null || hydratorGeneration != mapping.getGeneration()) {
+			if (hydrationExecutor == null) {
+				hydrationExecutor = Executors.newFixedThreadPool(
+						TFSAdapterManager.getHydrationParallelism(),
+						new ThreadFactoryBuilder().setDaemon(true)
+								.setNameFormat("tfs-hydration-%d").build());
+			}
+			hydrator = new WorkItemHydrator(WorkItemHydrator.createSource(
+					workItemClient, TFSMapper.getInstance()
+							.getMappedFieldNames(mapping)),
+					TFSAdapterManager.getHydrationBatchSize(),
+					hydrationExecutor);
+			hydratorGeneration = mapping.getGeneration();
+		}
+		return hydrator;
+	}
+
+	/**
+	 * Stops the threads used for getting workitems - called when the adapter
+	 * is shut down.
+	 */
+	public static synchronized void shutdown() {
+		if (hydrationExecutor != null) {
+			hydrationExecutor.shutdownNow();
+			hydrationExecutor = null;
+			hydrator = null;
 		}
-		return workItemList;
 	}
 
 	public static WorkItem getWorkItem(String workItemId) {
@@ -431,15 +624,106 @@ public class TFSWorkItemFactory {
 				Integer.parseInt(workItemId));
 	}
 
-	private static void save(WorkItem workItem, ValidationMessages messages)
+	/**
+	 * Gets the current revision of a workitem with a query for just the id
+	 * and the revision, which is much cheaper than getting the workitem.
+	 * 
+	 * @param workItemId
+	 * @return the revision, or -1 if the workitem is not found
+	 */
+	public static int getRevision(int workItemId) {
+		WorkItemCollection workItems = TFSConnector.getWorkItemClient().query(
+				new int[] { workItemId }, "Select " + CoreFieldReferenceNames.ID
+						+ ", " + CoreFieldReferenceNames.REVISION
+						+ " from WorkItems");
+		if (workItems.size() == 0) {
+			return -1;
+		}
+		return getRevision(workItems.getWorkItem(0));
+	}
+
+	public static int getRevision(WorkItem workItem) {
+		Object revision = workItem.getFields()
+				.getField(CoreFieldReferenceNames.REVISION).getValue();
+		return revision instanceof Integer ? (Integer) revision : -1;
+	}
+
+	/**
+	 * Saves the workitem, whose hyperlinks are not changed. See
+	 * {@link #save(WorkItem, Map, int, ValidationMessages)}.
+	 */
+	private static WorkItem save(WorkItem workItem, ValidationMessages messages)
+			throws UpdateWorkItemException {
+		return save(workItem, null, TFSAdapterManager.getSaveRetries(),
+				messages);
+	}
+
+	/**
+	 * Saves the workitem. If the save fails as another source saved the
+	 * workitem first, the changes are applied to the latest revision of the
+	 * workitem and saved again, after a random delay growing with each try -
+	 * see {@link WorkItemChanges}.
+	 * 
+	 * @param workItem
+	 * @param loadedHyperlinks
+	 *            the hyperlinks of the workitem as loaded, see
+	 *            {@link WorkItemChanges#getHyperlinks(WorkItem)}, null if
+	 *            the hyperlinks are not changed
+	 * @param retries
+	 *            the number of retries, 0 to fail if saved by another source
+	 * @param messages
+	 * @return the workitem saved, the latest revision if the save was retried
+	 * @throws UpdateWorkItemException
+	 */
+	private static WorkItem save(WorkItem workItem,
+			Map<String, String> loadedHyperlinks, int retries,
+			ValidationMessages messages) throws UpdateWorkItemException {
+		
+		WorkItemChanges changes = retries > 0 ? WorkItemChanges.record(
+				workItem, loadedHyperlinks) : null;
+		for (int retry = 1;; retry++) {
+			int noOfRevisions = workItem.getRevisions().size();
+			try {
+				return save(workItem, noOfRevisions, retry <= retries,
+						messages);
+			} catch (UpdateWorkItemException e) {
+				if (e.getStatusCode() != -2 || retry > retries) {
+					throw e;
+				}
+				logger.info("Retrying save of workitem: " + workItem.getID()
+						+ ", " + retry + " of " + retries);
+			}
+			backoff(retry);
+			workItem = TFSConnector.getWorkItemClient().getWorkItemByID(
+					workItem.getID());
+			changes.applyTo(workItem, messages);
+		}
+	}
+
+	// Sleeps a random time up to the retry delay doubled for each retry, so
+	// that competing writers do not retry in step
+	private static void backoff(int retry) throws UpdateWorkItemException {
+		long maxDelay = (long) TFSAdapterManager.getSaveRetryDelay() << Math
+				.min(retry - 1, 10);
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UpdateWorkItemException(-2,
+					"Interrupted while retrying save of workitem");
+		}
+	}
+
+	private static WorkItem save(WorkItem workItem, int noOfRevisions,
+			boolean retryOnRace, ValidationMessages messages)
 			throws UpdateWorkItemException {
 		
-		int noOfRevisions = workItem.getRevisions().size();
-				
 		List<String> validationResult = validate(workItem);
 		try {
 			workItem.save();
 			logger.debug("Saved workitem: " + workItem.getID());
+			TrLinkIndex.update(workItem);
+			return workItem;
 			
 		} catch (Exception e) {
 
@@ -459,7 +743,6 @@ public class TFSWorkItemFactory {
 			// If error on save is due to race condition, i.e. somebody (e.g.
 			// the TFS Consumer code invoked on Save of workItem) changed and
 			// saved a new revision of the workItem. If so, add info to message.
-			// TODO: Could retry command that caused failing save.
 			int currentNoOfRevisions = workItem.getRevisions().size();
 			if (noOfRevisions != currentNoOfRevisions) {
 				statusCode = -2; // TODO: Into constants
@@ -481,6 +764,11 @@ public class TFSWorkItemFactory {
 			message += "\nException message: " + exceptionMessage;
 			logger.info(message, null);
 			
+			// The changes are applied to the latest revision and saved again
+			if (statusCode == -2 && retryOnRace) {
+				throw new UpdateWorkItemException(statusCode, message);
+			}
+			
 			// When save fails - always update the ERICSSON_DEFECT_STATE_FIELD
 			String trState = getFieldValue(workItem.getFields(),
 					TFSMapper.ERICSSON_DEFECT_STATE_FIELD);
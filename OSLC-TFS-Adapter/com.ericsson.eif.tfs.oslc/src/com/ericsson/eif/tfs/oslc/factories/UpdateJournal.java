@@ -0,0 +1,306 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the updates queued by {@link AsyncUpdateQueue}. An
+ * update is appended when queued, and a completion record when it has been
+ * applied, so that the updates still pending can be read back after a
+ * restart.
+ * <p>
+ * Each record is its length and checksum followed by the type, the id of
+ * the update and the data of the type. A record cut short by a crash, and
+ * anything after it, is dropped when the journal is read. When no update is
+ * pending the journal is truncated, down to a record of the next id to
+ * use, so that the ids of updates are not reused after a restart.
+ */
+class UpdateJournal {
+
+    static Logger logger = Logger.getLogger(UpdateJournal.class);
+
+    private static final byte QUEUED = 1;
+    private static final byte DONE = 2;
+    private static final byte NEXT_ID = 3;
+    private static final int HEADER = 8; // length, checksum
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A record of the journal
+     */
+    static class Record {
+        final byte type;
+        final long id; // the next id for NEXT_ID
+        final String workItemId; // QUEUED only
+        final String payload; // QUEUED only
+        final String ifMatch; // QUEUED only, null if none
+        final int status; // DONE only
+        final String report; // DONE only
+
+        private Record(byte type, long id, String workItemId, String payload,
+                String ifMatch, int status, String report) {
+            this.type = type;
+            this.id = id;
+            this.workItemId = workItemId;
+            this.payload = payload;
+            this.ifMatch = ifMatch;
+            this.status = status;
+            this.report = report;
+        }
+
+        boolean isQueued() {
+            return type == QUEUED;
+        }
+
+        boolean isDone() {
+            return type == DONE;
+        }
+    }
+
+    private final File file;
+    private final AsyncUpdateQueue.Fsync fsync;
+    private FileChannel channel;
+    private boolean dirty;
+
+    UpdateJournal(File file, AsyncUpdateQueue.Fsync fsync) {
+        this.file = file;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reads the records of the journal, up to the first one that is cut short
+     * or corrupt.
+     * 
+     * @return
+     * @throws IOException
+     */
+    List<Record> read() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (!file.exists()) {
+            return records;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        while (buffer.remaining() >= HEADER) {
+            int length = buffer.getInt();
+            long checksum = buffer.getInt() & 0xffffffffL;
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            if (checksum(body) != checksum) {
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            byte type = body.get();
+            long id = body.getLong();
+            if (type == QUEUED) {
+                String workItemId = getString(body);
+                String payload = getString(body);
+                String ifMatch = getString(body);
+                records.add(new Record(type, id, workItemId, payload,
+                        ifMatch.isEmpty() ? null : ifMatch, 0, null));
+            } else if (type == DONE) {
+                records.add(new Record(type, id, null, null, null,
+                        body.getInt(), getString(body)));
+            } else if (type == NEXT_ID) {
+                records.add(new Record(type, id, null, null, null, 0, null));
+            }
+        }
+        if (buffer.hasRemaining()) {
+            logger.warn("Dropping " + buffer.remaining()
+                    + " bytes at the end of " + file + ", cut short or corrupt");
+        }
+        return records;
+    }
+
+    /**
+     * Opens the journal for appending, with only the given queued records.
+     * 
+     * @param pending
+     * @param nextId
+     *            the id the next update is to get
+     * @throws IOException
+     */
+    synchronized void open(Collection<Record> pending, long nextId)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, nextId(nextId));
+            for (Record record : pending) {
+                write(out, queued(record.id, record.workItemId,
+                        record.payload, record.ifMatch));
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    synchronized void appendQueued(long id, String workItemId,
+            String payload, String ifMatch) throws IOException {
+        append(queued(id, workItemId, payload, ifMatch));
+    }
+
+    synchronized void appendDone(long id, int status, String report)
+            throws IOException {
+        byte[] reportBytes = bytes(report);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + 4
+                + reportBytes.length);
+        body.put(DONE).putLong(id).putInt(status);
+        putBytes(body, reportBytes);
+        append(body);
+    }
+
+    /**
+     * Drops all records - called when no update is pending - but the next id
+     * 
+     * @param nextId
+     *            the id the next update is to get
+     * @throws IOException
+     */
+    synchronized void truncate(long nextId) throws IOException {
+        if (channel != null && channel.size() > 0) {
+            channel.truncate(0);
+            write(channel, nextId(nextId));
+            channel.force(true);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Forces appended records to disk, for
+     * {@link AsyncUpdateQueue.Fsync#INTERVAL}
+     */
+    synchronized void flush() {
+        if (dirty && channel != null) {
+            try {
+                channel.force(false);
+                dirty = false;
+            } catch (IOException e) {
+                logger.error("Failed to force " + file + " to disk", e);
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Failed to close " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    private void append(ByteBuffer body) throws IOException {
+        if (channel == null) {
+            throw new IOException(file + " is closed");
+        }
+        write(channel, body);
+        if (fsync == AsyncUpdateQueue.Fsync.ALWAYS) {
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    private static ByteBuffer queued(long id, String workItemId,
+            String payload, String ifMatch) {
+        byte[] workItemIdBytes = bytes(workItemId);
+        byte[] payloadBytes = bytes(payload);
+        byte[] ifMatchBytes = bytes(ifMatch);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + workItemIdBytes.length
+                + 4 + payloadBytes.length + 4 + ifMatchBytes.length);
+        body.put(QUEUED).putLong(id);
+        putBytes(body, workItemIdBytes);
+        putBytes(body, payloadBytes);
+        putBytes(body, ifMatchBytes);
+        return body;
+    }
+
+    private static ByteBuffer nextId(long nextId) {
+        ByteBuffer body = ByteBuffer.allocate(1 + 8);
+        body.put(NEXT_ID).putLong(nextId);
+        return body;
+    }
+
+    private static void write(FileChannel out, ByteBuffer body)
+            throws IOException {
+        body.flip();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(body.remaining()).putInt((int) checksum(body)).flip();
+        ByteBuffer[] record = { header, body };
+        while (header.hasRemaining() || body.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    private static long checksum(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), body.arrayOffset() + body.position(),
+                body.remaining());
+        return crc.getValue();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
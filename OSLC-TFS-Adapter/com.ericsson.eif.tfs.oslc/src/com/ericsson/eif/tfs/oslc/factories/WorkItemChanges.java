@@ -0,0 +1,188 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
+import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
+import com.microsoft.tfs.core.clients.workitem.WorkItem;
+import com.microsoft.tfs.core.clients.workitem.fields.Field;
+import com.microsoft.tfs.core.clients.workitem.fields.FieldCollection;
+import com.microsoft.tfs.core.clients.workitem.link.Hyperlink;
+import com.microsoft.tfs.core.clients.workitem.link.Link;
+import com.microsoft.tfs.core.clients.workitem.link.LinkCollection;
+import com.microsoft.tfs.core.clients.workitem.link.LinkFactory;
+
+/**
+ * The changes made to a {@link WorkItem} before it is saved: the original and
+ * the intended value of each changed field, and the hyperlinks added and
+ * removed since the workitem was loaded. If
+ * the save fails as another source saved the workitem first, the changes can
+ * be applied to the latest revision of the workitem.
+ * <p>
+ * A field is only applied if its value in the latest revision is still the
+ * original value, i.e. nobody else changed it. The History field is always
+ * applied, as each entry belongs to the revision being saved. Hyperlinks
+ * are only added or removed as by the changes, others are left as in the
+ * latest revision.
+ */
+class WorkItemChanges {
+
+    static Logger logger = Logger.getLogger(WorkItemChanges.class);
+
+    // Key is the field reference name, value is {original, intended}
+    private final Map<String, Object[]> fields = new LinkedHashMap<>();
+    // Key is the location, value the comment
+    private final Map<String, String> addedHyperlinks = new HashMap<>();
+    private final Set<String> removedHyperlinks = new HashSet<>();
+
+    /**
+     * Gets the hyperlinks of the workitem, to record the hyperlinks changed
+     * later on, see {@link #record(WorkItem, Map)}
+     * 
+     * @param workItem
+     * @return the comment per location
+     */
+    static Map<String, String> getHyperlinks(WorkItem workItem) {
+        Map<String, String> hyperlinks = new HashMap<>();
+        for (Link link : workItem.getLinks()) {
+            if (link instanceof Hyperlink) {
+                Hyperlink hyperlink = (Hyperlink) link;
+                hyperlinks.put(hyperlink.getLocation(), hyperlink.getComment());
+            }
+        }
+        return hyperlinks;
+    }
+
+    /**
+     * Records the changes not yet saved of the workitem
+     * 
+     * @param workItem
+     * @param loadedHyperlinks
+     *            the hyperlinks when the workitem was loaded, null if the
+     *            hyperlinks are not changed
+     * @return
+     */
+    static WorkItemChanges record(WorkItem workItem,
+            Map<String, String> loadedHyperlinks) {
+        WorkItemChanges changes = new WorkItemChanges();
+        for (Field field : workItem.getFields()) {
+            if (field.isDirty()) {
+                changes.fields.put(field.getReferenceName(), new Object[] {
+                        field.getOriginalValue(), field.getValue() });
+            }
+        }
+        if (loadedHyperlinks != null) {
+            Map<String, String> hyperlinks = getHyperlinks(workItem);
+            for (Map.Entry<String, String> hyperlink : hyperlinks.entrySet()) {
+                if (!loadedHyperlinks.containsKey(hyperlink.getKey())) {
+                    changes.addedHyperlinks.put(hyperlink.getKey(),
+                            hyperlink.getValue());
+                }
+            }
+            for (String location : loadedHyperlinks.keySet()) {
+                if (!hyperlinks.containsKey(location)) {
+                    changes.removedHyperlinks.add(location);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Applies the changes to the latest revision of the workitem. A field
+     * changed by another source since the changes were recorded is left as
+     * is, and reported in the messages.
+     * 
+     * @param latest
+     * @param messages
+     */
+    void applyTo(WorkItem latest, ValidationMessages messages) {
+        FieldCollection latestFields = latest.getFields();
+        for (Map.Entry<String, Object[]> entry : fields.entrySet()) {
+            String fieldName = entry.getKey();
+            if (!latestFields.contains(fieldName)) {
+                continue;
+            }
+            Field field = latestFields.getField(fieldName);
+            Object original = entry.getValue()[0];
+            Object intended = entry.getValue()[1];
+            Object current = field.getValue();
+            if (fieldName.equals(TFSMapper.TFS_HISTORY)
+                    || equal(current, original)) {
+                field.setValue(intended);
+            } else if (!equal(current, intended)) {
+                logger.info("Not updating " + fieldName + " of workitem "
+                        + latest.getID() + ", changed by other source");
+                messages.addMessage("Field " + fieldName
+                        + " was changed by other source, not updated.");
+            }
+        }
+
+        if (addedHyperlinks.isEmpty() && removedHyperlinks.isEmpty()) {
+            return;
+        }
+        LinkCollection links = latest.getLinks();
+        List<Link> links2remove = new ArrayList<>();
+        Map<String, String> links2add = new HashMap<>(addedHyperlinks);
+        for (Link link : links) {
+            if (link instanceof Hyperlink) {
+                String location = ((Hyperlink) link).getLocation();
+                links2add.remove(location);
+                if (removedHyperlinks.contains(location)) {
+                    links2remove.add(link);
+                }
+            }
+        }
+        for (Link link : links2remove) {
+            links.remove(link);
+        }
+        for (Map.Entry<String, String> link : links2add.entrySet()) {
+            links.add(LinkFactory.newHyperlink(link.getKey(), link.getValue(),
+                    false));
+        }
+    }
+
+    // TFS returns null or "" for an empty field
+    private static boolean equal(Object a, Object b) {
+        if (a == null || "".equals(a)) {
+            return b == null || "".equals(b);
+        }
+        return a.equals(b);
+    }
+}
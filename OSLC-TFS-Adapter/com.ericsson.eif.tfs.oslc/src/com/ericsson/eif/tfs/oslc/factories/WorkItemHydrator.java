@@ -0,0 +1,203 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.microsoft.tfs.core.clients.workitem.CoreFieldReferenceNames;
+import com.microsoft.tfs.core.clients.workitem.WorkItem;
+import com.microsoft.tfs.core.clients.workitem.WorkItemClient;
+import com.microsoft.tfs.core.clients.workitem.fields.FieldDefinitionCollection;
+import com.microsoft.tfs.core.clients.workitem.query.WorkItemCollection;
+
+/**
+ * Fetches {@link WorkItem}s for a list of ids in chunks, instead of one
+ * round trip to TFS per id. Chunks are run on the supplied executor, so the
+ * number of chunks in flight towards TFS is bounded by the size of that
+ * executor. The result is returned in the order of the requested ids.
+ * <p>
+ * The work items are partial: a chunk only gets the fields selected by the
+ * source, see {@link #createSource(WorkItemClient, Collection)}. Anything
+ * else, e.g. other fields, the links (the hyperlinks mapped to
+ * ecm:attachment) or the revisions, can not be selected in a query and is
+ * still loaded by TFS per work item, one round trip each, when accessed.
+ */
+public class WorkItemHydrator {
+
+    static Logger logger = Logger.getLogger(WorkItemHydrator.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 200;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * Source of work items - one call is expected to be one round trip to
+     * TFS. Allows a stand-in to be used when measuring the hydration.
+     */
+    public interface WorkItemSource {
+        List<WorkItem> getWorkItems(int[] ids);
+    }
+
+    private final WorkItemSource source;
+    private final int batchSize;
+    private final ExecutorService executor;
+
+    public WorkItemHydrator(WorkItemSource source, int batchSize,
+            ExecutorService executor) {
+        this.source = source;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a source fetching the work items with a single WIQL query per
+     * chunk, selecting the given fields. Fields not known by the collection
+     * are left out of the query. The links of the work items are not part of
+     * the query.
+     *
+     * @param workItemClient
+     * @param fields
+     * @return
+     */
+    public static WorkItemSource createSource(
+            final WorkItemClient workItemClient, Collection<String> fields) {
+        FieldDefinitionCollection definitions = workItemClient
+                .getFieldDefinitions();
+        StringBuilder select = new StringBuilder(CoreFieldReferenceNames.ID);
+        for (String field : fields) {
+            if (!field.equals(CoreFieldReferenceNames.ID)
+                    && definitions.contains(field)) {
+                select.append(", ").append(field);
+            }
+        }
+        final String wiqlQuery = "Select " + select + " from WorkItems";
+        logger.debug("Hydration query: " + wiqlQuery);
+
+        return new WorkItemSource() {
+            @Override
+            public List<WorkItem> getWorkItems(int[] ids) {
+                WorkItemCollection workItems = workItemClient.query(ids,
+                        wiqlQuery);
+                List<WorkItem> workItemList = new ArrayList<>(workItems.size());
+                for (int i = 0; i < workItems.size(); i++) {
+                    workItemList.add(workItems.getWorkItem(i));
+                }
+                return workItemList;
+            }
+        };
+    }
+
+    /**
+     * Gets the work items for the ids, in the same order as the ids. Ids no
+     * longer found in TFS are left out.
+     *
+     * @param ids
+     * @return
+     */
+    public List<WorkItem> getWorkItems(int[] ids) {
+        return getWorkItems(source, ids);
+    }
+
+    /**
+     * Gets the work items for the ids from the given source, e.g. one
+     * selecting only some of the fields - see
+     * {@link #createSource(WorkItemClient, Collection)}.
+     *
+     * @param source
+     * @param ids
+     * @return
+     */
+    public List<WorkItem> getWorkItems(final WorkItemSource source, int[] ids) {
+        if (ids.length <= batchSize) {
+            return order(ids, source.getWorkItems(ids));
+        }
+
+        List<Future<List<WorkItem>>> chunks = new ArrayList<>();
+        for (int from = 0; from < ids.length; from += batchSize) {
+            final int[] chunk = Arrays.copyOfRange(ids, from,
+                    Math.min(from + batchSize, ids.length));
+            chunks.add(executor.submit(new Callable<List<WorkItem>>() {
+                @Override
+                public List<WorkItem> call() {
+                    return order(chunk, source.getWorkItems(chunk));
+                }
+            }));
+        }
+
+        List<WorkItem> workItemList = new ArrayList<>(ids.length);
+        try {
+            for (Future<List<WorkItem>> chunk : chunks) {
+                workItemList.addAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            cancel(chunks);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while getting workitems", e);
+        } catch (ExecutionException e) {
+            cancel(chunks);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return workItemList;
+    }
+
+    private static void cancel(List<Future<List<WorkItem>>> chunks) {
+        for (Future<List<WorkItem>> chunk : chunks) {
+            chunk.cancel(true);
+        }
+    }
+
+    // A query by ids does not guarantee the order of the ids
+    private static List<WorkItem> order(int[] ids, List<WorkItem> workItems) {
+        Map<Integer, WorkItem> byId = new HashMap<>();
+        for (WorkItem workItem : workItems) {
+            byId.put(workItem.getID(), workItem);
+        }
+        List<WorkItem> ordered = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            WorkItem workItem = byId.get(id);
+            if (workItem != null) {
+                ordered.add(workItem);
+            }
+        }
+        return ordered;
+    }
+}
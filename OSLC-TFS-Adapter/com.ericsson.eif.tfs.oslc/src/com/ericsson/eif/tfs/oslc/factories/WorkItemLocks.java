@@ -0,0 +1,217 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+
+/**
+ * Locks serializing the writes to a workitem, so that concurrent updates of
+ * the same workitem are applied one after the other, in the order they
+ * arrived, instead of failing each other's save. Writes to other workitems
+ * go on in parallel.
+ * <p>
+ * The locks are striped: a key (workitem id) maps to one of a fixed number
+ * of fair locks, so that no lock need be created or removed per workitem.
+ * Keys sharing a stripe are serialized too. The wait for the locks is
+ * measured, see {@link WorkItemLocksMBean}.
+ */
+public class WorkItemLocks implements WorkItemLocksMBean {
+
+    static Logger logger = Logger.getLogger(WorkItemLocks.class);
+
+    public static final int DEFAULT_STRIPES = 256;
+    public static final int DEFAULT_TIMEOUT = 30;
+    public static final String OBJECT_NAME = "com.ericsson.eif.tfs.oslc:type=WorkItemLocks";
+
+    private static WorkItemLocks instance;
+
+    private final ReentrantLock[] stripes;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+
+    public WorkItemLocks(int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    public static synchronized WorkItemLocks getInstance() {
+        if (instance == null) {
+            instance = new WorkItemLocks(TFSAdapterManager.getLockStripes());
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(instance, name);
+                }
+            } catch (JMException e) {
+                logger.warn("Failed to register " + OBJECT_NAME, e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the locks - called when the adapter is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                // not registered
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Takes the lock of the key, waiting as long as needed
+     * 
+     * @param key
+     * @return the lock taken, to unlock when done
+     */
+    public Lock lock(String key) {
+        ReentrantLock lock = getStripe(key);
+        long start = startWait();
+        lock.lock();
+        endWait(start);
+        return lock;
+    }
+
+    /**
+     * Takes the lock of the key, unless not free within the timeout. Used
+     * when already holding the lock of another key, where waiting without
+     * timeout could deadlock.
+     * 
+     * @param key
+     * @return the lock taken, to unlock when done, or null if not taken
+     */
+    public Lock tryLock(String key) {
+        ReentrantLock lock = getStripe(key);
+        long start = startWait();
+        boolean locked = false;
+        try {
+            locked = lock.tryLock(TFSAdapterManager.getLockTimeout(),
+                    TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!locked) {
+            waiting.decrementAndGet();
+            timedOut.incrementAndGet();
+            logger.warn("Timed out waiting for the lock of workitem " + key);
+            return null;
+        }
+        endWait(start);
+        return lock;
+    }
+
+    private ReentrantLock getStripe(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+    private long startWait() {
+        int depth = waiting.incrementAndGet();
+        int max = maxWaiting.get();
+        while (depth > max && !maxWaiting.compareAndSet(max, depth)) {
+            max = maxWaiting.get();
+        }
+        return System.nanoTime();
+    }
+
+    private void endWait(long start) {
+        long wait = System.nanoTime() - start;
+        waiting.decrementAndGet();
+        totalWait.addAndGet(wait);
+        long max = maxWait.get();
+        while (wait > max && !maxWait.compareAndSet(max, wait)) {
+            max = maxWait.get();
+        }
+        long count = acquired.incrementAndGet();
+        if (logger.isDebugEnabled() && count % 1000 == 0) {
+            logger.debug("Workitem locks: " + count + " acquired, average wait "
+                    + getAverageWaitMillis() + " ms, max wait "
+                    + getMaxWaitMillis() + " ms, max queue depth "
+                    + maxWaiting.get());
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return maxWaiting.get();
+    }
+
+    @Override
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    @Override
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long count = acquired.get();
+        return count == 0 ? 0 : totalWait.get() / 1e6 / count;
+    }
+
+    @Override
+    public double getMaxWaitMillis() {
+        return maxWait.get() / 1e6;
+    }
+}
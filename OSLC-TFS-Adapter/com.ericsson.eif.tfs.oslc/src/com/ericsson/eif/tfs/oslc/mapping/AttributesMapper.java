@@ -28,30 +28,29 @@ package com.ericsson.eif.tfs.oslc.mapping;
 */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLStreamException;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.apache.log4j.Logger;
 
 import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
 import com.ericsson.eif.tfs.oslc.mapping.BiDirectionalMap.Direction;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 
 /** 
@@ -59,12 +58,21 @@ import com.google.common.collect.Multimap;
  * in a {@link BiDirectionalMap}
  * See the file attribute_mapping.xml for a detailed description of the 
  * mapping syntax 
+ * 
+ * After loading, the properties are compiled into an immutable {@link Plan}
+ * that serves the lookups, so that lookups don't touch the maps being loaded
+ * and can be done concurrently. The plan in use is part of the
+ * {@link MappingState}, that a {@link #reload(MappingState)} replaces.
  */
-public class AttributesMapper {
+public class AttributesMapper implements ReloadableMapping {
+
+    static Logger logger = Logger.getLogger(AttributesMapper.class);
 
     private Multimap<String, Property> forwardMap; 
     private Multimap<String, Property> inverseMap;
     private String attributesMappingFile;
+    // The files loaded, in order, to be able to reload them
+    private final List<File> mappingFiles = new ArrayList<>();
     
     private static AttributesMapper instance;
     
@@ -142,41 +150,87 @@ public class AttributesMapper {
         return inverseMap.entries().iterator();
     }
     
+    /**
+     * The properties mapping the given ECM property to TFS, i.e. with
+     * direction FORWARD or BIDIRECTIONAL, in the mapping in use. To map a
+     * request, look up in the {@link MappingContext#getMapping()} of it.
+     * 
+     * @param key
+     * @return an immutable list, or null if the key is not mapped
+     */
     public Collection<Property> getForwardProperties(String key) {
-        // direction can be either FORWARD or BIDIRECTIONAL
-        if (forwardMap.containsKey(key)) {
-            Collection<Property> properties = forwardMap.get(key);
-            for (Iterator<Property> it = properties.iterator(); it.hasNext();) {
-                if (it.next().getDirection().equals(Direction.INVERSE)) {
-                    it.remove();
-                }
-            }
-            return properties;
-        }
-        return null;
+        return MappingState.get().getForwardProperties(key);
     }
-    
+
+    /**
+     * The properties mapping the given TFS field to ECM, i.e. with direction
+     * INVERSE or BIDIRECTIONAL
+     * 
+     * @param key
+     * @return an immutable list, or null if the key is not mapped
+     */
     public Collection<Property> getInverseProperties(String key) {
-        // direction can be either INVERSE or BIDIRECTIONAL
-        if (inverseMap.containsKey(key)) {
-            Collection<Property> properties = inverseMap.get(key);
-            for (Iterator<Property> it = properties.iterator(); it.hasNext();) {
-                if (it.next().getDirection().equals(Direction.FORWARD)) {
-                    it.remove();
-                }
-            }
-            return properties;
-        }
-        return null;
+        return MappingState.get().getInverseProperties(key);
+    }
+
+    /**
+     * Gets the property mapping an ECM property forward to the given TFS
+     * field, used to find the ECM value a constrained mapping depends on.
+     * 
+     * @param value the name of the TFS field
+     * @return the property, or null if no property maps to the field
+     */
+    public Property getForwardPropertyByValue(String value) {
+        return MappingState.get().getForwardPropertyByValue(value);
     }
     
     /**
-     * Reloads mapping from file
-     * Will not reload more often than 1/minute
-     * Checks file timestamp and reloads if the file has been modified
+     * Gets the mapping of an ECM property that depends on other ECM
+     * properties, see "depends" in customer_mapping.xml.
+     * 
+     * @param key
+     *            the ECM property
+     * @return the mapping of the combined properties, or null if the
+     *         property does not depend on other properties
      */
-    public void reload() {
-        // TODO - Sprint3?
+    public CompositeMapping getCompositeMapping(String key) {
+        return MappingState.get().getCompositeMapping(key);
+    }
+    
+    /**
+     * The TFS side of all loaded properties, i.e. the names of the fields
+     * referenced by the mapping. Can contain names that are resolved in code
+     * and not present as fields in TFS.
+     * @return
+     */
+    public Set<String> getMappedFieldNames() {
+        return MappingState.get().getMappedFieldNames();
+    }
+
+    @Override
+    public synchronized List<File> getMappingFiles() {
+        return new ArrayList<>(mappingFiles);
+    }
+
+    /**
+     * Reloads the mapping from the files loaded so far, see
+     * {@link #getMappingFiles()}. The files are parsed into a new plan, so
+     * a faulty file leaves the current mapping in use.
+     */
+    @Override
+    public synchronized MappingState reload(MappingState state)
+            throws XMLStreamException, IOException {
+        AttributesMapper reloaded = new AttributesMapper();
+        Plan plan = Plan.EMPTY;
+        for (File file : mappingFiles) {
+            plan = reloaded.parse(file, true);
+        }
+        if (plan.forward.isEmpty()) {
+            throw new IOException("No properties found in " + mappingFiles);
+        }
+        forwardMap = reloaded.forwardMap;
+        inverseMap = reloaded.inverseMap;
+        return state.with(plan);
     }
 
     /**
@@ -195,7 +249,7 @@ public class AttributesMapper {
      * 
      * @param filename
      */
-    public void addMappingRules(String filename, boolean add) {
+    public synchronized void addMappingRules(String filename, boolean add) {
         try {
             File inputFile = new File(filename);
             if (!inputFile.exists()) {
@@ -208,81 +262,112 @@ public class AttributesMapper {
                                     + filename);
                 }
             }
-            load(new FileInputStream(inputFile), add);
-        } catch (XPathExpressionException | ParserConfigurationException
-                | SAXException | IOException e) {
-            e.printStackTrace();
+            load(inputFile, add);
+            if (!add) {
+                mappingFiles.clear();
+            }
+            mappingFiles.add(inputFile);
+        } catch (XMLStreamException | IOException e) {
+            logger.error("Failed to load mapping file " + filename + ": "
+                    + e.getMessage(), e);
         }
     }
 
 
     /**
-     * Configure mapping rules by parsing the input file
+     * Configure mapping rules by parsing the input file. The file is read
+     * as a stream in one pass, without building a document of it.
      * 
      * @param input
      *            file from which to read the mapping rules
      * @param add
      *            if true, add the rules to the existing ones. Else, reset
      *            before loading
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
-     * @throws XPathExpressionException
+     * @throws XMLStreamException
      */
-    public void load(InputStream input, boolean add)
-            throws ParserConfigurationException, SAXException, IOException,
-            XPathExpressionException {
+    public synchronized void load(InputStream input, boolean add)
+            throws XMLStreamException {
         if (!add) {
             // clear existing entries
             forwardMap.clear();
             inverseMap.clear();
-        }        
-        // initialize dom and xpath factory
-        DocumentBuilderFactory domFactory = DocumentBuilderFactory
-                .newInstance();
-        domFactory.setNamespaceAware(true);
-        DocumentBuilder builder = domFactory.newDocumentBuilder();
-        Document doc = builder.parse(input);
-        XPath xpath = XPathFactory.newInstance().newXPath();
+        }
+        MappingReader.read(input, new PropertyHandler());
+        MappingState.set(new Plan(forwardMap, inverseMap));
+    }
 
-        // locate all property nodes:
-        NodeList propertyNodes = (NodeList) xpath.evaluate(
-                "//mapping//property", doc,
-                XPathConstants.NODESET);
-        
-        for (int i = 0; i < propertyNodes.getLength(); i++) {
-            Node node = propertyNodes.item(i);
-            if (processThis(node)) {
-                Property property = processProperty(node);
-                NodeList children = node.getChildNodes();
-                for (int j = 0; j < children.getLength(); j++) {
-                    Node child = children.item(j);
-                    switch (getNodeType(child.getNodeName())) {
-                    case DEFAULT:
-                        processDefault(child, property);
-                        break;
-                    case DEPENDS:
-                        processDepends(child, property);
-                        break;
-                    case MAP:
-                        processMap(child, property);
-                        break;
-                    case USE:
-                        processUse(child, property);
-                    default:
-                        break;
-                    }
+    // As load(InputStream, boolean), from the snapshot if in use
+    private void load(File file, boolean add) throws XMLStreamException,
+            IOException {
+        MappingState.set(parse(file, add));
+    }
+
+    // Adds the rules of the file, and compiles all rules into a plan
+    private Plan parse(File file, boolean add) throws XMLStreamException,
+            IOException {
+        if (!add) {
+            forwardMap.clear();
+            inverseMap.clear();
+        }
+        MappingReader.read(file, new PropertyHandler());
+        return new Plan(forwardMap, inverseMap);
+    }
+
+    /**
+     * Adds the property elements anywhere below a mapping element, and
+     * their child elements
+     */
+    private class PropertyHandler implements MappingHandler {
+        private int depth = 0;
+        private int mappingDepth = -1;
+        private int propertyDepth = -1;
+        private Property property;
+
+        @Override
+        public void startElement(String name, String[] attributes) {
+            depth++;
+            if (mappingDepth < 0) {
+                if (name.equals("mapping")) {
+                    mappingDepth = depth;
+                }
+            } else if (property == null) {
+                if (name.equals("property")) {
+                    property = processProperty(attributes);
+                    propertyDepth = depth;
+                }
+            } else if (depth == propertyDepth + 1) {
+                switch (getNodeType(name)) {
+                case DEFAULT:
+                    processDefault(attributes, property);
+                    break;
+                case DEPENDS:
+                    processDepends(attributes, property);
+                    break;
+                case MAP:
+                    processMap(attributes, property);
+                    break;
+                case USE:
+                    processUse(attributes, property);
+                    break;
+                default:
+                    break;
                 }
             }
         }
+
+        @Override
+        public void endElement() {
+            if (depth == propertyDepth) {
+                property = null;
+                propertyDepth = -1;
+            } else if (depth == mappingDepth) {
+                mappingDepth = -1;
+            }
+            depth--;
+        }
     }
     
-    private boolean processThis(Node node) {
-        return true; //node.getClass().getSimpleName().startsWith("DeferredText");
-    }
-    
-    private Property processProperty(Node node) {
-        NamedNodeMap attributes = node.getAttributes();
+    private Property processProperty(String[] attributes) {
         String key = null;
         String value = null;
         String forward = "";
@@ -290,32 +375,32 @@ public class AttributesMapper {
         boolean notify = false;
         String forwardConstrainedBy = null;
         String inverseConstrainedBy = null;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            String attribute = attributes[i + 1];
+            switch (attributes[i]) {
             case "key":
-                key = attribute.getNodeValue();
+                key = attribute;
                 break;
             case "value":
-                value = attribute.getNodeValue();
+                value = attribute;
                 break;
             case "forward":
-                forward = attribute.getNodeValue();
+                forward = attribute;
                 break;
             case "inverse":
-                inverse = attribute.getNodeValue();
+                inverse = attribute;
                 break;
             case "notifyChange":
-                notify = Boolean.parseBoolean(attribute.getNodeValue());
+                notify = Boolean.parseBoolean(attribute);
                 break;
             case "forwardConstrainedBy":
-                forwardConstrainedBy = attribute.getNodeValue();
+                forwardConstrainedBy = attribute;
                 break;
             case "inverseConstrainedBy":
-                inverseConstrainedBy = attribute.getNodeValue();
+                inverseConstrainedBy = attribute;
                 break;
             default:
-                System.out.println("TODO->" + attribute.getNodeType());
+                logUnknownAttribute("property", attributes, i);
                 break;
             }
         }
@@ -333,18 +418,16 @@ public class AttributesMapper {
         return property;
     }
     
-    private void processDefault(Node node, Property parent) {
-        NamedNodeMap attributes = node.getAttributes();
+    private void processDefault(String[] attributes, Property parent) {
         String key = null;
         String value = null;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            switch (attributes[i]) {
             case "inverseValue":
-                key = attribute.getNodeValue();
+                key = attributes[i + 1];
                 break;
             case "forwardValue":
-                value = attribute.getNodeValue();
+                value = attributes[i + 1];
                 break;
             default:
                 break;
@@ -353,15 +436,11 @@ public class AttributesMapper {
         parent.setDefault(value, key);
     }
 
-    private void processDepends(Node node, Property parent) {
-        NamedNodeMap attributes = node.getAttributes();
-        String dependency = "";
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+    private void processDepends(String[] attributes, Property parent) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            switch (attributes[i]) {
             case "on":
-                dependency = attribute.getNodeValue();
-                parent.addDependency(dependency);
+                parent.addDependency(attributes[i + 1]);
                 break;
             default:
                 break;
@@ -369,44 +448,39 @@ public class AttributesMapper {
         }
     }
     
-    private void processMap(Node node, Property parent) {
-        NamedNodeMap attributes = node.getAttributes();
+    private void processMap(String[] attributes, Property parent) {
         String value = null;
         String to = null;
         String forward = "false";
         String inverse = "false";
         String forwardConstraintValue = null;
         String inverseConstraintValue = null;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            String attribute = attributes[i + 1];
+            switch (attributes[i]) {
             case "key":
-                value = attribute.getNodeValue();
+                value = attribute;
                 break;
             case "value":
-                to = attribute.getNodeValue();
+                to = attribute;
                 break;
             case "forward":
-                forward = attribute.getNodeValue();
+                forward = attribute;
                 break;
             case "inverse":
-                inverse = attribute.getNodeValue();
+                inverse = attribute;
                 break;
             case "forwardWhen":
-                forwardConstraintValue = attribute.getNodeValue();
+                forwardConstraintValue = attribute;
                 forward = "true";
                 break;
             case "inverseWhen":
-                inverseConstraintValue = attribute.getNodeValue();
+                inverseConstraintValue = attribute;
                 inverse = "true";
                 break;
-            case "default":
-                System.out.println("Default");
-                break;
             default:
-                // this case is not handled - print out here:
-                System.out.println(attribute.getNodeName() + " : " + attribute.getNodeValue());
-                System.out.println();
+                // not handled, e.g. "default" - use a default element
+                logUnknownAttribute("map", attributes, i);
                 break;
             }
         }
@@ -420,16 +494,14 @@ public class AttributesMapper {
                 inverseConstraintValue);
     }
     
-    private void processUse(Node node, Property parent) {
-        NamedNodeMap attributes = node.getAttributes();
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+    private void processUse(String[] attributes, Property parent) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            switch (attributes[i]) {
             case "name":
-                parent.setUseMapping(attribute.getNodeValue());
+                parent.setUseMapping(attributes[i + 1]);
                 break;
             case "key":
-                parent.setUseKey(attribute.getNodeValue());
+                parent.setUseKey(attributes[i + 1]);
                 break;
             default:
                 break;
@@ -437,4 +509,105 @@ public class AttributesMapper {
         }
     }
 
+    private static void logUnknownAttribute(String element,
+            String[] attributes, int i) {
+        logger.warn("Ignored attribute " + attributes[i] + "=\""
+                + attributes[i + 1] + "\" of " + element);
+    }
+
+    /**
+     * The loaded properties compiled for lookup. Never changed once created,
+     * a load creates a new plan.
+     */
+    static final class Plan {
+        static final Plan EMPTY = new Plan(
+                HashMultimap.<String, Property> create(),
+                HashMultimap.<String, Property> create());
+
+        final ImmutableMap<String, ImmutableList<Property>> forward;
+        final ImmutableMap<String, ImmutableList<Property>> inverse;
+        final ImmutableMap<String, Property> forwardByValue;
+        final ImmutableSet<String> mappedFieldNames;
+        final ImmutableMap<String, CompositeMapping> composites;
+
+        Plan(Multimap<String, Property> forwardMap,
+                Multimap<String, Property> inverseMap) {
+            forward = compile(forwardMap, Direction.INVERSE);
+            inverse = compile(inverseMap, Direction.FORWARD);
+
+            // first forward property per TFS field, in the order that
+            // the constraint lookup has always used
+            Map<String, Property> byValue = new HashMap<>();
+            for (Property property : forwardMap.values()) {
+                if (property.getValue() != null
+                        && !byValue.containsKey(property.getValue())) {
+                    byValue.put(property.getValue(), property);
+                }
+            }
+            forwardByValue = ImmutableMap.copyOf(byValue);
+
+            Set<String> fieldNames = new HashSet<>();
+            for (Property property : forwardMap.values()) {
+                if (property.getValue() != null) {
+                    fieldNames.add(property.getValue().trim());
+                }
+            }
+            for (String value : inverseMap.keySet()) {
+                if (value != null) {
+                    fieldNames.add(value.trim());
+                }
+            }
+            fieldNames.remove("");
+            mappedFieldNames = ImmutableSet.copyOf(fieldNames);
+
+            // properties that depend on others are mapped together, as one
+            // mapping per TFS field
+            Multimap<String, Property> dependent = LinkedHashMultimap.create();
+            for (Property property : forwardMap.values()) {
+                if (property.getValue() != null
+                        && !property.getDirection().equals(Direction.INVERSE)
+                        && !property.getDependencies().isEmpty()) {
+                    dependent.put(property.getValue(), property);
+                }
+            }
+            Map<String, CompositeMapping> byKey = new HashMap<>();
+            for (Entry<String, Collection<Property>> entry : dependent.asMap()
+                    .entrySet()) {
+                CompositeMapping composite = new CompositeMapping(
+                        entry.getKey(), entry.getValue());
+                for (Property property : entry.getValue()) {
+                    byKey.put(property.getKey(), composite);
+                    for (String dependency : property.getDependencies()) {
+                        if (!composite.getKeys().contains(dependency)) {
+                            logger.warn(property.getKey() + " depends on "
+                                    + dependency + " that does not map to "
+                                    + entry.getKey());
+                        }
+                    }
+                }
+            }
+            composites = ImmutableMap.copyOf(byKey);
+        }
+
+        private static ImmutableMap<String, ImmutableList<Property>> compile(
+                Multimap<String, Property> map, Direction excluded) {
+            ImmutableMap.Builder<String, ImmutableList<Property>> builder = ImmutableMap
+                    .builder();
+            for (Entry<String, Collection<Property>> entry : map.asMap()
+                    .entrySet()) {
+                if (entry.getKey() == null) {
+                    continue;
+                }
+                ImmutableList.Builder<Property> properties = ImmutableList
+                        .builder();
+                for (Property property : entry.getValue()) {
+                    if (!property.getDirection().equals(excluded)) {
+                        properties.add(property);
+                    }
+                }
+                builder.put(entry.getKey(), properties.build());
+            }
+            return builder.build();
+        }
+    }
 }
@@ -29,11 +29,16 @@ package com.ericsson.eif.tfs.oslc.mapping;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 
 /**
@@ -41,6 +46,10 @@ import com.google.common.collect.Multimap;
  * properly implemented as a {@link Map} but rather just as to {@link Map}s, one
  * for the "forward" direction and one for the "inverse" direction.
  * 
+ * The mapped values are also indexed per key and constraint value as entries
+ * are added, so that a lookup returns a shared immutable list and does not
+ * need to look at the constraints of each value.
+ * 
  */
 public class BiDirectionalMap {
     
@@ -56,25 +65,93 @@ public class BiDirectionalMap {
         public String getValue() {
             return value;
         }
-        
-        public boolean matches(String constraintValue) {
-            if (this.constraintValue == null) {
-                // no constraints
-                return true;
+    }
+
+    /**
+     * The values for one direction indexed for lookup. For each key the
+     * values in the order added: all of them, the ones without constraint,
+     * and per constraint value the ones without constraint or with a
+     * constraint listing that value.
+     */
+    private static class ValueTable {
+        private final Map<String, ImmutableList<String>> all = new HashMap<>();
+        private final Map<String, ImmutableList<String>> unconstrained = new LinkedHashMap<>();
+        private final Map<String, Map<String, ImmutableList<String>>> constrained = new HashMap<>();
+
+        void add(String key, String value, String constraint) {
+            all.put(key, append(all.get(key), value));
+            Map<String, ImmutableList<String>> byConstraint = constrained
+                    .get(key);
+            if (byConstraint == null) {
+                byConstraint = new HashMap<>();
+                constrained.put(key, byConstraint);
             }
-            for (String constraint : this.constraintValue.split(",")) {
-                if (constraint.equals(constraintValue)) {
-                    return true;
+            if (constraint == null) {
+                unconstrained.put(key, append(unconstrained.get(key), value));
+                for (Map.Entry<String, ImmutableList<String>> entry : byConstraint
+                        .entrySet()) {
+                    entry.setValue(append(entry.getValue(), value));
                 }
+                return;
+            }
+            // The constraint can consist of multiple comma separated values
+            Set<String> constraintValues = new LinkedHashSet<>(
+                    Arrays.asList(constraint.split(",")));
+            for (String constraintValue : constraintValues) {
+                ImmutableList<String> values = byConstraint
+                        .get(constraintValue);
+                if (values == null) {
+                    values = unconstrained.get(key);
+                }
+                byConstraint.put(constraintValue, append(values, value));
+            }
+        }
+
+        /**
+         * @return the values, or null if the key is not mapped
+         */
+        List<String> get(String key, String constraintValue) {
+            if (constraintValue == null) {
+                return all.get(key);
+            }
+            Map<String, ImmutableList<String>> byConstraint = constrained
+                    .get(key);
+            if (byConstraint == null) {
+                return null;
+            }
+            List<String> values = byConstraint.get(constraintValue);
+            if (values == null) {
+                values = unconstrained.get(key);
             }
-            return false;
+            return values != null ? values : ImmutableList.<String> of();
+        }
+
+        boolean isEmpty() {
+            return all.isEmpty();
+        }
+
+        void clear() {
+            all.clear();
+            unconstrained.clear();
+            constrained.clear();
+        }
+
+        private static ImmutableList<String> append(
+                ImmutableList<String> values, String value) {
+            if (values == null) {
+                return ImmutableList.of(value);
+            }
+            return ImmutableList.<String> builder().addAll(values).add(value)
+                    .build();
         }
     }
     
     private Multimap<String, Value> forwardMap; 
     private Multimap<String, Value> inverseMap; 
-    private String forwardDefaultValue;
-    private String inverseDefaultValue;
+    private final ValueTable forwardTable = new ValueTable();
+    private final ValueTable inverseTable = new ValueTable();
+    private List<String> forwardDefaultValue;
+    private List<String> inverseDefaultValue;
 
     public enum Direction {
         FORWARD, INVERSE, BIDIRECTIONAL
@@ -116,10 +193,12 @@ public class BiDirectionalMap {
         case FORWARD:
             Value forwardValue = new Value(value, forwardConstraintValue);
             forwardMap.put(key, forwardValue);
+            forwardTable.add(key, value, forwardConstraintValue);
             break;
         case INVERSE:
             Value inverseValue = new Value(key, inverseConstraintValue);
             inverseMap.put(value, inverseValue);
+            inverseTable.add(value, key, inverseConstraintValue);
             break;
         case BIDIRECTIONAL:
         default:
@@ -127,6 +206,8 @@ public class BiDirectionalMap {
             Value inverseValue1 = new Value(key, inverseConstraintValue);
             forwardMap.put(key, forwardValue1);
             inverseMap.put(value, inverseValue1);
+            forwardTable.add(key, value, forwardConstraintValue);
+            inverseTable.add(value, key, inverseConstraintValue);
             break;
         }
     }
@@ -138,6 +219,8 @@ public class BiDirectionalMap {
     public void clear() {
         forwardMap.clear();
         inverseMap.clear();
+        forwardTable.clear();
+        inverseTable.clear();
     }
     
     /**
@@ -153,41 +236,11 @@ public class BiDirectionalMap {
      *            containing {@link Property} to determine which mapping to use
      *            The constraintValue can consist of multiple comma separated
      *            values, e.g. "Active,Resolved"
-     * @return the mapped value or <b>null</b> if no mapping found
+     * @return the mapped value or <b>null</b> if no mapping found. The list
+     *         is immutable.
      */
     public List<String> getForward(String key, String constraintValue) {
-    	// If null key use the default value if this is defined
-        if (key == null) {
-            if (forwardDefaultValue != null) {
-            	return Arrays.asList(forwardDefaultValue);
-            }
-            else {
-                return null;
-            }
-        }
-    	
-        if (forwardMap.keys().isEmpty()) {
-            // no translation - this is a one-one mapping:
-            return Arrays.asList(key);
-        } else if (forwardMap.containsKey(key)) {
-            Collection<Value> values = forwardMap.get(key);
-            List<String> stringValues = new ArrayList<>();
-            for (Value v : values) {
-                if (constraintValue == null) {
-                    stringValues.add(v.getValue());
-                } else {
-                    if (v.matches(constraintValue)) {
-                        stringValues.add(v.getValue());
-                    }
-                }
-            }
-            return stringValues;
-        } else {
-          if (forwardDefaultValue != null) {
-              return Arrays.asList(forwardDefaultValue);
-          }
-        }
-        return null; // mapping failed
+        return get(forwardTable, forwardDefaultValue, key, constraintValue);
     }
 
     /**
@@ -198,41 +251,77 @@ public class BiDirectionalMap {
      * @param constraintValue
      *            to be compared with the value of the contrainedBy of the
      *            containing {@link Property} to determine which mapping to use
-     * @return the mapped value or <b>null</b> if no mapping found
+     * @return the mapped value or <b>null</b> if no mapping found. The list
+     *         is immutable.
      */
     public List<String> getInverse(String key, String constraintValue) {
-    	// If null key use the default value if this is defined
+        return get(inverseTable, inverseDefaultValue, key, constraintValue);
+    }
+
+    /**
+     * The forward entries without constraint, in the order they were added.
+     * Defaults are not included.
+     * 
+     * @return key -> mapped values, unmodifiable
+     */
+    Map<String, List<String>> getUnconstrainedForward() {
+        return Collections.<String, List<String>> unmodifiableMap(
+                forwardTable.unconstrained);
+    }
+
+    private static List<String> get(ValueTable table,
+            List<String> defaultValue, String key, String constraintValue) {
+        // If null key use the default value if this is defined
         if (key == null) {
-            if (inverseDefaultValue != null) {
-            	return Arrays.asList(inverseDefaultValue);
-            }
-            else {
-                return null;
-            }
+            return defaultValue;
         }
-        
-        if (inverseMap.keys().isEmpty()) {
+
+        if (table.isEmpty()) {
             // no translation - this is a one-one mapping:
-            return Arrays.asList(key);
-        } else if (inverseMap.containsKey(key)) {
-            Collection<Value> values = inverseMap.get(key);
-            List<String> stringValues = new ArrayList<>();
-            for (Value v : values) {
-                if (constraintValue == null) {
-                    stringValues.add(v.getValue());
-                } else {
-                    if (v.matches(constraintValue)) {
-                        stringValues.add(v.getValue());
-                    }
-                }
+            return ImmutableList.of(key);
+        }
+        List<String> values = table.get(key, constraintValue);
+        if (values == null) {
+            return defaultValue; // mapping failed if no default
+        }
+        return values;
+    }
+    
+    /**
+     * Returns all keys that are mapped to the value in the inverse direction,
+     * i.e. the keys k for which {@link BiDirectionalMap#getInverse(String, String)}
+     * would return the value. Used to express a condition on the mapped value
+     * as a condition on the key.
+     * Returns <b>null</b> if the keys can not be determined, i.e. if the value
+     * is the inverse default value or the mapping of the value depends on a
+     * constraint or a wildcard.
+     * 
+     * @param value
+     * @return the keys or <b>null</b>
+     */
+    public List<String> getInverseKeys(String value) {
+        if (inverseDefaultValue != null
+                && value.equals(inverseDefaultValue.get(0))) {
+            return null;
+        }
+        if (inverseMap.keys().isEmpty()) {
+            // one-one mapping, unless all values map to the default
+            return inverseDefaultValue == null ? Arrays.asList(value) : null;
+        }
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Value> entry : inverseMap.entries()) {
+            Value v = entry.getValue();
+            if (entry.getKey().equals("*") || v.getValue().equals("*")) {
+                return null;
             }
-            return stringValues;
-        } else {
-            if (inverseDefaultValue != null) {
-                return Arrays.asList(inverseDefaultValue);
+            if (v.getValue().equals(value)) {
+                if (v.constraintValue != null) {
+                    return null;
+                }
+                keys.add(entry.getKey());
             }
         }
-        return null; // mapping failed
+        return keys;
     }
     
     @Override
@@ -241,11 +330,11 @@ public class BiDirectionalMap {
     }
     
     public void setForwardDefault(String value) {
-        forwardDefaultValue = value;
+        forwardDefaultValue = value != null ? ImmutableList.of(value) : null;
     }
 
     public void setInverseDefault(String value) {
-        inverseDefaultValue = value;
+        inverseDefaultValue = value != null ? ImmutableList.of(value) : null;
     }
 
     /**
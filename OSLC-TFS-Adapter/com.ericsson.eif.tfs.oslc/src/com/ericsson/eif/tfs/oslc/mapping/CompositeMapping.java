@@ -0,0 +1,174 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * A TFS field mapped from a combination of ECM properties that depend on
+ * each other, e.g. ecm:country, ecm:customer and ecm:site that together
+ * map to CustomersAffected (see "depends" in customer_mapping.xml).
+ * 
+ * Compiled at load time into a table from the combination of ECM values to
+ * the TFS value, so a mapping is a single lookup that does not depend on
+ * the order in which the ECM properties are mapped. Combinations mapping
+ * to more than one TFS value are reported when compiled, and the value
+ * mapped first by the ECM property first in name order is used.
+ */
+public class CompositeMapping {
+
+    static Logger logger = Logger.getLogger(CompositeMapping.class);
+
+    private final String fieldName;
+    private final ImmutableList<String> keys;
+    private final ImmutableMap<List<String>, String> table;
+    private final ImmutableMap<String, ImmutableSet<String>> knownValues;
+
+    /**
+     * @param fieldName
+     *            the TFS field
+     * @param properties
+     *            the forward properties mapping to the field
+     */
+    CompositeMapping(String fieldName, Collection<Property> properties) {
+        this.fieldName = fieldName;
+
+        // TFS value -> the ECM values mapping to it, per ECM property
+        Map<String, Multimap<String, String>> sources = new LinkedHashMap<>();
+        Set<String> targets = new LinkedHashSet<>();
+        ImmutableMap.Builder<String, ImmutableSet<String>> known = ImmutableMap
+                .builder();
+        List<Property> sorted = new ArrayList<>(properties);
+        Collections.sort(sorted, new Comparator<Property>() {
+            @Override
+            public int compare(Property p1, Property p2) {
+                return p1.getKey().compareTo(p2.getKey());
+            }
+        });
+        for (Property property : sorted) {
+            Multimap<String, String> byTarget = LinkedHashMultimap.create();
+            Map<String, List<String>> entries = property
+                    .getUnconstrainedForward();
+            for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+                for (String target : entry.getValue()) {
+                    // "*" maps the ECM value as is
+                    target = target.equals("*") ? entry.getKey() : target;
+                    byTarget.put(target, entry.getKey());
+                    targets.add(target);
+                }
+            }
+            sources.put(property.getKey(), byTarget);
+            known.put(property.getKey(),
+                    ImmutableSet.copyOf(entries.keySet()));
+        }
+        keys = ImmutableList.copyOf(sources.keySet());
+        knownValues = known.build();
+
+        Map<List<String>, String> combinations = new HashMap<>();
+        for (String target : targets) {
+            List<Set<String>> axes = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                axes.add(new LinkedHashSet<>(sources.get(key).get(target)));
+            }
+            for (List<String> combination : Sets.cartesianProduct(axes)) {
+                String existing = combinations.get(combination);
+                if (existing == null) {
+                    combinations.put(combination, target);
+                } else if (!existing.equals(target)) {
+                    logger.warn("Ambiguous mapping to " + fieldName + " for "
+                            + keys + " = " + combination + ": maps to both "
+                            + existing + " and " + target + ", will use "
+                            + existing);
+                }
+            }
+        }
+        table = ImmutableMap.copyOf(combinations);
+        logger.debug("Compiled mapping to " + fieldName + " from " + keys
+                + ": " + table.size() + " combinations");
+    }
+
+    /**
+     * @return the name of the TFS field
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * @return the ECM properties the field is mapped from, in the order
+     *         expected by {@link #get(List)}
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Checks if an ECM value is mapped at all, regardless of the values of
+     * the other ECM properties.
+     * 
+     * @param key
+     *            the ECM property
+     * @param value
+     * @return
+     */
+    public boolean isMapped(String key, String value) {
+        ImmutableSet<String> values = knownValues.get(key);
+        return value != null && values != null && values.contains(value);
+    }
+
+    /**
+     * Maps a combination of ECM values.
+     * 
+     * @param values
+     *            one value per ECM property, in the order of
+     *            {@link #getKeys()}
+     * @return the TFS value, or null if the combination is not mapped
+     */
+    public String get(List<String> values) {
+        return table.get(values);
+    }
+}
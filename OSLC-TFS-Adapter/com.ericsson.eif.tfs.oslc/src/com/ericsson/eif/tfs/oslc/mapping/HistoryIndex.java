@@ -0,0 +1,173 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.microsoft.tfs.core.clients.workitem.WorkItem;
+import com.microsoft.tfs.core.clients.workitem.revision.Revision;
+import com.microsoft.tfs.core.clients.workitem.revision.RevisionCollection;
+import com.microsoft.tfs.core.clients.workitem.revision.RevisionField;
+
+/**
+ * The entries in the History of workitems, so that an incoming entry can be
+ * checked against the History without reading all revisions of the
+ * workitem. Per workitem the entry texts and the [MH yyyy-mm-dd hh:mm:ss]
+ * tags the entries start with are kept, together with the number of
+ * revisions read. As revisions are only added to a workitem, only the new
+ * revisions are read when the workitem is checked again.
+ * <p>
+ * Several entries can be committed as one History value, separated by
+ * {@link #ENTRY_SEPARATOR}. Each of them is then indexed as an entry of its
+ * own, as well as the value as a whole.
+ * <p>
+ * The number of workitems kept is bounded, the least recently used are
+ * evicted first.
+ */
+public class HistoryIndex {
+
+    public static final int DEFAULT_SIZE = 1000;
+
+    /**
+     * Separates the entries merged into one History value
+     */
+    public static final String ENTRY_SEPARATOR = "\n[--- next entry ---]\n";
+
+    /**
+     * Matching the start of "[MH yyyy-mm-dd hh:mm:ss] Any message"
+     */
+    static final Pattern MH_PATTERN = Pattern
+            .compile("^\\[MH (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}])");
+
+    /**
+     * The History of one workitem, as of a number of revisions
+     */
+    private static class Entries {
+        private int revisions;
+        private final Set<String> texts = new HashSet<>();
+        private final Set<String> mhTags = new HashSet<>();
+
+        void add(String text) {
+            addEntry(text);
+            if (text.contains(ENTRY_SEPARATOR)) {
+                for (String entry : text.split(Pattern.quote(ENTRY_SEPARATOR))) {
+                    addEntry(entry);
+                }
+            }
+        }
+
+        private void addEntry(String text) {
+            texts.add(text);
+            Matcher m = MH_PATTERN.matcher(text);
+            if (m.find()) {
+                mhTags.add(m.group());
+            }
+        }
+    }
+
+    private final Cache<Integer, Entries> cache;
+
+    /**
+     * @param size
+     *            the max number of workitems to keep, 0 to read the
+     *            revisions on every check
+     */
+    public HistoryIndex(int size) {
+        cache = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    /**
+     * True if the History of the workitem has an entry equal to the text
+     * 
+     * @param workItem
+     * @param text
+     * @return
+     */
+    public boolean containsEntry(WorkItem workItem, String text) {
+        Entries entries = getEntries(workItem);
+        synchronized (entries) {
+            return entries.texts.contains(text);
+        }
+    }
+
+    /**
+     * True if the History of the workitem has an entry starting with the tag
+     * 
+     * @param workItem
+     * @param mhTag
+     *            "[MH yyyy-mm-dd hh:mm:ss]" as matched by {@link #MH_PATTERN}
+     * @return
+     */
+    public boolean containsMhTag(WorkItem workItem, String mhTag) {
+        Entries entries = getEntries(workItem);
+        synchronized (entries) {
+            return entries.mhTags.contains(mhTag);
+        }
+    }
+
+    public void invalidate(int workItemId) {
+        cache.invalidate(workItemId);
+    }
+
+    private Entries getEntries(WorkItem workItem) {
+        int id = workItem.getID();
+        Entries entries = id > 0 ? cache.getIfPresent(id) : null;
+        if (entries == null) {
+            entries = new Entries();
+            if (id > 0) {
+                Entries existing = cache.asMap().putIfAbsent(id, entries);
+                if (existing != null) {
+                    entries = existing;
+                }
+            }
+        }
+        RevisionCollection revisions = workItem.getRevisions();
+        synchronized (entries) {
+            // an older copy of the workitem with fewer revisions is checked
+            // against the newer History already indexed
+            for (int j = entries.revisions; j < revisions.size(); j++) {
+                Revision rev = revisions.get(j);
+                RevisionField historyField = rev.getField(TFSMapper.TFS_HISTORY);
+                if (historyField != null) {
+                    Object rValue = historyField.getValue();
+                    if (rValue != null) {
+                        entries.add(rValue.toString());
+                    }
+                }
+            }
+            entries.revisions = revisions.size();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,175 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state built up while mapping one incoming ECR to a workitem: cached
+ * constraint values, the fields and product values that need more than
+ * one ECR property to be mapped, and the pending updates to the
+ * History field. Also the mapping used, taken when the context is created,
+ * so that one ECR is mapped with one mapping also when mapping a workitem
+ * to an ECR.
+ * 
+ * A new context is to be created for each ECR, and it is not to be shared
+ * between threads. The {@link TFSMapper} itself only holds the mapping
+ * configuration, so it can be used concurrently without locking.
+ */
+public class MappingContext {
+
+    private final MappingState mapping;
+
+    // Pending updates to the workitem history, saved as separate entries
+    private final LinkedList<String> historyUpdates = new LinkedList<>();
+
+    // Mapped constraints, key is the constraining TFS field
+    private final Map<String, String> constraintCache = new HashMap<>();
+
+    // TFS fields mapped from more than one ECR property, that are already
+    // mapped for this ECR
+    private final Set<String> mappedFields = new HashSet<>();
+
+    private String product;
+    private String productRevision;
+
+    /**
+     * A context mapping with the mapping in use
+     */
+    public MappingContext() {
+        this(MappingState.get());
+    }
+
+    /**
+     * A context mapping with the given mapping, e.g. one shared by the ECRs
+     * of a query
+     * 
+     * @param mapping
+     */
+    public MappingContext(MappingState mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * @return the mapping to do all lookups of this ECR in
+     */
+    public MappingState getMapping() {
+        return mapping;
+    }
+
+    /**
+     * Pop an entry from the updates to the History field
+     * 
+     * @return the oldest update, or null if none
+     */
+    public String popHistoryUpdate() {
+        return historyUpdates.poll();
+    }
+
+    /**
+     * Pop all entries from the updates to the History field, merged into one
+     * separated by {@link HistoryIndex#ENTRY_SEPARATOR}
+     * 
+     * @return the updates oldest first, or null if none
+     */
+    public String popHistoryUpdates() {
+        if (historyUpdates.isEmpty()) {
+            return null;
+        }
+        StringBuilder updates = new StringBuilder(historyUpdates.poll());
+        while (!historyUpdates.isEmpty()) {
+            updates.append(HistoryIndex.ENTRY_SEPARATOR).append(
+                    historyUpdates.poll());
+        }
+        return updates.toString();
+    }
+
+    /**
+     * Push an entry to the updates to the History field
+     * 
+     * @param update
+     */
+    public void pushHistoryUpdate(String update) {
+        historyUpdates.add(update);
+    }
+
+    boolean hasConstraintValue(String constrainedBy) {
+        return constraintCache.containsKey(constrainedBy);
+    }
+
+    String getConstraintValue(String constrainedBy) {
+        return constraintCache.get(constrainedBy);
+    }
+
+    void putConstraintValue(String constrainedBy, String constraintValue) {
+        constraintCache.put(constrainedBy, constraintValue);
+    }
+
+    /**
+     * Marks a field that is mapped from more than one ECR property as mapped.
+     * 
+     * @param fieldName
+     * @return true the first time, false if already mapped
+     */
+    boolean markMapped(String fieldName) {
+        return mappedFields.add(fieldName);
+    }
+
+    /**
+     * Collects the product or product revision value.
+     * 
+     * @param isRevision
+     * @param value
+     * @return true when both product and revision are collected
+     */
+    boolean productMappingFullFilled(boolean isRevision, String value) {
+        if (isRevision) {
+            productRevision = value;
+        } else {
+            product = value;
+        }
+        return product != null && productRevision != null;
+    }
+
+    /**
+     * Gets the collected product and clears it.
+     * 
+     * @return
+     */
+    PrimProduct takeProduct() {
+        PrimProduct primProduct = new PrimProduct(product, productRevision);
+        product = null;
+        productRevision = null;
+        return primProduct;
+    }
+}
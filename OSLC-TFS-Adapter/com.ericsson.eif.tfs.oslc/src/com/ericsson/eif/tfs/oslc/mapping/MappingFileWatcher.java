@@ -0,0 +1,219 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the mapping files and reloads a mapping when one of its files is
+ * changed, so a changed mapping is taken into use without restarting the
+ * adapter. The reload is done on a background thread. The mappings changed
+ * together are reloaded into one {@link MappingState} that replaces the
+ * current one, and if any of them fails to load the current one stays in
+ * use - see {@link ReloadableMapping#reload(MappingState)}.
+ * 
+ * Each reload increases the mapping generation, see
+ * {@link MappingState#getGeneration()}, which is part of the entity tags of
+ * the mapped change requests.
+ */
+public class MappingFileWatcher implements Runnable {
+
+    static Logger logger = Logger.getLogger(MappingFileWatcher.class);
+
+    public static final int DEFAULT_DELAY = 2;
+
+    private static MappingFileWatcher instance;
+
+    private final WatchService watchService;
+    private final Map<Path, ReloadableMapping> mappings = new HashMap<>();
+    private final int delay;
+    private final Runnable onReload;
+
+    /**
+     * @param mappings
+     * @param delay
+     *            seconds without further changes before reloading, as a
+     *            file can be written in several steps
+     * @param onReload
+     *            called after a mapping is reloaded, or null
+     * @throws IOException
+     */
+    public MappingFileWatcher(Iterable<? extends ReloadableMapping> mappings,
+            int delay, Runnable onReload) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.delay = delay;
+        this.onReload = onReload;
+        Set<Path> directories = new HashSet<>();
+        for (ReloadableMapping mapping : mappings) {
+            for (File file : mapping.getMappingFiles()) {
+                Path path = file.toPath().toAbsolutePath().normalize();
+                this.mappings.put(path, mapping);
+                if (directories.add(path.getParent())) {
+                    path.getParent().register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts watching the files of the mappings, unless already started.
+     * 
+     * @param mappings
+     * @param delay
+     *            see {@link #MappingFileWatcher(Iterable, int, Runnable)}
+     * @param onReload
+     */
+    public static synchronized void start(
+            Iterable<? extends ReloadableMapping> mappings, int delay,
+            Runnable onReload) {
+        if (instance != null) {
+            return;
+        }
+        try {
+            instance = new MappingFileWatcher(mappings, delay, onReload);
+        } catch (IOException e) {
+            logger.error("Failed to watch the mapping files: "
+                    + e.getMessage(), e);
+            return;
+        }
+        Thread thread = new Thread(instance, "mapping-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching mapping files " + instance.mappings.keySet());
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Set<ReloadableMapping> changed = new LinkedHashSet<>();
+                collect(watchService.take(), changed);
+                // wait for the writing of the file(s) to finish
+                WatchKey key;
+                while ((key = watchService.poll(delay, TimeUnit.SECONDS)) != null) {
+                    collect(key, changed);
+                }
+                // only other files of the directories changed
+                if (!changed.isEmpty()) {
+                    reload(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Stopped watching mapping files");
+        }
+    }
+
+    /**
+     * Reloads the mappings and takes them into use together, and keeps the
+     * current ones if any of them fails.
+     * 
+     * @param mappings
+     * @return true if reloaded, false if no mapping is given or any failed
+     */
+    boolean reload(Collection<ReloadableMapping> mappings) {
+        if (mappings.isEmpty()) {
+            return false;
+        }
+        List<File> files = new ArrayList<>();
+        MappingState state = MappingState.get();
+        try {
+            for (ReloadableMapping mapping : mappings) {
+                files.addAll(mapping.getMappingFiles());
+                state = mapping.reload(state);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to reload " + files
+                    + ", keeping the current mapping: " + e.getMessage(), e);
+            return false;
+        }
+        MappingSnapshot.saveIfChanged();
+        long reloaded = MappingState.swap(state);
+        logger.info("Reloaded " + files + ", mapping generation " + reloaded);
+        if (onReload != null) {
+            onReload.run();
+        }
+        return true;
+    }
+
+    private void collect(WatchKey key, Set<ReloadableMapping> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.addAll(mappings.values());
+                continue;
+            }
+            // Other files in the directories, e.g. adapter.properties or the
+            // mapping snapshot and its temporary file written on reload, do
+            // not map to a mapping and are ignored
+            Path path = directory.resolve((Path) event.context());
+            ReloadableMapping mapping = mappings.get(path);
+            if (mapping != null) {
+                logger.debug("Mapping file changed: " + path);
+                changed.add(mapping);
+            }
+        }
+        key.reset();
+    }
+
+    private void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close watch service", e);
+        }
+    }
+}
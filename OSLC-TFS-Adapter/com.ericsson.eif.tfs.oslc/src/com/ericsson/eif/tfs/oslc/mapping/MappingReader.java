@@ -0,0 +1,98 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads mapping files as a stream in one pass, without building a document
+ * of them, and passes the elements to a {@link MappingHandler}.
+ */
+final class MappingReader {
+
+    private MappingReader() {
+    }
+
+    /**
+     * Reads a mapping file, from the {@link MappingSnapshot} if one is in
+     * use and holds the current content of the file.
+     * 
+     * @param file
+     * @param handler
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    static void read(File file, MappingHandler handler)
+            throws XMLStreamException, IOException {
+        MappingSnapshot snapshot = MappingSnapshot.getInstance();
+        if (snapshot != null) {
+            snapshot.read(file, handler);
+            return;
+        }
+        try (InputStream input = new FileInputStream(file)) {
+            read(input, handler);
+        }
+    }
+
+    static void read(InputStream input, MappingHandler handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = XMLInputFactory.newInstance()
+                .createXMLStreamReader(input);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String[] attributes = new String[reader
+                            .getAttributeCount() * 2];
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        attributes[2 * i] = reader.getAttributeLocalName(i);
+                        attributes[2 * i + 1] = reader.getAttributeValue(i);
+                    }
+                    handler.startElement(reader.getLocalName(), attributes);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    handler.endElement();
+                    break;
+                default:
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
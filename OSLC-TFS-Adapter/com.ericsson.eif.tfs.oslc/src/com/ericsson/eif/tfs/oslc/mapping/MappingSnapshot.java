@@ -0,0 +1,325 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A binary snapshot of the mapping files, stored in the adapter home so
+ * that the XML of unchanged files need not be parsed at the next start.
+ * 
+ * Holds one section per mapping file with the length and checksum of the
+ * file, a table of the strings used and the elements of the file as
+ * indexes into that table. A file whose length and checksum match its
+ * section is replayed from the section, which is read through a memory
+ * mapping of the snapshot. Other files are parsed, and recorded in a new
+ * section that is written by {@link #saveIfChanged()}.
+ */
+public class MappingSnapshot {
+
+    static Logger logger = Logger.getLogger(MappingSnapshot.class);
+
+    private static final int MAGIC = 0x544d5331; // "TMS1"
+    private static final int VERSION = 1;
+    private static final int END_ELEMENT = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static MappingSnapshot instance;
+
+    private final File file;
+    // path of the mapping file -> section, as read from the snapshot
+    private final Map<String, Section> sections;
+    // the sections of the files read, to be saved
+    private final Map<String, Section> used = new LinkedHashMap<>();
+    private boolean changed;
+
+    /**
+     * A mapping file compiled to a string table and elements
+     */
+    private static class Section {
+        private final String path;
+        private final long length;
+        private final long checksum;
+        private final ByteBuffer data;
+
+        Section(String path, long length, long checksum, ByteBuffer data) {
+            this.path = path;
+            this.length = length;
+            this.checksum = checksum;
+            this.data = data;
+        }
+
+        void replay(MappingHandler handler) {
+            ByteBuffer buffer = data.duplicate();
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = getString(buffer);
+            }
+            int events = buffer.getInt();
+            for (int i = 0; i < events; i++) {
+                int name = buffer.getInt();
+                if (name == END_ELEMENT) {
+                    handler.endElement();
+                    continue;
+                }
+                String[] attributes = new String[buffer.getInt()];
+                for (int j = 0; j < attributes.length; j++) {
+                    attributes[j] = strings[buffer.getInt()];
+                }
+                i += attributes.length + 1;
+                handler.startElement(strings[name], attributes);
+            }
+        }
+    }
+
+    /**
+     * Passes the elements on, and records them in a section
+     */
+    private static class Recorder implements MappingHandler {
+        private final MappingHandler handler;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private int[] events = new int[1024];
+        private int size;
+
+        Recorder(MappingHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String name, String[] attributes) {
+            add(index(name));
+            add(attributes.length);
+            for (String attribute : attributes) {
+                add(index(attribute));
+            }
+            handler.startElement(name, attributes);
+        }
+
+        @Override
+        public void endElement() {
+            add(END_ELEMENT);
+            handler.endElement();
+        }
+
+        Section toSection(String path, long length, long checksum) {
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            int capacity = 8 + 4 * size;
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                encoded.add(bytes);
+                capacity += 4 + bytes.length;
+            }
+            ByteBuffer data = ByteBuffer.allocate(capacity);
+            data.putInt(encoded.size());
+            for (byte[] bytes : encoded) {
+                data.putInt(bytes.length).put(bytes);
+            }
+            data.putInt(size);
+            data.asIntBuffer().put(events, 0, size);
+            data.position(0);
+            return new Section(path, length, checksum, data);
+        }
+
+        private int index(String string) {
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+
+        private void add(int value) {
+            if (size == events.length) {
+                events = Arrays.copyOf(events, size * 2);
+            }
+            events[size++] = value;
+        }
+    }
+
+    MappingSnapshot(File file) {
+        this.file = file;
+        this.sections = readSections(file);
+    }
+
+    /**
+     * Starts using a snapshot for the mapping files read from now on.
+     * 
+     * @param file
+     *            the snapshot, need not exist
+     */
+    public static synchronized void open(File file) {
+        instance = new MappingSnapshot(file);
+    }
+
+    /**
+     * @return the snapshot in use, or null
+     */
+    public static synchronized MappingSnapshot getInstance() {
+        return instance;
+    }
+
+    /**
+     * Writes the snapshot in use if a mapping file was parsed since it was
+     * read or last written.
+     */
+    public static void saveIfChanged() {
+        MappingSnapshot snapshot = getInstance();
+        if (snapshot != null) {
+            snapshot.save();
+        }
+    }
+
+    /**
+     * Reads a mapping file, from its section if the file is unchanged.
+     * 
+     * @param mappingFile
+     * @param handler
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    synchronized void read(File mappingFile, MappingHandler handler)
+            throws XMLStreamException, IOException {
+        byte[] content = Files.readAllBytes(mappingFile.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        String path = mappingFile.getAbsolutePath();
+
+        Section section = sections.get(path);
+        if (section != null && section.length == content.length
+                && section.checksum == crc.getValue()) {
+            section.replay(handler);
+            used.put(path, section);
+            logger.debug("Loaded " + path + " from snapshot " + file);
+            return;
+        }
+        Recorder recorder = new Recorder(handler);
+        MappingReader.read(new ByteArrayInputStream(content), recorder);
+        used.put(path, recorder.toSection(path, content.length,
+                crc.getValue()));
+        changed = true;
+    }
+
+    synchronized void save() {
+        if (!changed && used.keySet().equals(sections.keySet())) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile output = new RandomAccessFile(temporary,
+                    "rw")) {
+                output.setLength(0);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(used.size());
+                for (Section section : used.values()) {
+                    byte[] path = section.path.getBytes(UTF_8);
+                    output.writeInt(path.length);
+                    output.write(path);
+                    output.writeLong(section.length);
+                    output.writeLong(section.checksum);
+                    ByteBuffer data = section.data.duplicate();
+                    output.writeInt(data.remaining());
+                    output.getChannel().write(data);
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+            sections.clear();
+            sections.putAll(used);
+            logger.info("Saved mapping snapshot " + file);
+        } catch (IOException e) {
+            logger.warn("Failed to save mapping snapshot " + file + ": "
+                    + e.getMessage());
+            temporary.delete();
+        }
+    }
+
+    private static Map<String, Section> readSections(File file) {
+        Map<String, Section> sections = new HashMap<>();
+        if (!file.exists()) {
+            return sections;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = input.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, input.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                logger.info("Ignoring mapping snapshot " + file
+                        + " of another format");
+                return sections;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String path = getString(buffer);
+                long length = buffer.getLong();
+                long checksum = buffer.getLong();
+                int size = buffer.getInt();
+                ByteBuffer data = buffer.slice();
+                data.limit(size);
+                buffer.position(buffer.position() + size);
+                sections.put(path, new Section(path, length, checksum, data));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable mapping snapshot " + file + ": "
+                    + e);
+            sections.clear();
+        }
+        return sections;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * The attribute and product mappings in use, as one immutable snapshot.
+ * A reload of the mapping files creates a new state that replaces the
+ * current one, both mappings together in one step - see
+ * {@link MappingFileWatcher}.
+ * 
+ * A request gets the state once, see {@link MappingContext#getMapping()},
+ * and does all its lookups through it, so the request is mapped with one
+ * mapping from start to end even if the mapping is reloaded meanwhile.
+ */
+public final class MappingState {
+
+    private static volatile MappingState current = new MappingState(
+            AttributesMapper.Plan.EMPTY, ProductMapper.Index.EMPTY, 0);
+
+    private final AttributesMapper.Plan plan;
+    private final ProductMapper.Index index;
+    private final long generation;
+
+    private MappingState(AttributesMapper.Plan plan, ProductMapper.Index index,
+            long generation) {
+        this.plan = plan;
+        this.index = index;
+        this.generation = generation;
+    }
+
+    /**
+     * @return the mapping in use
+     */
+    public static MappingState get() {
+        return current;
+    }
+
+    // A load of the attribute mapping, done before the mapping is in use
+    static synchronized void set(AttributesMapper.Plan plan) {
+        current = current.with(plan);
+    }
+
+    // A load of the product mapping, done before the mapping is in use
+    static synchronized void set(ProductMapper.Index index) {
+        current = current.with(index);
+    }
+
+    /**
+     * Replaces the mapping in use with a reloaded one, as the next
+     * generation.
+     * 
+     * @param reloaded
+     *            the current state with the reloaded mappings, see
+     *            {@link ReloadableMapping#reload(MappingState)}
+     * @return the generation of the reloaded mapping
+     */
+    static synchronized long swap(MappingState reloaded) {
+        current = new MappingState(reloaded.plan, reloaded.index,
+                current.generation + 1);
+        return current.generation;
+    }
+
+    MappingState with(AttributesMapper.Plan plan) {
+        return new MappingState(plan, index, generation);
+    }
+
+    MappingState with(ProductMapper.Index index) {
+        return new MappingState(plan, index, generation);
+    }
+
+    AttributesMapper.Plan getPlan() {
+        return plan;
+    }
+
+    ProductMapper.Index getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of reloads before this mapping, 0 until the mapping
+     *         is reloaded
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * See {@link AttributesMapper#getForwardProperties(String)}
+     */
+    public Collection<Property> getForwardProperties(String key) {
+        return plan.forward.get(key);
+    }
+
+    /**
+     * See {@link AttributesMapper#getInverseProperties(String)}
+     */
+    public Collection<Property> getInverseProperties(String key) {
+        return plan.inverse.get(key);
+    }
+
+    /**
+     * See {@link AttributesMapper#getForwardPropertyByValue(String)}
+     */
+    public Property getForwardPropertyByValue(String value) {
+        return plan.forwardByValue.get(value);
+    }
+
+    /**
+     * See {@link AttributesMapper#getCompositeMapping(String)}
+     */
+    public CompositeMapping getCompositeMapping(String key) {
+        return plan.composites.get(key);
+    }
+
+    /**
+     * See {@link AttributesMapper#getMappedFieldNames()}
+     */
+    public Set<String> getMappedFieldNames() {
+        return plan.mappedFieldNames;
+    }
+
+    /**
+     * See {@link ProductMapper#getEntity(PrimProduct)}
+     */
+    public BackendEntity getEntity(PrimProduct product) {
+        return index.entities.get(product);
+    }
+
+    /**
+     * See {@link ProductMapper#getProduct(BackendEntity)}
+     */
+    public PrimProduct getProduct(BackendEntity entity) {
+        return index.products.get(entity);
+    }
+
+    /**
+     * See {@link ProductMapper#getServiceProvider(String)}
+     */
+    public ProductMapper.ServiceProvider getServiceProvider(String primProdNo) {
+        return primProdNo != null ? index.serviceProviders.get(primProdNo)
+                : null;
+    }
+
+    /**
+     * See {@link ProductMapper#getServiceProvider()}
+     */
+    public ProductMapper.ServiceProvider getServiceProvider() {
+        return index.lastServiceProvider;
+    }
+}
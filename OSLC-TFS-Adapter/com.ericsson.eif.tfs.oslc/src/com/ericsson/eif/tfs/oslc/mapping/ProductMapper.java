@@ -28,49 +28,39 @@ package com.ericsson.eif.tfs.oslc.mapping;
 */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLStreamException;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.apache.log4j.Logger;
 
 import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+import com.google.common.collect.ImmutableMap;
 
-public class ProductMapper {
-    
-    //TODO - Add support for getting project name from serviceProvider
-    //Eg: serviceProviderMap containing a map of projects containing primproduct maps
-    // project1
-    //    { 
-    //      primProductA1,
-    //      primProductA2,
-    //      primProductA3
-    //    }
-    // project2
-    //    { 
-    //      primProductB1,
-    //      primProductB2,
-    //      primProductB3
-    //    }
-    
+/**
+ * Maps PRIM products to backend entities (TFS release trains) and back, as
+ * defined in product_mapping.xml. The products are grouped per
+ * serviceProvider (TFS project).
+ * 
+ * A load builds immutable hash indexes for the lookups in both directions
+ * and for the products of each service provider, and replaces the previous
+ * ones in one step, so lookups need no locking. The indexes in use are part
+ * of the {@link MappingState}.
+ */
+public class ProductMapper implements ReloadableMapping {
+
+    static Logger logger = Logger.getLogger(ProductMapper.class);
 
-    public class ServiceProvider {
+    public static class ServiceProvider {
         private String name; // E.g. project in TFS
         private String entity; // E.g. collectionName in TFS
 
@@ -88,14 +78,65 @@ public class ProductMapper {
         }
     }
 
-    ServiceProvider serviceProvider;
-    Map<String, Object> serviceProviderMap; //TODO - see above
-    Map<PrimProduct, BackendEntity> map;
+    /**
+     * The loaded mapping. Never changed once created.
+     */
+    static class Index {
+        static final Index EMPTY = new Index(
+                new LinkedHashMap<ServiceProvider, Map<PrimProduct, BackendEntity>>());
+
+        final Map<PrimProduct, BackendEntity> entities;
+        final Map<BackendEntity, PrimProduct> products;
+        // product number -> service provider, name -> products of provider
+        final Map<String, ServiceProvider> serviceProviders;
+        final Map<String, Map<PrimProduct, BackendEntity>> providerProducts;
+        final ServiceProvider lastServiceProvider;
+
+        Index(Map<ServiceProvider, Map<PrimProduct, BackendEntity>> mapping) {
+            Map<PrimProduct, BackendEntity> entities = new HashMap<>();
+            Map<BackendEntity, PrimProduct> products = new HashMap<>();
+            Map<String, ServiceProvider> serviceProviders = new HashMap<>();
+            Map<String, Map<PrimProduct, BackendEntity>> providerProducts = new LinkedHashMap<>();
+            ServiceProvider last = null;
+            for (Entry<ServiceProvider, Map<PrimProduct, BackendEntity>> sp : mapping
+                    .entrySet()) {
+                last = sp.getKey();
+                for (Entry<PrimProduct, BackendEntity> entry : sp.getValue()
+                        .entrySet()) {
+                    PrimProduct product = entry.getKey();
+                    BackendEntity entity = entry.getValue();
+                    entities.put(product, entity);
+                    PrimProduct mapped = products.get(entity);
+                    if (mapped == null) {
+                        products.put(entity, product);
+                    } else if (!mapped.equals(product)) {
+                        logger.warn("Both " + mapped + " and " + product
+                                + " map to " + entity + ", using " + mapped);
+                    }
+                    if (!serviceProviders.containsKey(product.getPrimProdNo())) {
+                        serviceProviders.put(product.getPrimProdNo(), last);
+                    }
+                }
+                Map<PrimProduct, BackendEntity> current = providerProducts
+                        .get(last.getName());
+                providerProducts.put(last.getName(), current == null ? sp
+                        .getValue() : ImmutableMap
+                        .<PrimProduct, BackendEntity> builder()
+                        .putAll(current).putAll(sp.getValue()).build());
+            }
+            this.entities = ImmutableMap.copyOf(entities);
+            this.products = ImmutableMap.copyOf(products);
+            this.serviceProviders = ImmutableMap.copyOf(serviceProviders);
+            this.providerProducts = ImmutableMap.copyOf(providerProducts);
+            this.lastServiceProvider = last;
+        }
+    }
+
     private static ProductMapper instance;
     private String productMappingFile;
+    private File loadedFile;
 
     private ProductMapper() {
-        map = new HashMap<>();
     }
 
     public static ProductMapper getInstance() {
@@ -109,28 +150,73 @@ public class ProductMapper {
         productMappingFile = file;
     }
 
-    public void load(InputStream input) throws ParserConfigurationException,
-            SAXException, IOException, XPathExpressionException {
-        DocumentBuilderFactory domFactory = DocumentBuilderFactory
-                .newInstance();
-        domFactory.setNamespaceAware(true);
-        DocumentBuilder builder = domFactory.newDocumentBuilder();
-        Document doc = builder.parse(input);
-        XPath xpath = XPathFactory.newInstance().newXPath();
+    /**
+     * Loads the mapping from the input, read as a stream in one pass.
+     * 
+     * @param input
+     * @throws XMLStreamException
+     */
+    public void load(InputStream input) throws XMLStreamException {
+        MappingState.set(parse(input));
+    }
+
+    private Index parse(InputStream input) throws XMLStreamException {
+        ServiceProviderHandler handler = new ServiceProviderHandler();
+        MappingReader.read(input, handler);
+        return new Index(handler.mapping);
+    }
+
+    // As parse(InputStream), from the snapshot if in use
+    private Index parse(File file) throws XMLStreamException, IOException {
+        ServiceProviderHandler handler = new ServiceProviderHandler();
+        MappingReader.read(file, handler);
+        return new Index(handler.mapping);
+    }
 
-        // locate all product serviceProvider nodes
-        NodeList spNodes = (NodeList) xpath.evaluate(
-                "//mapping//serviceProvider", doc, XPathConstants.NODESET);
+    /**
+     * Collects the serviceProvider elements anywhere below a mapping element,
+     * and their child elements
+     */
+    private static class ServiceProviderHandler implements MappingHandler {
+        private final Map<ServiceProvider, Map<PrimProduct, BackendEntity>> mapping = new LinkedHashMap<>();
+        private int depth = 0;
+        private int mappingDepth = -1;
+        private int serviceProviderDepth = -1;
+        private ServiceProvider serviceProvider;
+        private Map<PrimProduct, BackendEntity> products;
 
-        for (int i = 0; i < spNodes.getLength(); i++) {
-            Node node = spNodes.item(i);
-            if (processThis(node)) {
-                processServiceProvider(node);
+        @Override
+        public void startElement(String name, String[] attributes) {
+            depth++;
+            if (mappingDepth < 0) {
+                if (name.equals("mapping")) {
+                    mappingDepth = depth;
+                }
+            } else if (serviceProvider == null) {
+                if (name.equals("serviceProvider")) {
+                    serviceProvider = processServiceProvider(attributes);
+                    serviceProviderDepth = depth;
+                    products = new LinkedHashMap<>();
+                }
+            } else if (depth == serviceProviderDepth + 1) {
+                processPrimProduct(attributes, products);
             }
         }
+
+        @Override
+        public void endElement() {
+            if (depth == serviceProviderDepth) {
+                mapping.put(serviceProvider, ImmutableMap.copyOf(products));
+                serviceProvider = null;
+                serviceProviderDepth = -1;
+            } else if (depth == mappingDepth) {
+                mappingDepth = -1;
+            }
+            depth--;
+        }
     }
 
-    public void load() {
+    public synchronized void load() {
     	if (productMappingFile == null) {
             productMappingFile = TFSAdapterManager.getProductMappingFile();
     	}
@@ -147,60 +233,76 @@ public class ProductMapper {
                                     + productMappingFile);
                 }
             }
-            load(new FileInputStream(inputFile));
-        } catch (XPathExpressionException | ParserConfigurationException
-                | SAXException | IOException e) {
-            e.printStackTrace();
+            MappingState.set(parse(inputFile));
+            loadedFile = inputFile;
+        } catch (XMLStreamException | IOException e) {
+            logger.error("Failed to load product mapping file "
+                    + productMappingFile + ": " + e.getMessage(), e);
         }
     }
 
-    private void processServiceProvider(Node node) {
-        NamedNodeMap attributes = node.getAttributes();
+    @Override
+    public synchronized List<File> getMappingFiles() {
+        if (loadedFile == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(loadedFile);
+    }
+
+    /**
+     * Reloads the mapping from the file last loaded by {@link #load()}. The
+     * file must be parsed and map at least one product.
+     */
+    @Override
+    public synchronized MappingState reload(MappingState state)
+            throws XMLStreamException, IOException {
+        if (loadedFile == null) {
+            throw new IOException("No product mapping file loaded");
+        }
+        Index reloaded = parse(loadedFile);
+        if (reloaded.entities.isEmpty()) {
+            throw new IOException("No products found in " + loadedFile);
+        }
+        return state.with(reloaded);
+    }
+
+    private static ServiceProvider processServiceProvider(String[] attributes) {
         String name = null;
         String collectionName = null;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            switch (attributes[i]) {
             case "name":
-                name = attribute.getNodeValue();
+                name = attributes[i + 1];
                 break;
             case "collectionName":
-                collectionName = attribute.getNodeValue();
+                collectionName = attributes[i + 1];
                 break;
             default:
                 break;
             }
         }
-        serviceProvider = new ServiceProvider(name, collectionName);
-        NodeList children = node.getChildNodes();
-        for (int j = 0; j < children.getLength(); j++) {
-            Node child = children.item(j);
-            if (processThis(child)) {
-                processPrimProduct(child);
-            }
-        }
+        return new ServiceProvider(name, collectionName);
     }
 
-    private void processPrimProduct(Node node) {
-        NamedNodeMap attributes = node.getAttributes();
+    private static void processPrimProduct(String[] attributes,
+            Map<PrimProduct, BackendEntity> products) {
         String primProdNo = null;
         String primRState = null;
         String mapTo = null;
         String team = null;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            Node attribute = attributes.item(i);
-            switch (attribute.getNodeName()) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            switch (attributes[i]) {
             case "primProdNo":
-                primProdNo = attribute.getNodeValue();
+                primProdNo = attributes[i + 1];
                 break;
             case "primRState":
-                primRState = attribute.getNodeValue();
+                primRState = attributes[i + 1];
                 break;
             case "mapTo":
-                mapTo = attribute.getNodeValue();
+                mapTo = attributes[i + 1];
                 break;
             case "team":
-                team = attribute.getNodeValue();
+                team = attributes[i + 1];
                 break;
             default:
                 break;
@@ -208,42 +310,69 @@ public class ProductMapper {
         }
         PrimProduct product = new PrimProduct(primProdNo, primRState);
         BackendEntity entity = new BackendEntity(mapTo, team);
-        map.put(product, entity);
+        products.put(product, entity);
     }
 
-    private boolean processThis(Node node) {
-        return node.getAttributes() != null; //
-    }
-    
     public Iterator<PrimProduct> getProductIterator() {
-        return map.keySet().iterator();
+        return MappingState.get().getIndex().entities.keySet().iterator();
     }
     
     public Iterator<Entry<PrimProduct, BackendEntity>> getEntityIterator() {
-        return map.entrySet().iterator();
+        return MappingState.get().getIndex().entities.entrySet().iterator();
     }
 
     public BackendEntity getEntity(PrimProduct product) {
-        if (map.containsKey(product)) {
-            return map.get(product);
-        }
-        return null;
+        return MappingState.get().getEntity(product);
     }
 
+    /**
+     * Gets the product mapped to the entity. If more than one product maps to
+     * the entity, the first one in the mapping file is returned.
+     * 
+     * @param entity
+     * @return the product, or null if no product maps to the entity
+     */
     public PrimProduct getProduct(BackendEntity entity) {
-        if (map.containsValue(entity)) {
-            Iterator<Entry<PrimProduct, BackendEntity>> iter = map.entrySet().iterator();
-            while (iter.hasNext()) {
-                Entry<PrimProduct, BackendEntity> next = iter.next();
-                if (next.getValue().equals(entity)) {
-                    return next.getKey();
-                }
-            }
-        }
-        return null;
+        return MappingState.get().getProduct(entity);
     }
-    
+
+    /**
+     * Gets the service provider the product number is mapped for. If mapped
+     * for more than one, the first one in the mapping file is returned.
+     * 
+     * @param primProdNo
+     * @return the service provider, or null if the product is not mapped
+     */
+    public ServiceProvider getServiceProvider(String primProdNo) {
+        return MappingState.get().getServiceProvider(primProdNo);
+    }
+
+    /**
+     * Gets the products mapped for the named service provider
+     * 
+     * @param name
+     * @return the products and the entities they map to, empty if none
+     */
+    public Map<PrimProduct, BackendEntity> getProducts(String name) {
+        Map<PrimProduct, BackendEntity> products = MappingState.get()
+                .getIndex().providerProducts.get(name);
+        return products != null ? products : ImmutableMap
+                .<PrimProduct, BackendEntity> of();
+    }
+
+    /**
+     * The names of the service providers in the mapping
+     * 
+     * @return
+     */
+    public Collection<String> getServiceProviderNames() {
+        return MappingState.get().getIndex().providerProducts.keySet();
+    }
+
+    /**
+     * @return the last service provider in the mapping file
+     */
     public ServiceProvider getServiceProvider() {
-        return serviceProvider;
+        return MappingState.get().getServiceProvider();
     }
 }
@@ -30,6 +30,7 @@ package com.ericsson.eif.tfs.oslc.mapping;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.ericsson.eif.tfs.oslc.mapping.BiDirectionalMap.Direction;
 
@@ -93,17 +94,35 @@ public class Property {
     	return replaceWildcardValues(values, key);
     }
     
+    /**
+     * See {@link BiDirectionalMap#getInverseKeys(String)}
+     * @param value
+     * @return
+     */
+    public Collection<String> getInverseKeys(String value) {
+        return valueMap.getInverseKeys(value);
+    }
+
+    /**
+     * See {@link BiDirectionalMap#getUnconstrainedForward()}
+     * @return
+     */
+    Map<String, List<String>> getUnconstrainedForward() {
+        return valueMap.getUnconstrainedForward();
+    }
+    
     // Semantics of value "*" from map is that any value passed in is allowed.
     // So replace any "*" entries from mapping with the key (now value) passed in.
+    // The mapped values are shared, so only copied when there is a wildcard.
     private List<String> replaceWildcardValues(List<String> values, String value) {
-    	if (values != null) {
-    		for (int i = 0; i < values.size(); i++) {
-    			if (values.get(i).equals("*")) {
-    				values.set(i, value);
-    			}
-			}
+    	if (values == null || !values.contains("*")) {
+    		return values;
+    	}
+    	List<String> replaced = new ArrayList<>(values.size());
+    	for (String v : values) {
+    		replaced.add(v.equals("*") ? value : v);
     	}
-    	return values;   	
+    	return replaced;
     }
     
     @Override
@@ -35,12 +35,10 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -49,14 +47,12 @@ import org.apache.log4j.Logger;
 import org.eclipse.lyo.oslc4j.core.model.Link;
 
 import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
-import com.ericsson.eif.tfs.oslc.TFSConnector;
 import com.ericsson.eif.tfs.oslc.exception.CreateWorkItemException;
 import com.ericsson.eif.tfs.oslc.exception.CustomerMappingExpection;
 import com.ericsson.eif.tfs.oslc.exception.ProductMappingError;
 import com.ericsson.eif.tfs.oslc.exception.UpdateWorkItemException;
 import com.ericsson.eif.tfs.oslc.mapping.BiDirectionalMap.Direction;
 import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
-import com.ericsson.eif.tfs.oslc.utils.TFSUtilities;
 import com.ericsson.eif.tfs.oslc.utils.TfsUserLookup;
 import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
 import com.google.common.base.Splitter;
@@ -68,9 +64,6 @@ import com.microsoft.tfs.core.clients.workitem.fields.FieldCollection;
 import com.microsoft.tfs.core.clients.workitem.link.Hyperlink;
 import com.microsoft.tfs.core.clients.workitem.link.LinkCollection;
 import com.microsoft.tfs.core.clients.workitem.link.LinkFactory;
-import com.microsoft.tfs.core.clients.workitem.revision.Revision;
-import com.microsoft.tfs.core.clients.workitem.revision.RevisionCollection;
-import com.microsoft.tfs.core.clients.workitem.revision.RevisionField;
 
 /**
  * Utility to map between TFS Bugs and EnterpriseChangeRequest values or more
@@ -78,6 +71,10 @@ import com.microsoft.tfs.core.clients.workitem.revision.RevisionField;
  * the adapter manager (i.e. servlet context) to be initialized before use and
  * the load() method to be called.
  * 
+ * The mapper only holds the mapping configuration and can be shared between
+ * threads. The state of mapping one ECR, and the {@link MappingState} it is
+ * mapped with, is kept in a {@link MappingContext} passed in by the caller.
+ * 
  * @author qfreatt
  * 
  */
@@ -86,10 +83,14 @@ public class TFSMapper {
 	private static TFSMapper instance;
 	static Logger logger = Logger.getLogger(TFSMapper.class);
 
-	private static AttributesMapper mapper;
+	private static HistoryIndex historyIndex;
 	
 	private static String fieldMappingFile;
 
+	// Matching "[TFS yyyy-mm-dd hh:mm:ss] Any message"
+	private static final Pattern TFS_PATTERN = Pattern
+			.compile("^\\[TFS (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}]).*");
+
 	private TFSMapper() {
 		// don't allow clients to instantiate
 	}
@@ -97,10 +98,18 @@ public class TFSMapper {
 	public synchronized static TFSMapper getInstance() {
 		if (instance == null) {
 			instance = new TFSMapper();
-			mapper = AttributesMapper.getInstance();
 		}
 		return instance;
 	}
+
+	// Created on first use, when the adapter properties are read
+	private synchronized static HistoryIndex getHistoryIndex() {
+		if (historyIndex == null) {
+			historyIndex = new HistoryIndex(
+					TFSAdapterManager.getHistoryIndexSize());
+		}
+		return historyIndex;
+	}
 	
     public void setTestFieldMappingFile(String file) {
     	fieldMappingFile = file;
@@ -289,14 +298,107 @@ public class TFSMapper {
 	
 	
 	/**
-	 * Maps PRIM product to TFS project
+	 * Names of the TFS fields used when mapping a work item, i.e. the fields
+	 * referenced by the attribute mapping and the fields referenced in code.
+	 * 
+	 * @param mapping
+	 * @return
+	 */
+	public Set<String> getMappedFieldNames(MappingState mapping) {
+		Set<String> fieldNames = new HashSet<>(mapping.getMappedFieldNames());
+		fieldNames.addAll(Arrays.asList(CoreFieldReferenceNames.ID,
+				CoreFieldReferenceNames.TITLE, TFS_STATE, TFS_SUBSTATE,
+				TFS_OWNER, TFS_FAULTY_PRODUCT, TFS_HISTORY, TFS_ISSUE,
+				TFS_DUPLICATE_ID, TFS_TEAM, ERICSSON_DEFECT_STATE_FIELD,
+				ERICSSON_DEFECT_LINK_FIELD, ERICSSON_DEFECT_SYNCSTATE,
+				ERICSSON_DEFECT_CREATETR));
+		return fieldNames;
+	}
+
+	/**
+	 * Names of the TFS fields needed to map the given ECM properties to an
+	 * ECR, see {@link TFSMapper#setEcrValues(EnterpriseChangeRequest, String, WorkItem, MappingContext)}
+	 * 
+	 * @param ecmProperties
+	 * @param mapping
+	 * @return
+	 */
+	public Set<String> getFieldNames(Collection<String> ecmProperties,
+			MappingState mapping) {
+		Set<String> fieldNames = new HashSet<>();
+		fieldNames.add(CoreFieldReferenceNames.ID);
+		for (String ecmProperty : ecmProperties) {
+			switch (ecmProperty) {
+			case ECM_OWNER:
+				fieldNames.add(TFS_OWNER);
+				continue;
+			case ECM_IDENTIFIER:
+			case ECM_RELATED_CHANGE_REQUEST:
+				fieldNames.add(ERICSSON_DEFECT_LINK_FIELD);
+				continue;
+			case ECM_PRODUCT:
+			case ECM_PRODUCT_REVISION:
+			case ECM_NODE_PRODUCT:
+			case ECM_NODE_PRODUCT_REVISION:
+			case ECM_CORRECTED_PRODUCT:
+			case ECM_CORRECTED_PRODUCT_REVISION:
+			case ECM_CORRECTED_NODE_PRODUCT:
+			case ECM_CORRECTED_NODE_PRODUCT_REVISION:
+				fieldNames.add(TFS_TEAM);
+				break;
+			default:
+				break;
+			}
+			Collection<Property> properties = mapping
+					.getForwardProperties(ecmProperty);
+			if (properties == null) {
+				continue;
+			}
+			for (Property property : properties) {
+				if (property.getValue() != null) {
+					fieldNames.add(property.getValue().trim());
+				}
+				if (property.getInverseConstrainedBy() != null) {
+					fieldNames.add(property.getInverseConstrainedBy());
+				}
+			}
+		}
+		fieldNames.remove("");
+		return fieldNames;
+	}
+
+	/**
+	 * Maps PRIM product to TFS project. A product not in the product mapping
+	 * maps to the last project in the mapping.
 	 * 
 	 * @param product
+	 * @param context
 	 * @return
 	 */
-	public String getProject(String product) {
-		ProductMapper mapper = ProductMapper.getInstance();
-		return mapper.getServiceProvider().getName();
+	public String getProject(String product, MappingContext context) {
+		MappingState mapping = context.getMapping();
+		ProductMapper.ServiceProvider serviceProvider = mapping
+				.getServiceProvider(product);
+		if (serviceProvider == null) {
+			serviceProvider = mapping.getServiceProvider();
+		}
+		return serviceProvider.getName();
+	}
+
+	/**
+	 * The id of the TR the ecr is related to, as set in the
+	 * ERICSSON_DEFECT_LINK_FIELD of its Bug
+	 * 
+	 * @param ecr
+	 * @return the TR id, or null if no related change request
+	 */
+	public String getTrId(EnterpriseChangeRequest ecr) {
+		Link[] related = ecr.getRelatedChangeRequests();
+		if (related == null || related.length == 0) {
+			return null;
+		}
+		String trId = getTfsTrLink(related[0].getValue().toString());
+		return trId.isEmpty() ? null : trId;
 	}
 
 	// Return TR id from link. Assume format of link: <link>/id, e.g.
@@ -324,8 +426,7 @@ public class TFSMapper {
 	public String getTFSUser(String user) {
 
 		// Map signum to "named user"
-		TfsUserLookup lookup = new TfsUserLookup(TFSConnector.getTpc());
-		String displayName = lookup.getUserName(user);
+		String displayName = TfsUserLookup.getInstance().getUserName(user);
 		
 		// If signum update fails, i.e. no user found for the
 		// user passed in it can be because it's a group (ok) or
@@ -338,47 +439,22 @@ public class TFSMapper {
 		}
 	}
 
-	/**
-	 * Updates to the workitem history. To be cleared before update for a ERC
-	 * See {@link TFSMapper#clear()}
-	 */
-	private List<String> historyUpdates = new ArrayList<>();
-
-	/**
-	 * Pop an entry from the updates to the History field
-	 * 
-	 * @return
-	 */
-	public String popHistoryUpdate() {
-		if (historyUpdates.size() > 0) {
-			return historyUpdates.remove(0);
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Push an entry from the updates to the History field
-	 * 
-	 * @return
-	 */	
-	public void pushHistoryUpdate(String update) {
-		historyUpdates.add(update);
-	}
-
 	/**
 	 * Gets the forward mapped value(s) for the given ecmProperty and assigns it
 	 * to the corresponding TFS Field(s).
 	 * 
 	 * NOTE: Code very similar to the mapFromEcrIfUpdated - could be refactored
 	 * 
+	 * @param workItem
 	 * @param ecmProperty
-	 * @param ecrValue
+	 * @param ecr
+	 * @param messages
+	 * @param context the state of the mapping of the ecr
 	 * @throws CreateWorkItemException
 	 */
 	public void mapFromEcr(WorkItem workItem, String ecmProperty,
-			EnterpriseChangeRequest ecr, ValidationMessages messages)
-			throws CreateWorkItemException, CustomerMappingExpection {
+			EnterpriseChangeRequest ecr, ValidationMessages messages,
+			MappingContext context) throws CreateWorkItemException, CustomerMappingExpection {
 		try {
 			
 			// Handle mapping of links. Not (yet) covered by mapping
@@ -392,7 +468,7 @@ public class TFSMapper {
 			// mapping in the forward direction (ecm -> workitem).
 			// A ecm field can map to multiple workItem fields, hence
 			// a collection of properties.			
-			Collection<Property> properties = mapper
+			Collection<Property> properties = context.getMapping()
 					.getForwardProperties(ecmProperty);
 			if (properties == null) {
 				logger.info("No mapping exists for: " + ecmProperty);
@@ -408,7 +484,7 @@ public class TFSMapper {
 				String constraintValue = null;
 				if (constrainedBy != null) {
 					constraintValue = getConstraintValue(ecr, workItem,
-							property, Direction.FORWARD);
+							property, Direction.FORWARD, context);
 				}
 				Collection<String> values = property.getForward(
 						ecrValue, constraintValue);
@@ -442,7 +518,7 @@ public class TFSMapper {
 				case ECM_SITE:
 					// handle dependencies - must have all to be able to map
 					String mappedValue = handleCustomersAffected(
-							ecrValue, values, ecr, workItem, property);
+							ecmProperty, ecr, workItem, context);
 					if (mappedValue != null) {
 						setField(workItem.getFields(), fieldName,
 								mappedValue, messages);
@@ -471,14 +547,14 @@ public class TFSMapper {
 						}
 						boolean isRevision = property.getUseKey().equals(
 								ATTRIBUTE_MAPPING_PRIM_R_STATE);
-						mapProduct = productMappingFullFilled(isRevision,
-								mappedValue);
+						mapProduct = context.productMappingFullFilled(
+								isRevision, mappedValue);
 						break;
 					default:
 						break;
 					}
 					if (mapProduct) {
-						BackendEntity entity = mapProduct();
+						BackendEntity entity = mapProduct(context);
 						setField(workItem.getFields(), TFS_FAULTY_PRODUCT,
 								entity.getName(), messages);
 						setField(workItem.getFields(), TFS_TEAM,
@@ -515,12 +591,14 @@ public class TFSMapper {
 	 * @param ecmProperty ECM property name
 	 * @param ecr
 	 * @param messages
+	 * @param context the state of the mapping of the ecr, collects the
+	 *            updates to the History field
 	 * @return
 	 * @throws UpdateWorkItemException
 	 */
 	public boolean mapFromEcrIfChanged(WorkItem workItem, String ecmProperty,
-			EnterpriseChangeRequest ecr, ValidationMessages messages)
-			throws UpdateWorkItemException {
+			EnterpriseChangeRequest ecr, ValidationMessages messages,
+			MappingContext context) throws UpdateWorkItemException {
 		try {
 			
 			// Handle mapping of links. Not (yet) covered by mapping
@@ -533,7 +611,7 @@ public class TFSMapper {
 			// mapping in the forward direction (ecm -> workitem).
 			// A ecm field can map to multiple workItem fields, hence
 			// a collection of properties.
-			Collection<Property> properties = mapper
+			Collection<Property> properties = context.getMapping()
 					.getForwardProperties(ecmProperty);
 			if (properties == null) {
 				logger.info("No mapping exists for: " + ecmProperty);
@@ -555,14 +633,14 @@ public class TFSMapper {
 					boolean isAnswer = ecmProperty.equals(ECM_ANSWER);
 					String update = filterHistory(workItem, ecrValue, isAnswer);
 					if (update != null) {
-						pushHistoryUpdate(update);
+						context.pushHistoryUpdate(update);
 					} 
 					updated |= (update != null);
 					continue;
 				}
 				
 				updated |= mapFromEcrIfChangedValues(workItem, ecmProperty,
-						ecr, messages, property, ecrValue);
+						ecr, messages, property, ecrValue, context);
 			}
 			
 			return updated;
@@ -586,6 +664,7 @@ public class TFSMapper {
 	 * @param messages
 	 * @param property
 	 * @param ecrValue
+	 * @param context
 	 * @return If the workItem is changed
 	 * 
 	 * @throws CustomerMappingExpection
@@ -593,7 +672,7 @@ public class TFSMapper {
 	 */
 	private boolean mapFromEcrIfChangedValues(WorkItem workItem, String ecmProperty,
 			EnterpriseChangeRequest ecr, ValidationMessages messages,
-			Property property, String ecrValue)
+			Property property, String ecrValue, MappingContext context)
 					throws CustomerMappingExpection, ProductMappingError {	
 		
 		// The mapping property can define that mapping of a value is
@@ -603,7 +682,7 @@ public class TFSMapper {
 		String constraintValue = null;
 		if (constrainedBy != null) {
 			constraintValue = getConstraintValue(ecr, workItem,
-					property, Direction.FORWARD);
+					property, Direction.FORWARD, context);
 		}
 		
 		// Mapping of a property might result in multiple values in case
@@ -644,7 +723,7 @@ public class TFSMapper {
 		case ECM_SITE:
 			// handle dependencies - must have all to be able to map
 			String mappedValue = handleCustomersAffected(
-					ecrValue, mappedValues, ecr, workItem, property);
+					ecmProperty, ecr, workItem, context);
 			if (mappedValue == null) {
 				return false;
 			}	
@@ -672,14 +751,14 @@ public class TFSMapper {
 				}
 				boolean isRevision = property.getUseKey().equals(
 						ATTRIBUTE_MAPPING_PRIM_R_STATE);
-				mapProduct = productMappingFullFilled(isRevision,
+				mapProduct = context.productMappingFullFilled(isRevision,
 						mappedValue);
 				break;
 			default:
 				break;
 			}
 			if (mapProduct) {
-				BackendEntity entity = mapProduct();
+				BackendEntity entity = mapProduct(context);
 				return updateIfChanged(workItem, fieldName,
 						entity.getName(), messages);
 			}
@@ -772,9 +851,7 @@ public class TFSMapper {
 			return null;
 		}
 
-		// Matching "[TFS yyyy-mm-dd hh:mm:ss] Any message"
-		String tfsRegexp = "^\\[TFS (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}]).*";
-		if (Pattern.matches(tfsRegexp, input)) {
+		if (TFS_PATTERN.matcher(input).matches()) {
 			return null;
 		}
 		
@@ -786,12 +863,10 @@ public class TFSMapper {
 		}		
 
 		// Matching "[MH yyyy-mm-dd hh:mm:ss] Any message" as using find()
-		String mhRegexp = "^\\[MH (\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}])";
-		Pattern pattern = Pattern.compile(mhRegexp);
-		Matcher m = pattern.matcher(input);
+		Matcher m = HistoryIndex.MH_PATTERN.matcher(input);
 		if (m.find()) {
 			String match = m.group();
-			if (historyEntryMatchingStart(workItem, match)) {
+			if (getHistoryIndex().containsMhTag(workItem, match)) {
 				return null;
 			}
 		}
@@ -801,34 +876,8 @@ public class TFSMapper {
 	}
 
 	/**
-	 * Scan History to see if an entry starting with string tag is present. If
-	 * so, return true.
-	 * 
-	 * @param workItem
-	 * @param tag
-	 * @return
-	 */
-	private boolean historyEntryMatchingStart(WorkItem workItem, String tag) {
-		// scan history in reverse order, to match most recent entries first
-		RevisionCollection revisions = workItem.getRevisions();
-		for (int j = revisions.size() - 1; j >= 0; j--) {
-
-			Revision rev = revisions.get(j);
-			RevisionField historyField = rev.getField(TFS_HISTORY);
-			if (historyField != null) {
-				Object rValue = historyField.getValue();
-				if (rValue != null && rValue.toString().startsWith(tag)) {
-					// found matching history entry
-					return true;
-				}
-			}
-		}
-		return false;
-	}
-
-	/**
-	 * Scan History to see if an entry matching input is found. If so return
-	 * input stripped from any trailing newlines.
+	 * Check the History for an entry matching input, see {@link HistoryIndex}.
+	 * If not found return input stripped from any trailing newlines.
 	 * 
 	 * @param workItem
 	 * @param tag
@@ -840,19 +889,9 @@ public class TFSMapper {
 		while (input.endsWith("\n")) {
 			input = input.substring(0, input.lastIndexOf("\n"));
 		}
-		// scan history in reverse order, to match most recent entries first
-		RevisionCollection revisions = workItem.getRevisions();
-		for (int j = revisions.size() - 1; j >= 0; j--) {
-
-			Revision rev = revisions.get(j);
-			RevisionField historyField = rev.getField(TFS_HISTORY);
-			if (historyField != null) {
-				Object rValue = historyField.getValue();
-				if (rValue != null && rValue.equals(input)) {
-					// found matching history entry
-					return null;
-				}
-			}
+		if (getHistoryIndex().containsEntry(workItem, input)) {
+			// found matching history entry
+			return null;
 		}
 		return input;
 	}
@@ -964,27 +1003,23 @@ public class TFSMapper {
 		return null;
 	}
 
-	/**
-	 * A cache of mapped constraints - note: it must be cleared before
-	 * processing a new incoming or outgoing ECR. See {@link TFSMapper#clear()}
-	 */
-	private Map<String, String> constraintCache = new HashMap<>();
-
 	/**
 	 * Gets the constraintValue for the given {@link Property}<br>
 	 * E.g. If constrainedBy="System.State", then this will use the mapping to
 	 * retrieve the corresponding ECM-key, e.g. "oslc_cm:status". Then using this
 	 * key, it will map get the ECR-value from the given
 	 * {@link EnterpriseChangeRequest} to get its mapped value and return it. As
-	 * a side effect, the mapping will be cached to speed up next time we hit
-	 * this.
+	 * a side effect, a forward mapping will be cached in the given context to
+	 * speed up next time we hit this.
 	 * 
 	 * @param ecr
 	 * @param property
+	 * @param context the state of the mapping of the ecr
 	 * @return
 	 */
 	private String getConstraintValue(EnterpriseChangeRequest ecr,
-			WorkItem workItem, Property property, Direction direction) {
+			WorkItem workItem, Property property, Direction direction,
+			MappingContext context) {
 		String constrainedBy;
 		if (direction == Direction.FORWARD) {
 			constrainedBy = property.getForwardConstrainedBy();
@@ -996,93 +1031,81 @@ public class TFSMapper {
 			return null;
 		}
 
-		// try to get from constraint cache
-		if (constraintCache.containsKey(constrainedBy)) {
-			return constraintCache.get(constrainedBy);
+		// try to get from constraint cache - only used when mapping from an
+		// ECR, the inverse value is read from the workItem at hand
+		if (direction == Direction.FORWARD
+				&& context.hasConstraintValue(constrainedBy)) {
+			return context.getConstraintValue(constrainedBy);
 		}
 
-		Iterator<Entry<String, Property>> iterator;
 		if (direction == Direction.FORWARD) {
-			iterator = mapper.getForwardIterator();
-		} else {
-			iterator = mapper.getInverseIterator();
-		}
-		while (iterator.hasNext()) {
-			Entry<String, Property> entry = iterator.next();
-			Property constrainedByProperty = entry.getValue();
-			if (constrainedByProperty.getValue().equals(constrainedBy)) {
+			Property constrainedByProperty = context.getMapping()
+					.getForwardPropertyByValue(constrainedBy);
+			if (constrainedByProperty != null) {
 				String ecmKey = constrainedByProperty.getKey();
-				Collection<String> constraintValues;
-				if (direction == Direction.FORWARD) {
-					constraintValues = constrainedByProperty
-							.getForward(getEcrValue(ecr, ecmKey));
-					if (constraintValues == null) {
-						return null;
-					}
-					constraintValue = constraintValues.iterator().next(); // only
-																			// first
-				} else {
-					constraintValue = getFieldValue(workItem.getFields(),
-							constrainedBy);
+				Collection<String> constraintValues = constrainedByProperty
+						.getForward(getEcrValue(ecr, ecmKey));
+				if (constraintValues == null) {
+					return null;
 				}
-				constraintCache.put(constrainedBy, constraintValue);
-				break;
+				constraintValue = constraintValues.iterator().next(); // only
+																		// first
+				context.putConstraintValue(constrainedBy, constraintValue);
 			}
+		} else if (context.getMapping()
+				.getInverseProperties(constrainedBy) != null) {
+			constraintValue = getFieldValue(workItem.getFields(),
+					constrainedBy);
 		}
 		return constraintValue;
 	}
 
-	// TODO: Should be generalized to handle all "depends on" mappings
-	/**
-	 * Cache for the mapping of ECM_COUNTRY+ECM_CUSTOMER+ECM_SITE to
-	 * TFS_CUSTOMERS_AFFECTED
-	 */
-	Map<String, Collection<String>> dependencyMap = new HashMap<>();
-
-	/**
-	 * Clears constraints and dependency mapping - call before mapping a new ECR
-	 * to TFS
-	 */
-	public void clear() {
-		constraintCache.clear();
-		historyUpdates.clear();
-		clearDependencies();
-	}
-
-	private void clearDependencies() {
-		dependencyMap.clear();
-	}
-
 	/**
-	 * Mapping of TFS field customersAffected to ecm fields for
-	 * country, customer and site. 
-	 * 
-	 * TODO: Should be generalized to be able to be driven completely
-	 * by the configuration file, and no hardcoded dependencies.
+	 * Mapping of ecm fields for country, customer and site to the TFS field
+	 * customersAffected. The combined mapping is compiled from the "depends"
+	 * of the properties, so all values are looked up at once from the ecr
+	 * when the first of the properties is mapped. The others are ignored.
 	 * 
 	 * @param ecmProperty
 	 * @param ecr
 	 * @param workItem
-	 * @param messages
-	 * @param property
-	 * @return
+	 * @param context
+	 * @return the new field value, or null if not to be changed
 	 * @throws CustomerMappingExpection
 	 */
-	private String handleCustomersAffected(String ecrValue,
-			Collection<String> mappedValues,
+	private String handleCustomersAffected(String ecmProperty,
 			EnterpriseChangeRequest ecr, WorkItem workItem,
-			Property property) throws CustomerMappingExpection {
+			MappingContext context)
+			throws CustomerMappingExpection {
 
-		String fieldName = property.getValue();
-		
-		// handle dependencies - must have all to be able to map
-		if (!dependenciesFullFilled(property, mappedValues)) {
+		CompositeMapping composite = context.getMapping().getCompositeMapping(
+				ecmProperty);
+		if (composite == null) {
+			logger.debug("No dependent mapping exists for: " + ecmProperty);
+			return null;
+		}
+		String fieldName = composite.getFieldName();
+		if (!context.markMapped(fieldName)) {
 			return null;
 		}
+
+		// handle dependencies - must have all to be able to map
+		List<String> ecrValues = new ArrayList<>();
+		for (String key : composite.getKeys()) {
+			String ecrValue = getEcrValue(ecr, key);
+			if (!composite.isMapped(key, ecrValue)) {
+				String value = ecrValue == null? "null" : ecrValue;
+				logger.debug("Property: " + key + " with value: " + value
+						+ " did not map to any value for TFS and "
+						+ fieldName + " will be ignored.");
+				return null;
+			}
+			ecrValues.add(ecrValue);
+		}
 		
-		Collection<String> mappedCustomers = mapCustomer(ecrValue);
+		String mappedCustomer = composite.get(ecrValues);
 		// Mapping missing?
-		if (mappedCustomers.isEmpty()) {
+		if (mappedCustomer == null) {
 			// get all 3 bits:
 			String message = "Customer mapping missing for: [";
 			message += ECM_COUNTRY + ": "
@@ -1095,10 +1118,6 @@ public class TFSMapper {
 			throw new CustomerMappingExpection(message);
 		}
 		
-		// Customer mapping MUST be unique - will use first
-		// value if more than one match
-		String mappedCustomer = mappedCustomers.iterator().next();
-		
 		// Format:
 		//    single entry: [value0]
 		//    multiple entries: [value0];[value1];
@@ -1120,71 +1139,17 @@ public class TFSMapper {
 		}
 		return value;
 	}	
-	
-	private boolean dependenciesFullFilled(Property property, Collection<String> values)
-			throws CustomerMappingExpection {
-		boolean fullFilled = true;
-		for (String dependency : property.getDependencies()) {
-			if (!dependencyMap.containsKey(dependency)) {
-				// Missing dependency - add property and return
-				fullFilled = false;
-			}
-		}
-		String key = property.getKey();
-		dependencyMap.put(key, values);
-		return fullFilled;
-	}
-
-	private Collection<String> mapCustomer(String ecrValue)
-			throws CustomerMappingExpection {
-		Collection<String> intersection = new ArrayList<>();
-		boolean firstTime = true;
-		Set<String> keys = dependencyMap.keySet();
-		for (String key : keys) {
-			Collection<String> mappedValues = dependencyMap.get(key);
-			if (mappedValues == null) {
-				throw new CustomerMappingExpection("Null mapping for: "
-						+ ecrValue);
-			}
-			if (firstTime) {
-				intersection.addAll(mappedValues);
-				firstTime = false;
-			} else {
-				intersection.retainAll(mappedValues);
-			}
-		}
-		clearDependencies();
-		return intersection;
-	}
-
-	private String product;
-	private String productRevision;
-
-	private boolean productMappingFullFilled(boolean isRevision, String value) {
-		if (isRevision) {
-			productRevision = value;
-		} else {
-			product = value;
-		}
-		return product != null && productRevision != null;
-	}
 
-	private BackendEntity mapProduct() throws ProductMappingError {
-		PrimProduct primProduct = new PrimProduct(product, productRevision);
-		clearProductMapping();
-		BackendEntity entity = ProductMapper.getInstance().getEntity(
-				primProduct);
+	private BackendEntity mapProduct(MappingContext context)
+			throws ProductMappingError {
+		PrimProduct primProduct = context.takeProduct();
+		BackendEntity entity = context.getMapping().getEntity(primProduct);
 		if (entity == null) {
 			throw new ProductMappingError(primProduct);
 		}
 		return entity;
 	}
 
-	private void clearProductMapping() {
-		product = null;
-		productRevision = null;
-	}
-
 	/**
 	 * Updates the {@link Hyperlink}s of the given {@link WorkItem} with the
 	 * {@link Link}s (ECM_ATTACHMENT) from the given
@@ -1290,10 +1255,11 @@ public class TFSMapper {
 	 * @param workItem
 	 * @param ecr
 	 * @param messages
+	 * @param context
 	 * @return
 	 */
 	public boolean shouldDisconnect(WorkItem workItem, EnterpriseChangeRequest ecr,
-			ValidationMessages messages) {
+			ValidationMessages messages, MappingContext context) {
 		
 		// Create a ecr for the mapping
 		EnterpriseChangeRequest newEcr = null;
@@ -1302,7 +1268,8 @@ public class TFSMapper {
 		} catch (URISyntaxException e) {
 			logger.error("Failed to create a dummy ecr. Should not happen.", e);
 		}
-		List<String> currentMhos = mapToEcr(newEcr, TFSMapper.ECM_CURRENT_MHO, workItem);
+		List<String> currentMhos = mapToEcr(newEcr, TFSMapper.ECM_CURRENT_MHO,
+				workItem, context);
 		String currentMho = "";
 		if (currentMhos == null || currentMhos.size() == 0 ||
 				currentMhos.get(0) == null || currentMhos.get(0).isEmpty()) {
@@ -1355,71 +1322,73 @@ public class TFSMapper {
 	 * primary to > 1, so can be a list of TRs in a String. Format: TR1;TR2 ...
 	 * 
 	 * We will get update for TR B, so need to update the Bug(s) associated with
-	 * the TRs listed as Duplicated unless they already are marked as Duplicate.
+	 * the TRs listed as Duplicated unless they already are marked as Duplicate,
+	 * see {@link #setDuplicate(WorkItem, String, ValidationMessages)}.
 	 * 
 	 * @param ecr
-	 * @param workItem
-	 * @param workItemId
-	 * @return
+	 * @return the TRs listed as Duplicated
 	 */
-	public List<WorkItem> updateDuplicate(EnterpriseChangeRequest ecr,
-			WorkItem workItem, String workItemId, ValidationMessages messages) {
-
-		List<WorkItem> updated = new ArrayList<WorkItem>();
-
+	public List<String> getDuplicateTRs(EnterpriseChangeRequest ecr) {
 		String duplicateTRs = ecr.getDuplicateTRs();
 		if (duplicateTRs == null || duplicateTRs.isEmpty()) {
-			return updated;
+			return new ArrayList<String>();
 		}
 
 		// Unparse list of TRs separated with ";"
-		String[] duplicateTRList = duplicateTRs.split(";");
-		for (int i = 0; i < duplicateTRList.length; i++) {
-			String duplicateTR = duplicateTRList[i];
-
-			WorkItem connectedWi = TFSUtilities.getBugForTR(
-					TFSConnector.getWorkItemClient(), duplicateTR);
-			if (connectedWi == null) {
-				continue;
+		List<String> trIds = new ArrayList<String>();
+		for (String trId : duplicateTRs.split(";")) {
+			trId = trId.trim();
+			if (!trId.isEmpty()) {
+				trIds.add(trId);
 			}
+		}
+		return trIds;
+	}
 
-			// Open to get all fields for workitem
-			connectedWi.open();
+	/**
+	 * Sets the Bug of a TR listed as Duplicated as Duplicate to the workitem,
+	 * see {@link #getDuplicateTRs(EnterpriseChangeRequest)}. The Bug must be
+	 * opened to get all fields.
+	 * 
+	 * @param connectedWi
+	 * @param workItemId
+	 * @param messages
+	 * @return false if the Bug already was Duplicate
+	 */
+	public boolean setDuplicate(WorkItem connectedWi, String workItemId,
+			ValidationMessages messages) {
 
-			// If already set to Duplicate we can ignore this
-			Object subState = connectedWi.getFields().getField(TFS_SUBSTATE)
-					.getValue();
-			if (subState != null
-					&& subState.toString().equalsIgnoreCase(TFS_SUBSTATE_DUPLICATE)) {
-				continue;
-			}
+		// If already set to Duplicate we can ignore this
+		Object subState = connectedWi.getFields().getField(TFS_SUBSTATE)
+				.getValue();
+		if (subState != null
+				&& subState.toString().equalsIgnoreCase(TFS_SUBSTATE_DUPLICATE)) {
+			return false;
+		}
 
-			// Set workitem to Duplicate. When Bug and TR are in sync, the TR
-			// that is Duplicate is in a state mapping to Active. And we "know"
-			// that the "Duplicate" substate for the Bug only is available when
-			// Bug is Resolved or Closed. So if Bug in state Active, try to move
-			// to Resolved. If this fail due to other conditions - so be it.
-			
-			// TODO: Can be done more elegant by introduce an action in the bug.xml
-			// so we can check for getNextState("Disconnect"), Then not dependent on
-			// knowing state names.
-			
-			Field stateField = connectedWi.getFields().getField(
-					TFSMapper.TFS_STATE);
-			String state = stateField.getValue().toString();
-			if (state.equalsIgnoreCase(TFS_STATE_ACTIVE)) {
-				setField(connectedWi.getFields(), TFS_STATE, TFS_STATE_RESOLVED,
-						messages);
-			}
-			setField(connectedWi.getFields(), TFS_SUBSTATE, TFS_SUBSTATE_DUPLICATE,
-					messages);
-			setField(connectedWi.getFields(), TFS_DUPLICATE_ID, workItemId,
+		// Set workitem to Duplicate. When Bug and TR are in sync, the TR
+		// that is Duplicate is in a state mapping to Active. And we "know"
+		// that the "Duplicate" substate for the Bug only is available when
+		// Bug is Resolved or Closed. So if Bug in state Active, try to move
+		// to Resolved. If this fail due to other conditions - so be it.
+		
+		// TODO: Can be done more elegant by introduce an action in the bug.xml
+		// so we can check for getNextState("Disconnect"), Then not dependent on
+		// knowing state names.
+		
+		Field stateField = connectedWi.getFields().getField(
+				TFSMapper.TFS_STATE);
+		String state = stateField.getValue().toString();
+		if (state.equalsIgnoreCase(TFS_STATE_ACTIVE)) {
+			setField(connectedWi.getFields(), TFS_STATE, TFS_STATE_RESOLVED,
 					messages);
-
-			updated.add(connectedWi);
 		}
+		setField(connectedWi.getFields(), TFS_SUBSTATE, TFS_SUBSTATE_DUPLICATE,
+				messages);
+		setField(connectedWi.getFields(), TFS_DUPLICATE_ID, workItemId,
+				messages);
 
-		return updated;
+		return true;
 	}
 
 	/**
@@ -1474,11 +1443,11 @@ public class TFSMapper {
 	 * @param ecmProperty
 	 * @return
 	 */
-	private static String getEcrValue(EnterpriseChangeRequest ecr,
+	public static String getEcrValue(EnterpriseChangeRequest ecr,
 			String ecmProperty) {
 		switch (ecmProperty) {
 		case ECM_TITLE:
-			return ecr.getTitle().trim();
+			return ecr.getTitle() != null ? ecr.getTitle().trim() : null;
 		case ECM_IDENTIFIER:
 			return ecr.getIdentifier();
 		case ECM_PRIORITY:
@@ -1555,8 +1524,9 @@ public class TFSMapper {
 	// needs to be done to provide a correct ER based on the workItem
 	
 	public void setEcrValues(EnterpriseChangeRequest ecr, String ecmProperty,
-			WorkItem workItem) {
-		setEcrValue(ecr, ecmProperty, mapToEcr(ecr, ecmProperty, workItem));
+			WorkItem workItem, MappingContext context) {
+		setEcrValue(ecr, ecmProperty, mapToEcr(ecr, ecmProperty, workItem,
+				context));
 	}
 
 	public void setEcrValue(EnterpriseChangeRequest ecr, String ecmProperty,
@@ -1688,10 +1658,11 @@ public class TFSMapper {
 	 * 
 	 * @param ecmProperty
 	 * @param fields
+	 * @param context
 	 * @return
 	 */
 	private List<String> mapToEcr(EnterpriseChangeRequest ecr,
-			String ecmProperty, WorkItem workItem) {
+			String ecmProperty, WorkItem workItem, MappingContext context) {
 		FieldCollection fields = workItem.getFields();
 
 		// handle special values (not mapped)
@@ -1703,14 +1674,13 @@ public class TFSMapper {
 			return Arrays.asList(relatedLink);
 		case ECM_OWNER:
 			String displayName = getFieldValue(fields, TFS_OWNER);
-			TfsUserLookup lookup = new TfsUserLookup(TFSConnector.getTpc());
-			String signum = lookup.getSignum(displayName);
+			String signum = TfsUserLookup.getInstance().getSignum(displayName);
 			return Arrays.asList(signum);
 		default:
 			break;
 		}
 		List<String> mappedValues = new ArrayList<>();
-		Collection<Property> properties = mapper
+		Collection<Property> properties = context.getMapping()
 				.getForwardProperties(ecmProperty);
 		if (properties == null) {
 			logger.debug("No mapping TFS->ECR for: " + ecmProperty);
@@ -1756,14 +1726,14 @@ public class TFSMapper {
 			case ECM_NODE_PRODUCT:
 			case ECM_CORRECTED_NODE_PRODUCT:
 			case ECM_CORRECTED_PRODUCT:
-				primProduct = getPrimProduct(fields, ecmProperty, fieldName);
+				primProduct = getPrimProduct(fields, fieldName, context);
 				return primProduct != null ? Arrays.asList(primProduct
 						.getPrimProdNo()) : null;
 			case ECM_PRODUCT_REVISION:
 			case ECM_NODE_PRODUCT_REVISION:
 			case ECM_CORRECTED_NODE_PRODUCT_REVISION:
 			case ECM_CORRECTED_PRODUCT_REVISION:
-				primProduct = getPrimProduct(fields, ecmProperty, fieldName);
+				primProduct = getPrimProduct(fields, fieldName, context);
 				return primProduct != null ? Arrays.asList(primProduct
 						.getPrimRState()) : null;
 			default:
@@ -1774,7 +1744,7 @@ public class TFSMapper {
 			String constraintValue = null;
 			if (constrainedBy != null) {
 				constraintValue = getConstraintValue(ecr, workItem, property,
-						Direction.INVERSE);
+						Direction.INVERSE, context);
 			}
 
 			Collection<String> values = property.getInverse(fieldValue,
@@ -1791,7 +1761,7 @@ public class TFSMapper {
 	}
 	
 	private PrimProduct getPrimProduct(FieldCollection fields,
-			String ecmProperty, String releaseField) {
+			String releaseField, MappingContext context) {
 
 		String entityName = getFieldValue(fields, releaseField);
 		String team = getFieldValue(fields, TFS_TEAM);
@@ -1802,7 +1772,7 @@ public class TFSMapper {
 			return null;
 		}
 		BackendEntity entity = new BackendEntity(entityName, team);
-		return ProductMapper.getInstance().getProduct(entity);
+		return context.getMapping().getProduct(entity);
 	}
 
 	private void setAttachment(EnterpriseChangeRequest ecr, List<String> values) {
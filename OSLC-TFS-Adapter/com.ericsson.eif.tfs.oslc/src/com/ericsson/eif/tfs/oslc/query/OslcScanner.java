@@ -0,0 +1,110 @@
+package com.ericsson.eif.tfs.oslc.query;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
+
+/**
+ * Scanner over an OSLC query parameter, with the tokens shared by
+ * {@link OslcWhereParser} and {@link OslcSelectParser}.
+ */
+abstract class OslcScanner {
+
+    final String input;
+    int pos;
+    private final String parameter;
+
+    /**
+     * @param parameter
+     *            the name of the query parameter, for the error messages
+     * @param input
+     */
+    OslcScanner(String parameter, String input) {
+        this.parameter = parameter;
+        this.input = input;
+    }
+
+    /**
+     * Parses a prefixed property name, e.g. <code>dcterms:title</code>
+     * 
+     * @return
+     * @throws InvalidQueryException
+     */
+    String parseIdentifier() throws InvalidQueryException {
+        int start = pos;
+        while (!atEnd() && isIdentifierChar(peek())) {
+            pos++;
+        }
+        if (start == pos) {
+            if (!atEnd() && peek() == '*') {
+                throw error("Wildcards are not supported");
+            }
+            throw error("Expected property name");
+        }
+        String identifier = input.substring(start, pos);
+        if (identifier.indexOf(':') <= 0) {
+            throw error("Expected prefixed property name");
+        }
+        return identifier;
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-'
+                || c == '.' || c == ':';
+    }
+
+    void expect(char c) throws InvalidQueryException {
+        if (atEnd() || peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    void skipWhitespace() {
+        while (!atEnd() && Character.isWhitespace(peek())) {
+            pos++;
+        }
+    }
+
+    boolean atEnd() {
+        return pos >= input.length();
+    }
+
+    char peek() {
+        return input.charAt(pos);
+    }
+
+    char next() {
+        return input.charAt(pos++);
+    }
+
+    InvalidQueryException error(String message) {
+        return new InvalidQueryException("Invalid " + parameter + ": "
+                + message + " at position " + pos + " in: " + input);
+    }
+}
@@ -0,0 +1,117 @@
+package com.ericsson.eif.tfs.oslc.query;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
+import com.ericsson.eif.tfs.oslc.mapping.MappingState;
+
+/**
+ * Parser for oslc.select - a comma separated list of properties. A nested
+ * selection, e.g. <code>ecm:owner{foaf:name}</code>, selects the whole
+ * property since the nested resources are not expanded by the adapter. The
+ * wildcard "*" selects all properties. The properties supported are the
+ * same as in oslc.where, see {@link WiqlFilter}.
+ */
+public class OslcSelectParser extends OslcScanner {
+
+    private final MappingState mapping;
+
+    private OslcSelectParser(String input, MappingState mapping) {
+        super("oslc.select", input);
+        this.mapping = mapping;
+    }
+
+    /**
+     * Parses the oslc.select clause into the selected properties
+     * 
+     * @param select
+     * @param mapping
+     *            the mapping to validate the properties with
+     * @return the selected properties, or <b>null</b> if all properties are
+     *         selected
+     * @throws InvalidQueryException
+     *             if the clause can not be parsed or selects properties not
+     *             known by the adapter
+     */
+    public static Set<String> parse(String select, MappingState mapping)
+            throws InvalidQueryException {
+        if (select == null || select.trim().isEmpty()) {
+            return null;
+        }
+        return new OslcSelectParser(select, mapping).parseProperties();
+    }
+
+    private Set<String> parseProperties() throws InvalidQueryException {
+        Set<String> properties = new LinkedHashSet<>();
+        boolean all = false;
+        while (true) {
+            skipWhitespace();
+            if (!atEnd() && peek() == '*') {
+                pos++;
+                all = true;
+            } else {
+                String property = parseIdentifier();
+                if (!WiqlFilter.isSupported(property, mapping)) {
+                    throw new InvalidQueryException(
+                            "Unsupported property in oslc.select: " + property);
+                }
+                properties.add(property);
+            }
+            skipWhitespace();
+            if (!atEnd() && peek() == '{') {
+                skipNested();
+                skipWhitespace();
+            }
+            if (atEnd()) {
+                break;
+            }
+            if (next() != ',') {
+                pos--;
+                throw error("Expected ','");
+            }
+        }
+        return all ? null : properties;
+    }
+
+    private void skipNested() throws InvalidQueryException {
+        int depth = 0;
+        while (!atEnd()) {
+            char c = next();
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return;
+            }
+        }
+        throw error("Unterminated '{'");
+    }
+}
@@ -0,0 +1,195 @@
+package com.ericsson.eif.tfs.oslc.query;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
+import com.ericsson.eif.tfs.oslc.query.Term.Operator;
+
+/**
+ * Parser for the subset of the OSLC query syntax used in oslc.where that the
+ * adapter supports: terms combined with "and", the comparison operators
+ * =, !=, &lt;, &gt;, &lt;=, &gt;= and "in". Values can be string literals
+ * (type or language tags are ignored), URIs or plain literals like numbers
+ * and booleans. Nested properties, e.g. <code>ecm:owner{foaf:name="x"}</code>,
+ * and wildcards are not supported.
+ */
+public class OslcWhereParser extends OslcScanner {
+
+    private OslcWhereParser(String input) {
+        super("oslc.where", input);
+    }
+
+    /**
+     * Parses the oslc.where clause into its terms, all to be combined with
+     * "and"
+     * 
+     * @param where
+     * @return
+     * @throws InvalidQueryException
+     */
+    public static List<Term> parse(String where) throws InvalidQueryException {
+        return new OslcWhereParser(where).parseCompoundTerm();
+    }
+
+    private List<Term> parseCompoundTerm() throws InvalidQueryException {
+        List<Term> terms = new ArrayList<>();
+        skipWhitespace();
+        terms.add(parseTerm());
+        skipWhitespace();
+        while (!atEnd()) {
+            if (!isKeyword("and", false)) {
+                throw error("Expected 'and'");
+            }
+            pos += 3;
+            skipWhitespace();
+            terms.add(parseTerm());
+            skipWhitespace();
+        }
+        return terms;
+    }
+
+    private Term parseTerm() throws InvalidQueryException {
+        String property = parseIdentifier();
+        skipWhitespace();
+        if (atEnd()) {
+            throw error("Expected operator");
+        }
+        if (peek() == '{') {
+            throw error("Nested properties are not supported");
+        }
+        if (isKeyword("in", true)) {
+            pos += 2;
+            skipWhitespace();
+            return new Term(property, Operator.IN, parseValueList());
+        }
+        Operator operator = parseOperator();
+        skipWhitespace();
+        return new Term(property, operator, Arrays.asList(parseValue()));
+    }
+
+    // The keyword must be followed by whitespace, or by the '[' of a value
+    // list if allowed, e.g. "andx:y=1" is not "and x:y=1"
+    private boolean isKeyword(String keyword, boolean valueList) {
+        if (!input.startsWith(keyword, pos)) {
+            return false;
+        }
+        int end = pos + keyword.length();
+        if (end >= input.length()) {
+            return false;
+        }
+        char c = input.charAt(end);
+        return Character.isWhitespace(c) || (valueList && c == '[');
+    }
+
+    private Operator parseOperator() throws InvalidQueryException {
+        for (String symbol : new String[] { "!=", "<=", ">=", "=", "<", ">" }) {
+            if (input.startsWith(symbol, pos)) {
+                pos += symbol.length();
+                return Operator.fromSymbol(symbol);
+            }
+        }
+        throw error("Expected operator");
+    }
+
+    private List<String> parseValueList() throws InvalidQueryException {
+        expect('[');
+        List<String> values = new ArrayList<>();
+        skipWhitespace();
+        values.add(parseValue());
+        skipWhitespace();
+        while (!atEnd() && peek() == ',') {
+            pos++;
+            skipWhitespace();
+            values.add(parseValue());
+            skipWhitespace();
+        }
+        expect(']');
+        return values;
+    }
+
+    private String parseValue() throws InvalidQueryException {
+        if (atEnd()) {
+            throw error("Expected value");
+        }
+        switch (peek()) {
+        case '"':
+            String value = parseString();
+            skipLiteralSuffix();
+            return value;
+        case '<':
+            int end = input.indexOf('>', pos);
+            if (end == -1) {
+                throw error("Unterminated URI");
+            }
+            String uri = input.substring(pos + 1, end);
+            pos = end + 1;
+            return uri;
+        default:
+            int start = pos;
+            while (!atEnd() && !Character.isWhitespace(peek())
+                    && peek() != ',' && peek() != ']') {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("Expected value");
+            }
+            return input.substring(start, pos);
+        }
+    }
+
+    private String parseString() throws InvalidQueryException {
+        StringBuilder value = new StringBuilder();
+        pos++; // opening quote
+        while (!atEnd()) {
+            char c = input.charAt(pos++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\' && !atEnd()) {
+                c = input.charAt(pos++);
+            }
+            value.append(c);
+        }
+        throw error("Unterminated string");
+    }
+
+    // typed literals ("1"^^xsd:integer) and language tags ("x"@en) are
+    // compared as plain strings
+    private void skipLiteralSuffix() {
+        if (input.startsWith("^^", pos) || (!atEnd() && peek() == '@')) {
+            while (!atEnd() && !Character.isWhitespace(peek())
+                    && peek() != ',' && peek() != ']') {
+                pos++;
+            }
+        }
+    }
+}
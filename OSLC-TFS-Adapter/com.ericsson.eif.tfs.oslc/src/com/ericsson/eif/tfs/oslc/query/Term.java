@@ -0,0 +1,137 @@
+package com.ericsson.eif.tfs.oslc.query;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * A single term of an oslc.where clause, e.g. <code>oslc_cm:status="Open"</code>
+ * or <code>ecm:priority in ["A","B"]</code>. Values are kept as the plain
+ * string, i.e. without quotes for literals and without angle brackets for
+ * URIs.
+ */
+public class Term {
+
+    public enum Operator {
+        EQUALS("="),
+        NOT_EQUALS("!="),
+        LESS("<"),
+        GREATER(">"),
+        LESS_EQUALS("<="),
+        GREATER_EQUALS(">="),
+        IN("in");
+
+        private final String symbol;
+
+        private Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public static Operator fromSymbol(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final String property;
+    private final Operator operator;
+    private final List<String> values;
+
+    public Term(String property, Operator operator, List<String> values) {
+        this.property = property;
+        this.operator = operator;
+        this.values = values;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * Evaluates the term against the value of the property
+     * 
+     * @param actual
+     *            the property value, <b>null</b> if not set
+     * @return
+     */
+    public boolean matches(String actual) {
+        switch (operator) {
+        case EQUALS:
+        case IN:
+            return actual != null && values.contains(actual);
+        case NOT_EQUALS:
+            return actual == null || !values.contains(actual);
+        default:
+            if (actual == null) {
+                return false;
+            }
+            int result = compare(actual, values.get(0));
+            switch (operator) {
+            case LESS:
+                return result < 0;
+            case GREATER:
+                return result > 0;
+            case LESS_EQUALS:
+                return result <= 0;
+            default:
+                return result >= 0;
+            }
+        }
+    }
+
+    // Compare as numbers if both values are numeric
+    private static int compare(String actual, String value) {
+        try {
+            return new BigDecimal(actual.trim()).compareTo(new BigDecimal(value));
+        } catch (NumberFormatException e) {
+            return actual.compareTo(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return property + " " + operator.getSymbol() + " " + values;
+    }
+}
@@ -0,0 +1,276 @@
+package com.ericsson.eif.tfs.oslc.query;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
+import com.ericsson.eif.tfs.oslc.mapping.MappingState;
+import com.ericsson.eif.tfs.oslc.mapping.Property;
+import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
+import com.ericsson.eif.tfs.oslc.query.Term.Operator;
+import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.ericsson.eif.tfs.oslc.utils.TfsUserLookup;
+import com.microsoft.tfs.core.clients.workitem.CoreFieldReferenceNames;
+import com.microsoft.tfs.core.clients.workitem.fields.FieldDefinitionCollection;
+
+/**
+ * An oslc.where clause split in the part that can be pushed down to TFS as a
+ * WIQL condition and the terms that have to be evaluated on the mapped
+ * {@link EnterpriseChangeRequest}s.
+ * 
+ * A term is pushed down when the ECM values can be translated to a known set
+ * of values of a single TFS field using the attribute mapping, i.e. the
+ * property is mapped to one field without constraints and the values are not
+ * resolved in code (products, customers etc). Ordering comparisons are never
+ * pushed down as the order of the mapped values is not known.
+ */
+public class WiqlFilter {
+
+    static Logger logger = Logger.getLogger(WiqlFilter.class);
+
+    // Properties mapped in code - always evaluated on the mapped ECR
+    private static final Set<String> IN_MEMORY_PROPERTIES = new LinkedHashSet<>(
+            Arrays.asList(TFSMapper.ECM_ANSWER, TFSMapper.ECM_ATTACHMENT,
+                    TFSMapper.ECM_COUNTRY, TFSMapper.ECM_CUSTOMER,
+                    TFSMapper.ECM_SITE, TFSMapper.ECM_PRODUCT,
+                    TFSMapper.ECM_PRODUCT_REVISION, TFSMapper.ECM_NODE_PRODUCT,
+                    TFSMapper.ECM_NODE_PRODUCT_REVISION,
+                    TFSMapper.ECM_CORRECTED_PRODUCT,
+                    TFSMapper.ECM_CORRECTED_PRODUCT_REVISION,
+                    TFSMapper.ECM_CORRECTED_NODE_PRODUCT,
+                    TFSMapper.ECM_CORRECTED_NODE_PRODUCT_REVISION));
+
+    private final String wiqlClause;
+    private final List<Term> residualTerms;
+
+    private WiqlFilter(String wiqlClause, List<Term> residualTerms) {
+        this.wiqlClause = wiqlClause;
+        this.residualTerms = residualTerms;
+    }
+
+    /**
+     * Parses the oslc.where clause and splits it into a WIQL condition and
+     * terms to evaluate in memory.
+     * 
+     * @param where
+     * @param fieldDefinitions
+     *            the fields of the collection
+     * @param mapping
+     *            the mapping to translate the properties with
+     * @return
+     * @throws InvalidQueryException
+     *             if the clause can not be parsed or refers to properties
+     *             not known by the adapter
+     */
+    public static WiqlFilter create(String where,
+            FieldDefinitionCollection fieldDefinitions, MappingState mapping)
+            throws InvalidQueryException {
+        List<String> clauses = new ArrayList<>();
+        List<Term> residualTerms = new ArrayList<>();
+        for (Term term : OslcWhereParser.parse(where)) {
+            String clause = toWiql(term, fieldDefinitions, mapping);
+            if (clause != null) {
+                clauses.add(clause);
+            } else {
+                residualTerms.add(term);
+            }
+        }
+        String wiqlClause = null;
+        if (!clauses.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String clause : clauses) {
+                sb.append(sb.length() == 0 ? "" : " and ");
+                sb.append("(").append(clause).append(")");
+            }
+            wiqlClause = sb.toString();
+        }
+        logger.debug("oslc.where: " + where + " -> WIQL: " + wiqlClause
+                + ", in memory: " + residualTerms);
+        return new WiqlFilter(wiqlClause, residualTerms);
+    }
+
+    /**
+     * @return the WIQL condition, or <b>null</b> if no term could be pushed
+     *         down
+     */
+    public String getWiqlClause() {
+        return wiqlClause;
+    }
+
+    public List<Term> getResidualTerms() {
+        return residualTerms;
+    }
+
+    /**
+     * Evaluates the terms that could not be pushed down on the mapped change
+     * request
+     * 
+     * @param ecr
+     * @return
+     */
+    public boolean matches(EnterpriseChangeRequest ecr) {
+        for (Term term : residualTerms) {
+            if (!term.matches(TFSMapper.getEcrValue(ecr, term.getProperty()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toWiql(Term term,
+            FieldDefinitionCollection fieldDefinitions, MappingState mapping)
+            throws InvalidQueryException {
+        String ecmProperty = term.getProperty();
+        if (!isSupported(ecmProperty, mapping)) {
+            throw new InvalidQueryException("Unsupported property in oslc.where: "
+                    + ecmProperty);
+        }
+        Operator operator = term.getOperator();
+        if (operator != Operator.EQUALS && operator != Operator.NOT_EQUALS
+                && operator != Operator.IN) {
+            return null;
+        }
+        if (IN_MEMORY_PROPERTIES.contains(ecmProperty)) {
+            return null;
+        }
+        Collection<Property> properties = mapping
+                .getForwardProperties(ecmProperty);
+
+        String field;
+        Set<String> fieldValues = new LinkedHashSet<>();
+        switch (ecmProperty) {
+        case TFSMapper.ECM_IDENTIFIER:
+            field = TFSMapper.ERICSSON_DEFECT_LINK_FIELD;
+            fieldValues.addAll(term.getValues());
+            break;
+        case TFSMapper.ECM_RELATED_CHANGE_REQUEST:
+            field = TFSMapper.ERICSSON_DEFECT_LINK_FIELD;
+            String crUrl = TFSAdapterManager.getMhweb_related_cr_url();
+            for (String value : term.getValues()) {
+                if (!value.startsWith(crUrl)) {
+                    return null;
+                }
+                fieldValues.add(value.substring(crUrl.length()));
+            }
+            break;
+        case TFSMapper.ECM_OWNER:
+            field = TFSMapper.TFS_OWNER;
+            TfsUserLookup lookup = TfsUserLookup.getInstance();
+            for (String value : term.getValues()) {
+                String displayName = lookup.getUserName(value);
+                if (displayName == null) {
+                    return null;
+                }
+                fieldValues.add(displayName);
+            }
+            break;
+        default:
+            if (properties.size() != 1) {
+                return null;
+            }
+            Property property = properties.iterator().next();
+            if (property.getInverseConstrainedBy() != null
+                    || property.getUseMapping() != null) {
+                return null;
+            }
+            field = property.getValue().trim();
+            if (field.equals(TFSMapper.TFS_HISTORY)) {
+                return null;
+            }
+            for (String value : term.getValues()) {
+                Collection<String> keys = property.getInverseKeys(value);
+                if (keys == null) {
+                    return null;
+                }
+                fieldValues.addAll(keys);
+            }
+            break;
+        }
+        if (!fieldDefinitions.contains(field)) {
+            return null;
+        }
+
+        if (operator == Operator.NOT_EQUALS) {
+            if (fieldValues.isEmpty()) {
+                // no workitem can have the value - matches all
+                return "[" + CoreFieldReferenceNames.ID + "] > 0";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String fieldValue : fieldValues) {
+                sb.append(sb.length() == 0 ? "" : " and ");
+                sb.append("[").append(field).append("] <> ")
+                        .append(quote(fieldValue));
+            }
+            return sb.toString();
+        }
+        if (fieldValues.isEmpty()) {
+            // no workitem can have the value
+            return "[" + CoreFieldReferenceNames.ID + "] < 0";
+        }
+        if (fieldValues.size() == 1) {
+            return "[" + field + "] = " + quote(fieldValues.iterator().next());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String fieldValue : fieldValues) {
+            sb.append(sb.length() == 0 ? "" : ", ");
+            sb.append(quote(fieldValue));
+        }
+        return "[" + field + "] In (" + sb + ")";
+    }
+
+    /**
+     * @param ecmProperty
+     * @param mapping
+     * @return true if the property is mapped, in the attribute mapping or in
+     *         code, i.e. can be used in oslc.where and oslc.select
+     */
+    static boolean isSupported(String ecmProperty, MappingState mapping) {
+        return mapping.getForwardProperties(ecmProperty) != null
+                || isMappedInCode(ecmProperty);
+    }
+
+    private static boolean isMappedInCode(String ecmProperty) {
+        return ecmProperty.equals(TFSMapper.ECM_IDENTIFIER)
+                || ecmProperty.equals(TFSMapper.ECM_OWNER)
+                || ecmProperty.equals(TFSMapper.ECM_RELATED_CHANGE_REQUEST)
+                || IN_MEMORY_PROPERTIES.contains(ecmProperty);
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
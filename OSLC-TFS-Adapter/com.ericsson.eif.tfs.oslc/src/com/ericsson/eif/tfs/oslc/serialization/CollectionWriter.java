@@ -0,0 +1,147 @@
+package com.ericsson.eif.tfs.oslc.serialization;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.lyo.oslc4j.core.model.AbstractResource;
+import org.eclipse.lyo.oslc4j.provider.jena.JenaModelHelper;
+
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Writes an OSLC resource collection one member at a time, so that only the
+ * member being written has to be kept in memory. The collection description
+ * and the response info are written around the members in the same shape as
+ * the OSLC4J providers use for a collection.
+ */
+public abstract class CollectionWriter {
+
+    public static final String TEXT_TURTLE = "text/turtle";
+    public static final String APPLICATION_N_TRIPLES = "application/n-triples";
+
+    public static final MediaType TEXT_TURTLE_TYPE = MediaType
+            .valueOf(TEXT_TURTLE);
+    public static final MediaType APPLICATION_N_TRIPLES_TYPE = MediaType
+            .valueOf(APPLICATION_N_TRIPLES);
+
+    protected static final String RDF_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    protected static final String RDFS_NAMESPACE = "http://www.w3.org/2000/01/rdf-schema#";
+    protected static final String OSLC_NAMESPACE = "http://open-services.net/ns/core#";
+
+    protected final Writer writer;
+
+    protected CollectionWriter(OutputStream out) {
+        writer = new BufferedWriter(new OutputStreamWriter(out,
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a writer for the media type
+     * 
+     * @param mediaType
+     * @param out
+     * @return
+     * @throws IOException
+     */
+    public static CollectionWriter create(MediaType mediaType,
+            OutputStream out) throws IOException {
+        if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+            return new JsonCollectionWriter(out);
+        }
+        if (mediaType.isCompatible(TEXT_TURTLE_TYPE)
+                || mediaType.isCompatible(APPLICATION_N_TRIPLES_TYPE)) {
+            // N-Triples is a subset of Turtle
+            return new NTriplesCollectionWriter(out);
+        }
+        return new RdfXmlCollectionWriter(out);
+    }
+
+    /**
+     * Writes what comes before the members
+     * 
+     * @param about
+     *            the URI of the collection
+     * @param responseInfoAbout
+     *            the URI of the response info, i.e. the request URI
+     * @param nextPage
+     *            the URI of the next page, or <b>null</b>
+     * @throws IOException
+     */
+    public abstract void writeStart(String about, String responseInfoAbout,
+            String nextPage) throws IOException;
+
+    /**
+     * Writes a member of the collection
+     * 
+     * @param resource
+     * @throws IOException
+     */
+    public abstract void writeMember(AbstractResource resource)
+            throws IOException;
+
+    /**
+     * Writes what comes after the members and flushes
+     * 
+     * @throws IOException
+     */
+    public abstract void writeEnd() throws IOException;
+
+    /**
+     * Sends what has been written so far to the client
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Creates a Jena model of a single resource
+     * 
+     * @param resource
+     * @return
+     * @throws IOException
+     */
+    protected static Model createModel(AbstractResource resource)
+            throws IOException {
+        try {
+            return JenaModelHelper.createJenaModel(new Object[] { resource });
+        } catch (Exception e) {
+            throw new IOException("Failed to serialize " + resource.getAbout(), e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.ericsson.eif.tfs.oslc.serialization;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.wink.json4j.JSONObject;
+import org.eclipse.lyo.oslc4j.core.model.AbstractResource;
+import org.eclipse.lyo.oslc4j.provider.json4j.JsonHelper;
+
+/**
+ * Writes a collection as OSLC JSON. Each member is converted on its own with
+ * the OSLC4J JSON helper, and the prefixes of all members are written last.
+ */
+public class JsonCollectionWriter extends CollectionWriter {
+
+    private static final String PREFIXES = "prefixes";
+
+    private final Map<String, String> prefixes = new TreeMap<>();
+    private String responseInfoAbout;
+    private String nextPage;
+    private boolean first = true;
+
+    public JsonCollectionWriter(OutputStream out) {
+        super(out);
+        prefixes.put("rdf", RDF_NAMESPACE);
+        prefixes.put("rdfs", RDFS_NAMESPACE);
+        prefixes.put("oslc", OSLC_NAMESPACE);
+    }
+
+    @Override
+    public void writeStart(String about, String responseInfoAbout,
+            String nextPage) throws IOException {
+        this.responseInfoAbout = responseInfoAbout;
+        this.nextPage = nextPage;
+        writer.write("{\"rdf:about\":" + quote(about) + ",\"rdfs:member\":[");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeMember(AbstractResource resource) throws IOException {
+        JSONObject json;
+        try {
+            json = JsonHelper.createJSON(null, null, null,
+                    new Object[] { resource }, null);
+        } catch (Exception e) {
+            throw new IOException("Failed to serialize " + resource.getAbout(), e);
+        }
+        Object memberPrefixes = json.remove(PREFIXES);
+        if (memberPrefixes instanceof Map) {
+            for (Map.Entry<Object, Object> prefix : ((Map<Object, Object>) memberPrefixes)
+                    .entrySet()) {
+                prefixes.put(prefix.getKey().toString(), prefix.getValue()
+                        .toString());
+            }
+        }
+        if (!first) {
+            writer.write(',');
+        }
+        first = false;
+        writer.write(json.toString());
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        writer.write("],\"oslc:responseInfo\":{\"rdf:about\":"
+                + quote(responseInfoAbout));
+        if (nextPage != null) {
+            writer.write(",\"oslc:nextPage\":{\"rdf:resource\":"
+                    + quote(nextPage) + "}");
+        }
+        writer.write("},\"" + PREFIXES + "\":{");
+        boolean firstPrefix = true;
+        for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+            if (!firstPrefix) {
+                writer.write(',');
+            }
+            firstPrefix = false;
+            writer.write(quote(prefix.getKey()) + ":" + quote(prefix.getValue()));
+        }
+        writer.write("}}");
+        flush();
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                quoted.append('\\').append(c);
+                break;
+            case '\n':
+                quoted.append("\\n");
+                break;
+            case '\r':
+                quoted.append("\\r");
+                break;
+            case '\t':
+                quoted.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.ericsson.eif.tfs.oslc.serialization;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.eclipse.lyo.oslc4j.core.model.AbstractResource;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * Writes a collection as N-Triples, one line per statement. As N-Triples is a
+ * subset of Turtle, it is used for text/turtle as well.
+ */
+public class NTriplesCollectionWriter extends CollectionWriter {
+
+    private String about;
+
+    public NTriplesCollectionWriter(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void writeStart(String about, String responseInfoAbout,
+            String nextPage) throws IOException {
+        this.about = about;
+        writeTriple(responseInfoAbout, RDF_NAMESPACE + "type", "<"
+                + OSLC_NAMESPACE + "ResponseInfo>");
+        if (nextPage != null) {
+            writeTriple(responseInfoAbout, OSLC_NAMESPACE + "nextPage", "<"
+                    + escape(nextPage) + ">");
+        }
+    }
+
+    @Override
+    public void writeMember(AbstractResource resource) throws IOException {
+        if (resource.getAbout() != null) {
+            writeTriple(about, RDFS_NAMESPACE + "member", "<"
+                    + escape(resource.getAbout().toString()) + ">");
+        }
+        Model model = createModel(resource);
+        try {
+            StmtIterator statements = model.listStatements();
+            try {
+                while (statements.hasNext()) {
+                    Statement statement = statements.nextStatement();
+                    writer.write(toString(statement.getSubject()));
+                    writer.write(" <");
+                    writer.write(escape(statement.getPredicate().getURI()));
+                    writer.write("> ");
+                    writer.write(toString(statement.getObject()));
+                    writer.write(" .\n");
+                }
+            } finally {
+                statements.close();
+            }
+        } finally {
+            model.close();
+        }
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        flush();
+    }
+
+    private void writeTriple(String subject, String predicate, String object)
+            throws IOException {
+        writer.write("<" + escape(subject) + "> <" + escape(predicate) + "> "
+                + object + " .\n");
+    }
+
+    private static String toString(RDFNode node) {
+        if (node.isAnon()) {
+            return blankNodeLabel(node.asResource());
+        }
+        if (node.isLiteral()) {
+            Literal literal = node.asLiteral();
+            String value = "\"" + escape(literal.getLexicalForm()) + "\"";
+            if (literal.getLanguage() != null
+                    && !literal.getLanguage().isEmpty()) {
+                return value + "@" + literal.getLanguage();
+            }
+            if (literal.getDatatypeURI() != null) {
+                return value + "^^<" + escape(literal.getDatatypeURI()) + ">";
+            }
+            return value;
+        }
+        return "<" + escape(node.asResource().getURI()) + ">";
+    }
+
+    // Jena blank node ids are unique across models, but may contain
+    // characters not allowed in a label
+    private static String blankNodeLabel(Resource resource) {
+        String id = resource.getId().getLabelString();
+        StringBuilder label = new StringBuilder("_:b");
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            label.append(Character.isLetterOrDigit(c) && c < 128 ? c : 'x');
+        }
+        return label.toString();
+    }
+
+    private static String escape(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\':
+                escaped.append("\\\\");
+                break;
+            case '"':
+                escaped.append("\\\"");
+                break;
+            case '\n':
+                escaped.append("\\n");
+                break;
+            case '\r':
+                escaped.append("\\r");
+                break;
+            case '\t':
+                escaped.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    escaped.append(String.format("\\u%04X", (int) c));
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,229 @@
+package com.ericsson.eif.tfs.oslc.serialization;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+import org.eclipse.lyo.oslc4j.core.model.AbstractResource;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * Writes a collection as RDF/XML. Each member is written as its own
+ * rdf:Description elements inside the rdf:RDF element. Namespaces other than
+ * the ones of the collection are declared on the property elements, since
+ * they are not known when the rdf:RDF element is written.
+ */
+public class RdfXmlCollectionWriter extends CollectionWriter {
+
+    static Logger logger = Logger.getLogger(RdfXmlCollectionWriter.class);
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory
+            .newInstance();
+
+    // namespaces declared on the rdf:RDF element
+    private static final Map<String, String> ROOT_PREFIXES = new HashMap<>();
+    static {
+        ROOT_PREFIXES.put(RDF_NAMESPACE, "rdf");
+        ROOT_PREFIXES.put(RDFS_NAMESPACE, "rdfs");
+        ROOT_PREFIXES.put(OSLC_NAMESPACE, "oslc");
+    }
+
+    private final XMLStreamWriter xml;
+    private String about;
+
+    public RdfXmlCollectionWriter(OutputStream out) throws IOException {
+        super(out);
+        try {
+            xml = OUTPUT_FACTORY.createXMLStreamWriter(writer);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void writeStart(String about, String responseInfoAbout,
+            String nextPage) throws IOException {
+        this.about = about;
+        try {
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement("rdf", "RDF", RDF_NAMESPACE);
+            for (Map.Entry<String, String> prefix : ROOT_PREFIXES.entrySet()) {
+                xml.writeNamespace(prefix.getValue(), prefix.getKey());
+            }
+            xml.writeStartElement("oslc", "ResponseInfo", OSLC_NAMESPACE);
+            xml.writeAttribute("rdf", RDF_NAMESPACE, "about", responseInfoAbout);
+            if (nextPage != null) {
+                xml.writeEmptyElement("oslc", "nextPage", OSLC_NAMESPACE);
+                xml.writeAttribute("rdf", RDF_NAMESPACE, "resource", nextPage);
+            }
+            xml.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void writeMember(AbstractResource resource) throws IOException {
+        Model model = createModel(resource);
+        try {
+            if (resource.getAbout() != null) {
+                xml.writeStartElement("rdf", "Description", RDF_NAMESPACE);
+                xml.writeAttribute("rdf", RDF_NAMESPACE, "about", about);
+                xml.writeEmptyElement("rdfs", "member", RDFS_NAMESPACE);
+                xml.writeAttribute("rdf", RDF_NAMESPACE, "resource", resource
+                        .getAbout().toString());
+                xml.writeEndElement();
+            }
+            ResIterator subjects = model.listSubjects();
+            try {
+                while (subjects.hasNext()) {
+                    writeDescription(model, subjects.nextResource());
+                }
+            } finally {
+                subjects.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            model.close();
+        }
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        try {
+            xml.writeEndElement();
+            xml.writeEndDocument();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            xml.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        super.flush();
+    }
+
+    private void writeDescription(Model model, Resource subject)
+            throws XMLStreamException {
+        xml.writeStartElement("rdf", "Description", RDF_NAMESPACE);
+        writeNode("about", subject);
+        StmtIterator statements = subject.listProperties();
+        try {
+            while (statements.hasNext()) {
+                writeProperty(model, statements.nextStatement());
+            }
+        } finally {
+            statements.close();
+        }
+        xml.writeEndElement();
+    }
+
+    private void writeProperty(Model model, Statement statement)
+            throws XMLStreamException {
+        Property predicate = statement.getPredicate();
+        String namespace = predicate.getNameSpace();
+        String localName = predicate.getLocalName();
+        if (localName == null || localName.isEmpty()) {
+            logger.warn("Cannot write property " + predicate.getURI()
+                    + " as RDF/XML - skipped");
+            return;
+        }
+        String prefix = ROOT_PREFIXES.get(namespace);
+        boolean declare = prefix == null;
+        if (declare) {
+            prefix = model.getNsURIPrefix(namespace);
+            if (prefix == null || prefix.isEmpty()
+                    || ROOT_PREFIXES.containsValue(prefix)) {
+                prefix = "j.0";
+            }
+        }
+
+        RDFNode object = statement.getObject();
+        if (object.isLiteral()) {
+            xml.writeStartElement(prefix, localName, namespace);
+        } else {
+            xml.writeEmptyElement(prefix, localName, namespace);
+        }
+        if (declare) {
+            xml.writeNamespace(prefix, namespace);
+        }
+        if (object.isLiteral()) {
+            Literal literal = object.asLiteral();
+            if (literal.getLanguage() != null
+                    && !literal.getLanguage().isEmpty()) {
+                xml.writeAttribute("xml", XMLConstants.XML_NS_URI, "lang",
+                        literal.getLanguage());
+            } else if (literal.getDatatypeURI() != null) {
+                xml.writeAttribute("rdf", RDF_NAMESPACE, "datatype",
+                        literal.getDatatypeURI());
+            }
+            xml.writeCharacters(literal.getLexicalForm());
+            xml.writeEndElement();
+        } else {
+            writeNode("resource", object.asResource());
+        }
+    }
+
+    // rdf:about/rdf:resource for a URI, rdf:nodeID for a blank node
+    private void writeNode(String attribute, Resource resource)
+            throws XMLStreamException {
+        if (resource.isAnon()) {
+            xml.writeAttribute("rdf", RDF_NAMESPACE, "nodeID", "A"
+                    + resource.getId().getLabelString().replaceAll(
+                            "[^A-Za-z0-9]", "x"));
+        } else {
+            xml.writeAttribute("rdf", RDF_NAMESPACE, attribute,
+                    resource.getURI());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.ericsson.eif.tfs.oslc.serialization;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.log4j.Logger;
+import org.eclipse.lyo.oslc4j.core.model.AbstractResource;
+
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
+
+/**
+ * A collection response that is written while its members are produced,
+ * window by window, instead of being built in memory and then serialized as a
+ * whole. What has been written is sent to the client after each window.
+ */
+public class StreamingCollection implements StreamingOutput {
+
+    static Logger logger = Logger.getLogger(StreamingCollection.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 200;
+    public static final int DEFAULT_MAX_PAGE_SIZE = 10000;
+
+    private final Iterator<? extends List<? extends AbstractResource>> windows;
+    private final MediaType mediaType;
+    private final String about;
+    private final String responseInfoAbout;
+    private final String nextPage;
+
+    /**
+     * @param windows
+     *            the members, produced one window at a time
+     * @param mediaType
+     * @param uriInfo
+     * @param paging
+     *            the paging, with next page decided
+     */
+    public StreamingCollection(
+            Iterator<? extends List<? extends AbstractResource>> windows,
+            MediaType mediaType, UriInfo uriInfo, OslcPaging paging) {
+        this.windows = windows;
+        this.mediaType = mediaType;
+        about = uriInfo.getAbsolutePath().toString();
+        responseInfoAbout = uriInfo.getRequestUri().toString();
+        nextPage = paging.getNextPage(uriInfo);
+    }
+
+    /**
+     * Selects the media type to respond with, the first of the produced
+     * types accepted by the client
+     * 
+     * @param headers
+     * @param produced
+     * @return
+     */
+    public static MediaType getMediaType(HttpHeaders headers,
+            MediaType... produced) {
+        for (MediaType acceptable : headers.getAcceptableMediaTypes()) {
+            for (MediaType mediaType : produced) {
+                if (acceptable.isCompatible(mediaType)) {
+                    return mediaType;
+                }
+            }
+        }
+        return produced[0];
+    }
+
+    public Response toResponse() {
+        return Response.ok(this, mediaType).build();
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        CollectionWriter writer = CollectionWriter.create(mediaType, out);
+        writer.writeStart(about, responseInfoAbout, nextPage);
+        int members = 0;
+        try {
+            while (windows.hasNext()) {
+                for (AbstractResource member : windows.next()) {
+                    writer.writeMember(member);
+                    members++;
+                }
+                writer.flush();
+            }
+        } catch (RuntimeException e) {
+            // the status is already sent, all we can do is to cut the response
+            logger.error("Failed to stream " + responseInfoAbout + " after "
+                    + members + " members", e);
+            throw new IOException(e);
+        }
+        writer.writeEnd();
+        logger.debug("Streamed " + members + " members of " + responseInfoAbout);
+    }
+}
@@ -22,6 +22,7 @@ package com.ericsson.eif.tfs.oslc.services;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.servlet.ServletException;
@@ -36,6 +37,8 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
@@ -48,10 +51,15 @@ import org.eclipse.lyo.oslc4j.core.model.OslcConstants;
 import org.eclipse.lyo.oslc4j.core.model.OslcMediaType;
 
 import com.ericsson.eif.tfs.oslc.TFSAdapterConstants;
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
 import com.ericsson.eif.tfs.oslc.exception.CreateWorkItemException;
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
 import com.ericsson.eif.tfs.oslc.factories.TFSChangeRequestFactory;
 import com.ericsson.eif.tfs.oslc.resources.ChangeRequest;
 import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
+import com.ericsson.eif.tfs.oslc.serialization.CollectionWriter;
+import com.ericsson.eif.tfs.oslc.serialization.StreamingCollection;
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
 
 
 // Start of user code imports
@@ -65,6 +73,7 @@ public class ServiceProviderServiceExtras
 	@Context private HttpServletRequest httpServletRequest;
 	@Context private HttpServletResponse httpServletResponse;
 	@Context private UriInfo uriInfo;
+	@Context private HttpHeaders httpHeaders;
 	
 	private static Logger logger = Logger.getLogger(ServiceProviderServiceExtras.class);
 	
@@ -114,34 +123,106 @@ public class ServiceProviderServiceExtras
     } 
     
     /**
-     * RDF/XML, XML and JSON representations of workitems in a specific service provider
+     * RDF/XML, XML and JSON representations of workitems in a specific service provider.
+     * If tfs_streaming_collections is set, the collection is streamed, see
+     * {@link StreamingCollection}
      * 
      * @param collectionId
      * @param serviceProviderId
+     * @param where
+     * @param select
+     * @param pagingString
+     * @param pageSizeString
+     * @param pageString
      * @return
      */
     
     @GET
     @Produces({OslcMediaType.APPLICATION_RDF_XML, OslcMediaType.APPLICATION_XML, OslcMediaType.APPLICATION_JSON})
-    public ChangeRequest[] getChangeRequests(@PathParam("collectionId") final String collectionId,
+    public Response getChangeRequests(@PathParam("collectionId") final String collectionId,
 											 @PathParam("serviceProviderId") final String serviceProviderId,
 											 @QueryParam("oslc.where") final String where,
+											 @QueryParam("oslc.select") final String select,
+											 @QueryParam("oslc.paging") final String pagingString,
+											 @QueryParam("oslc.pageSize") final String pageSizeString,
 											 @QueryParam("page") final String pageString) throws IOException, ServletException 
     {
+        if (TFSAdapterManager.isStreamingCollections()) {
+            return streamChangeRequests(collectionId, serviceProviderId,
+                    where, select, pagingString, pageSizeString, pageString,
+                    OslcMediaType.APPLICATION_RDF_XML_TYPE,
+                    OslcMediaType.APPLICATION_XML_TYPE,
+                    OslcMediaType.APPLICATION_JSON_TYPE);
+        }
+        OslcPaging paging = new OslcPaging(pagingString, pageString, pageSizeString);
         try {
             List<EnterpriseChangeRequest> ecrs = 
                     TFSChangeRequestFactory.getChangeRequests(
                             collectionId, 
                             serviceProviderId, 
+                            where,
+                            select,
+                            paging,
                             uriInfo);
+            paging.setNextPage(httpServletRequest, uriInfo);
             ChangeRequest[] crs = ecrs.toArray(new ChangeRequest[0]);
-            return crs;
+            return Response.ok(crs).build();
 
+        } catch (InvalidQueryException e) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
         } catch (URISyntaxException e) {
             logger.error(e.getLocalizedMessage(), e);
         }
     	throw new WebApplicationException(Status.NOT_FOUND);    	
     }
+
+    /**
+     * Turtle and N-Triples representations of workitems in a specific service
+     * provider, always streamed - see {@link StreamingCollection}
+     * 
+     * @param collectionId
+     * @param serviceProviderId
+     * @param where
+     * @param select
+     * @param pagingString
+     * @param pageSizeString
+     * @param pageString
+     * @return
+     */
+    @GET
+    @Produces({CollectionWriter.TEXT_TURTLE, CollectionWriter.APPLICATION_N_TRIPLES})
+    public Response getChangeRequestsAsTriples(@PathParam("collectionId") final String collectionId,
+                                               @PathParam("serviceProviderId") final String serviceProviderId,
+                                               @QueryParam("oslc.where") final String where,
+                                               @QueryParam("oslc.select") final String select,
+                                               @QueryParam("oslc.paging") final String pagingString,
+                                               @QueryParam("oslc.pageSize") final String pageSizeString,
+                                               @QueryParam("page") final String pageString)
+    {
+        return streamChangeRequests(collectionId, serviceProviderId, where,
+                select, pagingString, pageSizeString, pageString,
+                CollectionWriter.TEXT_TURTLE_TYPE,
+                CollectionWriter.APPLICATION_N_TRIPLES_TYPE);
+    }
+
+    private Response streamChangeRequests(String collectionId,
+            String serviceProviderId, String where, String select,
+            String pagingString, String pageSizeString, String pageString,
+            MediaType... produced) {
+        OslcPaging paging = new OslcPaging(pagingString, pageString,
+                pageSizeString, TFSAdapterManager.getStreamingMaxPageSize());
+        try {
+            Iterator<List<EnterpriseChangeRequest>> windows = TFSChangeRequestFactory
+                    .getChangeRequestWindows(collectionId, serviceProviderId,
+                            where, select, paging,
+                            TFSAdapterManager.getStreamingWindowSize(), uriInfo);
+            return new StreamingCollection(windows,
+                    StreamingCollection.getMediaType(httpHeaders, produced),
+                    uriInfo, paging).toResponse();
+        } catch (InvalidQueryException e) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        }
+    }
     
 }
 
@@ -23,7 +23,11 @@ package com.ericsson.eif.tfs.oslc.services;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -40,11 +44,16 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONObject;
 import org.eclipse.lyo.oslc4j.core.annotation.OslcCreationFactory;
 import org.eclipse.lyo.oslc4j.core.annotation.OslcDialog;
 import org.eclipse.lyo.oslc4j.core.annotation.OslcDialogs;
@@ -57,12 +66,20 @@ import org.eclipse.lyo.oslc4j.core.model.ServiceProvider;
 import com.ericsson.eif.tfs.oslc.TFSAdapterConstants;
 import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
 import com.ericsson.eif.tfs.oslc.exception.CreateWorkItemException;
+import com.ericsson.eif.tfs.oslc.exception.InvalidQueryException;
 import com.ericsson.eif.tfs.oslc.exception.UpdateWorkItemException;
+import com.ericsson.eif.tfs.oslc.factories.AsyncUpdateQueue;
+import com.ericsson.eif.tfs.oslc.factories.BatchUpdate;
+import com.ericsson.eif.tfs.oslc.factories.ChangeRequestCache;
 import com.ericsson.eif.tfs.oslc.factories.TFSChangeRequestFactory;
+import com.ericsson.eif.tfs.oslc.factories.TFSWorkItemFactory;
 import com.ericsson.eif.tfs.oslc.resources.ChangeRequest;
 import com.ericsson.eif.tfs.oslc.resources.EnterpriseChangeRequest;
 import com.ericsson.eif.tfs.oslc.resources.TFSChangeRequest;
+import com.ericsson.eif.tfs.oslc.serialization.CollectionWriter;
+import com.ericsson.eif.tfs.oslc.serialization.StreamingCollection;
 import com.ericsson.eif.tfs.oslc.servlet.ServiceProviderCatalogSingleton;
+import com.ericsson.eif.tfs.oslc.utils.OslcPaging;
 import com.ericsson.eif.tfs.oslc.utils.ValidationMessages;
 
 
@@ -79,6 +96,8 @@ public class TFSChangeRequestService
 	@Context private HttpServletRequest httpServletRequest;
 	@Context private HttpServletResponse httpServletResponse;
 	@Context private UriInfo uriInfo;
+	@Context private HttpHeaders httpHeaders;
+	@Context private Request request;
 	
     public TFSChangeRequestService()
     {
@@ -122,10 +141,14 @@ public class TFSChangeRequestService
     
 	/**
 	 * RDF/XML, XML and JSON representation of a all change requests in the collection
-	 * NOTE: Could be returning a large number of items - OK to expose this?
+	 * The collection is paged if asked for, see {@link OslcPaging}. If tfs_streaming_collections
+	 * is set, the collection is streamed, see {@link StreamingCollection}
 	 * 
 	 * @param collectionId
 	 * @param where
+	 * @param select
+	 * @param pagingString
+	 * @param pageSizeString
 	 * @param pageString
 	 * @return 
 	 * @throws IOException
@@ -135,30 +158,83 @@ public class TFSChangeRequestService
     
     @GET
     @Produces({OslcMediaType.APPLICATION_RDF_XML, OslcMediaType.APPLICATION_XML, OslcMediaType.APPLICATION_JSON})
-    public ChangeRequest [] getTFSChangeRequests(@PathParam("collectionId")   final String collectionId,
+    public Response getTFSChangeRequests(@PathParam("collectionId")   final String collectionId,
     		                                 		 @QueryParam("oslc.where") final String where,
+    		                                 		 @QueryParam("oslc.select") final String select,
+    		                                 		 @QueryParam("oslc.paging") final String pagingString,
+    		                                 		 @QueryParam("oslc.pageSize") final String pageSizeString,
     		                                 		 @QueryParam("page")       final String pageString) throws IOException, ServletException 
     {
-    	int page=0;  
-    	int limit=999;
+        if (TFSAdapterManager.isStreamingCollections()) {
+            return streamTFSChangeRequests(collectionId, where, select,
+                    pagingString, pageSizeString, pageString,
+                    OslcMediaType.APPLICATION_RDF_XML_TYPE,
+                    OslcMediaType.APPLICATION_XML_TYPE,
+                    OslcMediaType.APPLICATION_JSON_TYPE);
+        }
+    	OslcPaging paging = new OslcPaging(pagingString, pageString, pageSizeString);
         
 		// Start of user code (MUST_FILL_IN) getResourceCollection_init
 		// End of user code
 
-    	//TODO/FA: The following code is broken when responding to GET on ...services/workitems/DefaultCollection
-    	// since the method getTFSChangeRequests() expects a "serviceProviderId" but gets a "collectionId" which cause a whole lot of errors...
-    	// Rewrite and/or reuse code from TFSWorkItemFactory (?)
-//        final List<TFSChangeRequest> resources = TFSAdapterManager.getTFSChangeRequests(httpServletRequest, collectionId, page, limit);      
         List<EnterpriseChangeRequest> resources;
         try {
-            resources = TFSChangeRequestFactory.getChangeRequests(collectionId, null, uriInfo);
-            return resources.toArray(new ChangeRequest [resources.size()]);
+            resources = TFSChangeRequestFactory.getChangeRequests(collectionId, null, where, select, paging, uriInfo);
+            paging.setNextPage(httpServletRequest, uriInfo);
+            return Response.ok(resources.toArray(new ChangeRequest [resources.size()])).build();
+        } catch (InvalidQueryException e) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
         } catch (URISyntaxException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }      
         return null;
     }
+
+    /**
+     * Turtle and N-Triples representation of all change requests in the
+     * collection, always streamed - see {@link StreamingCollection}
+     * 
+     * @param collectionId
+     * @param where
+     * @param select
+     * @param pagingString
+     * @param pageSizeString
+     * @param pageString
+     * @return
+     */
+    @GET
+    @Produces({CollectionWriter.TEXT_TURTLE, CollectionWriter.APPLICATION_N_TRIPLES})
+    public Response getTFSChangeRequestsAsTriples(@PathParam("collectionId") final String collectionId,
+                                                  @QueryParam("oslc.where") final String where,
+                                                  @QueryParam("oslc.select") final String select,
+                                                  @QueryParam("oslc.paging") final String pagingString,
+                                                  @QueryParam("oslc.pageSize") final String pageSizeString,
+                                                  @QueryParam("page") final String pageString)
+    {
+        return streamTFSChangeRequests(collectionId, where, select,
+                pagingString, pageSizeString, pageString,
+                CollectionWriter.TEXT_TURTLE_TYPE,
+                CollectionWriter.APPLICATION_N_TRIPLES_TYPE);
+    }
+
+    private Response streamTFSChangeRequests(String collectionId,
+            String where, String select, String pagingString,
+            String pageSizeString, String pageString, MediaType... produced) {
+        OslcPaging paging = new OslcPaging(pagingString, pageString,
+                pageSizeString, TFSAdapterManager.getStreamingMaxPageSize());
+        try {
+            Iterator<List<EnterpriseChangeRequest>> windows = TFSChangeRequestFactory
+                    .getChangeRequestWindows(collectionId, null, where, select,
+                            paging, TFSAdapterManager.getStreamingWindowSize(),
+                            uriInfo);
+            return new StreamingCollection(windows,
+                    StreamingCollection.getMediaType(httpHeaders, produced),
+                    uriInfo, paging).toResponse();
+        } catch (InvalidQueryException e) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build());
+        }
+    }
     
     /**
      * HTML representation of change request collection
@@ -249,7 +325,9 @@ public class TFSChangeRequestService
 
     
 	/**
-	 * RDF/XML, XML and JSON representation of a single change request
+	 * RDF/XML, XML and JSON representation of a single change request.
+	 * The ETag is the workitem id and revision - if it matches If-None-Match,
+	 * 304 is returned without mapping the workitem.
 	 * 
      * @param collectionId
      * @param workItemId
@@ -261,15 +339,27 @@ public class TFSChangeRequestService
     @GET
     @Path("{workItemId}")
     @Produces({OslcMediaType.APPLICATION_RDF_XML, OslcMediaType.APPLICATION_XML, OslcMediaType.APPLICATION_JSON})
-    public ChangeRequest getTFSChangeRequest(@PathParam("collectionId")       final String collectionId,
+    public Response getTFSChangeRequest(@PathParam("collectionId")       final String collectionId,
                                                   @PathParam("workItemId") final String workItemId) throws IOException, ServletException, URISyntaxException
     {
 	
 		// Start of user code (MUST_FILL_IN) getResource_init
 		// End of user code
-        final EnterpriseChangeRequest ecr = TFSChangeRequestFactory.getChangeRequest(collectionId, workItemId, uriInfo);
-        if (ecr != null) {
-            return ecr;
+        int revision = TFSChangeRequestFactory.getRevision(workItemId);
+        if (revision < 0) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+        ResponseBuilder notModified = request.evaluatePreconditions(
+                TFSChangeRequestFactory.getEntityTag(workItemId, revision));
+        if (notModified != null) {
+            return notModified.build();
+        }
+        final ChangeRequestCache.Entry entry = TFSChangeRequestFactory
+                .getChangeRequest(collectionId, workItemId, revision, uriInfo);
+        if (entry.getChangeRequest() != null) {
+            return Response.ok(entry.getChangeRequest()).tag(
+                    TFSChangeRequestFactory.getEntityTag(workItemId,
+                            entry.getRevision())).build();
         }
         throw new WebApplicationException(Status.NOT_FOUND);
     }
@@ -753,7 +843,17 @@ public class TFSChangeRequestService
 	
     
     /**
-     * Updates a single change request via RDF/XML, XML or JSON PUT
+     * Updates a single change request via RDF/XML, XML or JSON PUT. If an
+     * If-Match is given, it must match the ETag of the current revision or
+     * 412 is returned without updating. The revision is checked under the
+     * lock of the workitem, and the update fails with 409 rather than being
+     * applied to a revision saved meanwhile by another source. The ETag
+     * returned is that of the revision saved.
+     * <p>
+     * If tfs_async_updates is set, the update is queued and 202 is returned
+     * with the URL of its status, see {@link AsyncUpdateQueue}. The If-Match
+     * is then checked when the update is applied, and the status is 412 if
+     * it does not match.
      * 
      * @param eTagHeader
      * @param changeRequestId
@@ -771,19 +871,194 @@ public class TFSChangeRequestService
             final EnterpriseChangeRequest ecr)
             throws WebApplicationException {
     	
+        AsyncUpdateQueue queue = AsyncUpdateQueue.getInstance();
+        if (queue != null) {
+            try {
+                long updateId = queue.submit(workItemId, ecr, eTagHeader);
+                URI statusUri = getUpdateStatusUri(updateId);
+                return Response.status(Response.Status.ACCEPTED)
+                        .location(statusUri).entity(statusUri.toString())
+                        .build();
+            } catch (IllegalStateException e) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                        .entity(e.getMessage()).build();
+            } catch (IOException e) {
+                throw new WebApplicationException(e,
+                        Response.Status.INTERNAL_SERVER_ERROR);
+            }
+        }
         try {
-            ValidationMessages messages = TFSChangeRequestFactory.updateChangeRequest(ecr, workItemId, httpServletRequest);
+            ValidationMessages messages = TFSChangeRequestFactory.updateChangeRequest(ecr, workItemId, eTagHeader, httpServletRequest);
             String responseMessage = messages.createReport();
-            return Response.ok(Response.Status.OK).entity(responseMessage).build();
+            return Response.ok(Response.Status.OK).entity(responseMessage)
+                    .tag(TFSChangeRequestFactory.getEntityTag(workItemId,
+                            messages.getRevision()))
+                    .build();
             //return Response.ok().build();
         } catch (UpdateWorkItemException e) {
-            if (e.getStatusCode() == 403) {
-                return Response.status(Response.Status.FORBIDDEN).entity(e.getMessage()).build();
-            }
-            return Response.status(Response.Status.CONFLICT).entity(e.getMessage()).build();
+            return Response.status(BatchUpdate.getStatus(e)).entity(e.getMessage()).build();
         }
     }	
     
+    /**
+     * Updates a batch of change requests via RDF/XML, XML or JSON POST. Each
+     * change request is applied to the workitem its rdf:about refers to, as
+     * by {@link #updateChangeRequest(String, String, EnterpriseChangeRequest)}
+     * but without If-Match. See {@link BatchUpdate}.
+     * <p>
+     * Returns a JSON array with, for each change request in order, the
+     * workitem id, the status the PUT would have returned, the report and
+     * the ETag after the update.
+     * <p>
+     * If tfs_async_updates is set, the change requests are queued in order
+     * like PUTs, so that the updates of a workitem are applied in the order
+     * they are received. The status is then 202 and the update the URL of
+     * the status of the update, or 503 if the queue is full.
+     * 
+     * @param collectionId
+     * @param ecrs
+     * @return
+     */
+    @POST
+    @Consumes({ OslcMediaType.APPLICATION_RDF_XML, OslcMediaType.APPLICATION_XML, OslcMediaType.APPLICATION_JSON })
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("batch")
+    @SuppressWarnings("unchecked")
+    public Response updateChangeRequests(
+            @PathParam("collectionId") final String collectionId,
+            final EnterpriseChangeRequest[] ecrs) {
+        
+        if (ecrs == null || ecrs.length == 0) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("No change requests").build();
+        }
+        if (ecrs.length > TFSAdapterManager.getBatchMaxSize()) {
+            return Response.status(413).entity("At most "
+                    + TFSAdapterManager.getBatchMaxSize()
+                    + " change requests per batch").build();
+        }
+        
+        List<String> workItemIds = new ArrayList<>(ecrs.length);
+        for (EnterpriseChangeRequest ecr : ecrs) {
+            workItemIds.add(getWorkItemId(ecr));
+        }
+        AsyncUpdateQueue queue = AsyncUpdateQueue.getInstance();
+        if (queue != null) {
+            return Response.ok(submitAll(queue, workItemIds, ecrs).toString())
+                    .build();
+        }
+        List<BatchUpdate.Result> results = BatchUpdate.update(workItemIds,
+                Arrays.asList(ecrs), httpServletRequest);
+        
+        JSONArray json = new JSONArray();
+        for (BatchUpdate.Result result : results) {
+            Map<String, Object> item = new JSONObject();
+            item.put("workitemId", result.getWorkItemId());
+            item.put("status", result.getStatus());
+            item.put("report", result.getReport());
+            if (result.getRevision() >= 0) {
+                item.put("etag", TFSChangeRequestFactory.getEntityTag(
+                        result.getWorkItemId(), result.getRevision())
+                        .toString());
+            }
+            json.add(item);
+        }
+        return Response.ok(json.toString()).build();
+    }
+    
+    /**
+     * The state of an update queued by a PUT, as JSON with the workitem id,
+     * the state (queued or done) and, when done, the status the PUT would
+     * have returned, the report and the ETag after the update.
+     * 
+     * @param updateId
+     * @return
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("updates/{updateId}")
+    @SuppressWarnings("unchecked")
+    public Response getUpdateStatus(
+            @PathParam("updateId") final String updateId) {
+        AsyncUpdateQueue queue = AsyncUpdateQueue.getInstance();
+        AsyncUpdateQueue.Status status = null;
+        try {
+            status = queue != null ? queue.getStatus(Long.parseLong(updateId))
+                    : null;
+        } catch (NumberFormatException e) {
+            // not found
+        }
+        if (status == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+        Map<String, Object> json = new JSONObject();
+        json.put("id", status.getId());
+        json.put("workitemId", status.getWorkItemId());
+        json.put("state", status.isDone() ? "done" : "queued");
+        if (status.isDone()) {
+            json.put("status", status.getStatus());
+            json.put("report", status.getReport());
+            if (status.getRevision() >= 0) {
+                json.put("etag", TFSChangeRequestFactory.getEntityTag(
+                        status.getWorkItemId(), status.getRevision())
+                        .toString());
+            }
+        }
+        return Response.ok(json.toString()).build();
+    }
+    
+    // Queues the change requests of a batch, in order
+    @SuppressWarnings("unchecked")
+    private JSONArray submitAll(AsyncUpdateQueue queue,
+            List<String> workItemIds, EnterpriseChangeRequest[] ecrs) {
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < ecrs.length; i++) {
+            String workItemId = workItemIds.get(i);
+            Map<String, Object> item = new JSONObject();
+            item.put("workitemId", workItemId);
+            if (workItemId == null) {
+                item.put("status", 400);
+                item.put("report", "No workitem id for change request");
+                json.add(item);
+                continue;
+            }
+            try {
+                long updateId = queue.submit(workItemId, ecrs[i], null);
+                item.put("status", Response.Status.ACCEPTED.getStatusCode());
+                item.put("update", getUpdateStatusUri(updateId).toString());
+            } catch (IllegalStateException e) {
+                item.put("status",
+                        Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+                item.put("report", e.getMessage());
+            } catch (IOException e) {
+                item.put("status",
+                        Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+                item.put("report", e.getMessage());
+            }
+            json.add(item);
+        }
+        return json;
+    }
+
+    // The status of a queued update is a sibling of the workitems
+    private URI getUpdateStatusUri(long updateId) {
+        return uriInfo.getAbsolutePath().resolve("updates/" + updateId);
+    }
+
+    // The workitem id is the last segment of the rdf:about of the change
+    // request, as set by TFSWorkItemFactory
+    private static String getWorkItemId(EnterpriseChangeRequest ecr) {
+        if (ecr.getAbout() == null) {
+            return null;
+        }
+        String path = ecr.getAbout().getPath();
+        if (path == null) {
+            return null;
+        }
+        String workItemId = path.substring(path.lastIndexOf('/') + 1);
+        return workItemId.isEmpty() ? null : workItemId;
+    }
+    
     
     @OslcDialog
     (
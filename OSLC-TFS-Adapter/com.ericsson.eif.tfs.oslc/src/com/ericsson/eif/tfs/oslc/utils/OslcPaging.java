@@ -0,0 +1,168 @@
+package com.ericsson.eif.tfs.oslc.utils;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+
+import org.eclipse.lyo.oslc4j.core.OSLC4JConstants;
+
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+
+/**
+ * Handling of the OSLC paging parameters (oslc.paging, oslc.pageSize and
+ * page) for the change request collections. A collection is paged only if
+ * the client asks for it with oslc.paging=true, so that a single request
+ * then never fetches more than one page of workitems from TFS. Otherwise the
+ * whole collection is returned. The page size defaults to tfs_page_size in
+ * adapter.properties and a requested oslc.pageSize is capped by
+ * tfs_max_page_size.
+ */
+public class OslcPaging {
+
+    public static final String PAGING = "oslc.paging";
+    public static final String PAGE_SIZE = "oslc.pageSize";
+    public static final String PAGE = "page";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_MAX_PAGE_SIZE = 1000;
+
+    private final int page;
+    private final int pageSize;
+    private boolean hasNextPage;
+
+    /**
+     * Create from the query parameters
+     * 
+     * @param pagingString
+     *            the oslc.paging, the collection is paged if "true"
+     * @param pageString
+     *            the zero based page number
+     * @param pageSizeString
+     *            the oslc.pageSize
+     */
+    public OslcPaging(String pagingString, String pageString,
+            String pageSizeString) {
+        this(pagingString, pageString, pageSizeString, TFSAdapterManager
+                .getMaxPageSize());
+    }
+
+    /**
+     * Create from the query parameters, with another cap on the page size
+     * than tfs_max_page_size
+     * 
+     * @param pagingString
+     *            the oslc.paging, the collection is paged if "true"
+     * @param pageString
+     *            the zero based page number
+     * @param pageSizeString
+     *            the oslc.pageSize
+     * @param maxPageSize
+     */
+    public OslcPaging(String pagingString, String pageString,
+            String pageSizeString, int maxPageSize) {
+        if ("true".equalsIgnoreCase(pagingString)) {
+            page = parse(PAGE, pageString, 0, 0);
+            pageSize = Math.min(parse(PAGE_SIZE, pageSizeString,
+                    TFSAdapterManager.getPageSize(), 1), maxPageSize);
+        } else {
+            // the whole collection as one page
+            page = 0;
+            pageSize = Integer.MAX_VALUE;
+        }
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean hasNextPage() {
+        return hasNextPage;
+    }
+
+    public void setHasNextPage(boolean hasNextPage) {
+        this.hasNextPage = hasNextPage;
+    }
+
+    /**
+     * If there is a next page, set the request attribute used by OSLC4J to
+     * add the oslc:nextPage in the response info of the collection. The URI
+     * of the next page keeps all other query parameters of the request, e.g.
+     * oslc.where.
+     * 
+     * @param request
+     * @param uriInfo
+     */
+    public void setNextPage(HttpServletRequest request, UriInfo uriInfo) {
+        String nextPage = getNextPage(uriInfo);
+        if (nextPage != null) {
+            request.setAttribute(OSLC4JConstants.OSLC4J_NEXT_PAGE, nextPage);
+        }
+    }
+
+    /**
+     * The URI of the next page, keeping all other query parameters of the
+     * request
+     * 
+     * @param uriInfo
+     * @return the URI, or <b>null</b> if there is no next page
+     */
+    public String getNextPage(UriInfo uriInfo) {
+        if (!hasNextPage) {
+            return null;
+        }
+        return uriInfo.getRequestUriBuilder()
+                .replaceQueryParam(PAGING, "true")
+                .replaceQueryParam(PAGE, page + 1).build().toString();
+    }
+
+    private static int parse(String name, String value, int defaultValue,
+            int min) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue >= min) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new WebApplicationException(Response
+                .status(Status.BAD_REQUEST)
+                .entity("Invalid value for " + name + ": " + value).build());
+    }
+}
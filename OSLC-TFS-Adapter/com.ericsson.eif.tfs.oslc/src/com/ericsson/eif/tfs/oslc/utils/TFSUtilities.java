@@ -67,13 +67,19 @@ public class TFSUtilities {
     /**
      * Get a Bug that is linked to a TR with trId. Should return 0..1
      * work items. Note that only ID is retrieved, so caller need to
-     * fetch more fields if needed.
+     * fetch more fields if needed. Once the {@link TrLinkIndex} is seeded
+     * the Bug is looked up there instead of querying TFS.
      * 
      * @param wic
      * @param trId
      * @return
      */
     public static WorkItem getBugForTR(WorkItemClient wic, String trId) {
+        TrLinkIndex index = TrLinkIndex.getInstance();
+        if (index != null && index.isSeeded()) {
+            return getIndexedBugForTR(wic, index, trId.trim());
+        }
+        
     	String query = 
                 "Select ID from WorkItems where (Ericsson.Defect.Link contains '" + 
                 trId + "')";
@@ -89,6 +95,31 @@ public class TFSUtilities {
         return null;
     }
     
+    // Verifies the Bugs indexed for the TR, dropping those deleted or linked
+    // to another TR since the last reconcile
+    private static WorkItem getIndexedBugForTR(WorkItemClient wic,
+            TrLinkIndex index, String trId) {
+        WorkItem bug = null;
+        int found = 0;
+        for (int bugId : index.getBugs(trId)) {
+            WorkItem workItem = wic.getWorkItemByID(bugId);
+            String trLink = workItem != null ? TrLinkIndex.getTrLink(workItem)
+                    : null;
+            if (!trId.equals(trLink)) {
+                index.update(bugId, trLink);
+                continue;
+            }
+            bug = workItem;
+            found++;
+        }
+        if (found > 1) {
+            logger.error("Found > 1 Bugs connected to TR with id: " + trId
+                    + ". Should be 0..1");
+            return null;
+        }
+        return bug;
+    }
+
     public static WorkItem getWorkItem(WorkItemClient wic, String wiID) {
         return wic.getWorkItemByID(Integer.parseInt(wiID));
     }
@@ -27,8 +27,18 @@ package com.ericsson.eif.tfs.oslc.utils;
 * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
 
+import com.ericsson.eif.tfs.oslc.TFSAdapterManager;
+import com.ericsson.eif.tfs.oslc.TFSConnector;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.microsoft.tfs.core.TFSTeamProjectCollection;
 import com.microsoft.tfs.core.clients.webservices.IIdentityManagementService;
 import com.microsoft.tfs.core.clients.webservices.IdentityManagementService;
@@ -37,26 +47,107 @@ import com.microsoft.tfs.core.clients.webservices.MembershipQuery;
 import com.microsoft.tfs.core.clients.webservices.ReadIdentityOptions;
 import com.microsoft.tfs.core.clients.webservices.TeamFoundationIdentity;
 
+/**
+ * Looks up TFS users by signum (account name) or display name. Results are
+ * cached in both directions, so looking up a signum also caches the signum
+ * for the display name and vice versa. Users not found, e.g. groups or
+ * unknown signums, are cached for a shorter time. Failed lookups are not
+ * cached. The number of cached names is bounded, the least recently used are
+ * evicted first.
+ * <p>
+ * Use the shared instance, see {@link #getInstance()}.
+ */
 public class TfsUserLookup {
 
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_TTL = 3600;
+    public static final int DEFAULT_CACHE_NEGATIVE_TTL = 300;
+
+    private static TfsUserLookup instance;
+
     private final IIdentityManagementService ims;
     private Logger logger = Logger.getLogger(TfsUserLookup.class);
 
+    /**
+     * A cached name, null if no user was found
+     */
+    private static class Entry {
+        private final String name;
+        private final long expires;
+
+        Entry(String name, long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+
+    // signum -> display name and display name -> signum
+    private final Cache<String, Entry> userNames;
+    private final Cache<String, Entry> signums;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final boolean prefetch;
+
+    /**
+     * Gets the lookup shared by all requests, configured from the adapter
+     * properties
+     * 
+     * @return
+     */
+    public static synchronized TfsUserLookup getInstance() {
+        if (instance == null) {
+            instance = new TfsUserLookup(TFSConnector.getTpc());
+        }
+        return instance;
+    }
+
     public TfsUserLookup(TFSTeamProjectCollection tpc) {
-        ims = new IdentityManagementService(tpc);
+        this(new IdentityManagementService(tpc),
+                TFSAdapterManager.getUserCacheSize(),
+                TFSAdapterManager.getUserCacheTtl(),
+                TFSAdapterManager.getUserCacheNegativeTtl());
+    }
+
+    /**
+     * @param ims
+     * @param size
+     *            the max number of names to keep per direction, 0 disables
+     *            the cache
+     * @param ttl
+     *            seconds to keep a found user
+     * @param negativeTtl
+     *            seconds to keep a user not found
+     */
+    public TfsUserLookup(IIdentityManagementService ims, int size, int ttl,
+            int negativeTtl) {
+        this.ims = ims;
+        userNames = CacheBuilder.newBuilder().maximumSize(size).build();
+        signums = CacheBuilder.newBuilder().maximumSize(size).build();
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttl);
+        negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtl);
+        // prefetched users are only of use if found users are cached
+        prefetch = size > 0 && ttl > 0;
     }
 
     public String getUserName(String signum) {
         if (signum.isEmpty()) {
             return null; // no signum -> null user
         }
+        Entry entry = getCached(userNames, signum);
+        if (entry != null) {
+            return entry.name;
+        }
         try {
             TeamFoundationIdentity tfsUser = ims.readIdentity(
                     IdentitySearchFactor.ACCOUNT_NAME, signum,
                     MembershipQuery.NONE, ReadIdentityOptions.NONE);
             if (tfsUser != null) {
+                cache(tfsUser);
                 return tfsUser.getDisplayName();
             }
+            cache(userNames, signum, null);
         } catch (Exception e) {
             logger.error("Exception while looking up display name for: " + signum, e);
         }
@@ -67,6 +158,10 @@ public class TfsUserLookup {
         if (displayName == null || displayName.isEmpty()) {
             return null; // no name -> null signum
         }
+        Entry entry = getCached(signums, displayName);
+        if (entry != null) {
+            return entry.name;
+        }
         try {
             TeamFoundationIdentity tfsUser = ims.readIdentity(
                     IdentitySearchFactor.DISPLAY_NAME, 
@@ -74,13 +169,122 @@ public class TfsUserLookup {
                     MembershipQuery.NONE, 
                     ReadIdentityOptions.NONE);
             if (tfsUser != null) {
-                String qualifiedSignum = tfsUser.getUniqueName();
-                // Strip of the domain name:
-                return qualifiedSignum.substring(qualifiedSignum.indexOf("\\") + 1);
+                return cache(tfsUser);
             }
+            cache(signums, displayName, null);
         } catch (Exception e) {
             logger.error("Exception while looking up signum for: " + displayName, e);
         }
         return null;
     }
+
+    /**
+     * Looks up the signums of the display names that are not cached with a
+     * single call to TFS and caches them, so that {@link #getSignum(String)}
+     * for any of the names is served from the cache. Used before mapping the
+     * owners of a page of workitems. Names shared by more than one user are
+     * left to {@link #getSignum(String)}. Does nothing unless found users are
+     * cached, i.e. the cache size and ttl are both above 0.
+     * 
+     * @param displayNames
+     */
+    public void prefetchSignums(Collection<String> displayNames) {
+        if (!prefetch) {
+            return;
+        }
+        Set<String> missing = new LinkedHashSet<>();
+        for (String displayName : displayNames) {
+            if (displayName != null && !displayName.isEmpty()
+                    && !isCached(signums, displayName)) {
+                missing.add(displayName);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        String[] names = missing.toArray(new String[missing.size()]);
+        try {
+            TeamFoundationIdentity[][] tfsUsers = ims.readIdentities(
+                    IdentitySearchFactor.DISPLAY_NAME, names,
+                    MembershipQuery.NONE, ReadIdentityOptions.NONE);
+            for (int i = 0; i < names.length; i++) {
+                TeamFoundationIdentity[] found = tfsUsers[i];
+                if (found == null || found.length == 0 || found[0] == null) {
+                    cache(signums, names[i], null);
+                } else if (found.length == 1) {
+                    cache(found[0]);
+                }
+            }
+            logger.debug("Prefetched signums for " + names.length + " names");
+        } catch (Exception e) {
+            logger.error("Exception while looking up signums for "
+                    + names.length + " names", e);
+        }
+    }
+
+    /**
+     * Drops the names cached by the shared instance, if created. Called when
+     * the mapping files are reloaded.
+     */
+    public static synchronized void invalidateCache() {
+        if (instance != null) {
+            instance.invalidateAll();
+        }
+    }
+
+    public void invalidateAll() {
+        userNames.invalidateAll();
+        signums.invalidateAll();
+    }
+
+    private static String getSignum(TeamFoundationIdentity tfsUser) {
+        String qualifiedSignum = tfsUser.getUniqueName();
+        // Strip of the domain name:
+        return qualifiedSignum.substring(qualifiedSignum.indexOf("\\") + 1);
+    }
+
+    // Caches a found user in both directions, returns the signum
+    private String cache(TeamFoundationIdentity tfsUser) {
+        String signum = getSignum(tfsUser);
+        String displayName = tfsUser.getDisplayName();
+        cache(userNames, signum, displayName);
+        if (displayName != null) {
+            cache(signums, displayName, signum);
+        }
+        return signum;
+    }
+
+    private void cache(Cache<String, Entry> cache, String key, String name) {
+        long ttl = name != null ? ttlMillis : negativeTtlMillis;
+        if (ttl > 0) {
+            cache.put(key, new Entry(name, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    private Entry getCached(Cache<String, Entry> cache, String key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis()) {
+                hit();
+                return entry;
+            }
+            cache.invalidate(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private boolean isCached(Cache<String, Entry> cache, String key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry != null && entry.expires > System.currentTimeMillis();
+    }
+
+    private void hit() {
+        long hitCount = hits.incrementAndGet();
+        if (logger.isDebugEnabled() && hitCount % 1000 == 0) {
+            logger.debug("User cache: " + hitCount + " hits, " + misses.get()
+                    + " misses, " + userNames.size() + " + " + signums.size()
+                    + " cached");
+        }
+    }
 }
@@ -0,0 +1,229 @@
+package com.ericsson.eif.tfs.oslc.utils;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.ericsson.eif.tfs.oslc.TFSConnector;
+import com.ericsson.eif.tfs.oslc.mapping.TFSMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.tfs.core.clients.workitem.CoreFieldReferenceNames;
+import com.microsoft.tfs.core.clients.workitem.WorkItem;
+import com.microsoft.tfs.core.clients.workitem.WorkItemClient;
+import com.microsoft.tfs.core.clients.workitem.fields.FieldCollection;
+import com.microsoft.tfs.core.clients.workitem.query.WorkItemCollection;
+
+/**
+ * Index from TR id to the Bug(s) linked to it by the
+ * {@link TFSMapper#ERICSSON_DEFECT_LINK_FIELD}, so that the Bug of a TR is
+ * found without a "contains" query in TFS.
+ * <p>
+ * The index is seeded with one query for all linked workitems when started,
+ * and updated with each workitem saved by the adapter. Links set or cleared
+ * by others are picked up by querying the workitems changed since the last
+ * reconcile, every reconcile interval. Deleted Bugs are not returned by that
+ * query, so each hit is verified and dropped from the index when the Bug is
+ * gone or no longer linked to the TR. Until seeded,
+ * {@link TFSUtilities#getBugForTR(WorkItemClient, String)} queries TFS.
+ */
+public class TrLinkIndex {
+
+    static Logger logger = Logger.getLogger(TrLinkIndex.class);
+
+    public static final int DEFAULT_RECONCILE_INTERVAL = 300;
+
+    // Workitems changed this long before the last reconcile are queried
+    // again, allowing for clock differences to the TFS server
+    private static final long RECONCILE_OVERLAP = 60000;
+
+    private static TrLinkIndex instance;
+
+    // TR id -> Bug ids, should be 0..1
+    private final Map<String, Set<Integer>> bugsByTr = new HashMap<>();
+    // Bug id -> TR id
+    private final Map<Integer, String> trByBug = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean seeded;
+    private long reconciled;
+
+    private TrLinkIndex(int interval) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("tr-link-index").build());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!seeded) {
+                        seed();
+                    } else {
+                        reconcile();
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Failed to update the TR link index", e);
+                }
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts the index, seeding it in the background
+     * 
+     * @param interval
+     *            seconds between the reconciles
+     */
+    public static synchronized void start(int interval) {
+        shutdown();
+        instance = new TrLinkIndex(interval);
+    }
+
+    /**
+     * @return the index, or null if not started
+     */
+    public static synchronized TrLinkIndex getInstance() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.scheduler.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Updates the index with the TR link of a workitem just saved, if
+     * started
+     * 
+     * @param workItem
+     */
+    public static void update(WorkItem workItem) {
+        TrLinkIndex index = getInstance();
+        if (index != null) {
+            index.update(workItem.getID(), getTrLink(workItem));
+        }
+    }
+
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * @param trId
+     * @return the ids of the Bugs linked to the TR, should be 0..1. Bugs
+     *         deleted or relinked since the last reconcile are still listed,
+     *         see {@link TFSUtilities#getBugForTR(WorkItemClient, String)}.
+     */
+    public synchronized List<Integer> getBugs(String trId) {
+        Set<Integer> bugIds = bugsByTr.get(trId);
+        return bugIds != null ? new ArrayList<Integer>(bugIds)
+                : Collections.<Integer> emptyList();
+    }
+
+    synchronized void update(int bugId, String trId) {
+        String oldTrId = trId == null || trId.isEmpty() ? trByBug.remove(bugId)
+                : trByBug.put(bugId, trId);
+        if (oldTrId != null && !oldTrId.equals(trId)) {
+            Set<Integer> bugIds = bugsByTr.get(oldTrId);
+            bugIds.remove(bugId);
+            if (bugIds.isEmpty()) {
+                bugsByTr.remove(oldTrId);
+            }
+        }
+        if (trId != null && !trId.isEmpty()) {
+            Set<Integer> bugIds = bugsByTr.get(trId);
+            if (bugIds == null) {
+                bugIds = new LinkedHashSet<>();
+                bugsByTr.put(trId, bugIds);
+            }
+            bugIds.add(bugId);
+        }
+    }
+
+    private void seed() {
+        long start = System.currentTimeMillis();
+        int count = query("[" + TFSMapper.ERICSSON_DEFECT_LINK_FIELD
+                + "] <> ''");
+        reconciled = start;
+        seeded = true;
+        logger.info("TR link index seeded with " + count + " workitems in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void reconcile() {
+        long start = System.currentTimeMillis();
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String since = format.format(new Date(reconciled - RECONCILE_OVERLAP));
+        int count = query("[" + CoreFieldReferenceNames.CHANGED_DATE
+                + "] >= '" + since + "'");
+        reconciled = start;
+        logger.debug("TR link index reconciled with " + count
+                + " workitems changed since " + since);
+    }
+
+    // Updates the index with the workitems matching the condition
+    private int query(String where) {
+        WorkItemClient wic = TFSConnector.getWorkItemClient();
+        String wiqlQuery = "Select " + CoreFieldReferenceNames.ID + ", "
+                + TFSMapper.ERICSSON_DEFECT_LINK_FIELD
+                + " from WorkItems where " + where;
+        WorkItemCollection workItems = wic.query(wiqlQuery, null, false);
+        for (int i = 0; i < workItems.size(); i++) {
+            WorkItem workItem = workItems.getWorkItem(i);
+            update(workItem.getID(), getTrLink(workItem));
+        }
+        return workItems.size();
+    }
+
+    static String getTrLink(WorkItem workItem) {
+        FieldCollection fields = workItem.getFields();
+        if (!fields.contains(TFSMapper.ERICSSON_DEFECT_LINK_FIELD)) {
+            return null;
+        }
+        Object value = fields.getField(TFSMapper.ERICSSON_DEFECT_LINK_FIELD)
+                .getValue();
+        return value != null ? value.toString().trim() : null;
+    }
+}
@@ -34,6 +34,7 @@ import java.util.List;
 public class ValidationMessages {
     
     List<String> messages = new ArrayList<>();
+    int revision = -1;
 
     public void addMessage(String message) {
         messages.add(message);
@@ -43,6 +44,17 @@ public class ValidationMessages {
         return messages;
     }
     
+    /**
+     * The revision of the workitem as saved by the update, -1 if not known
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    public void setRevision(int revision) {
+        this.revision = revision;
+    }
+
     public Iterator<String> iterator() {
         return messages.iterator();
     }
@@ -0,0 +1,126 @@
+package com.ericsson.eif.tfs.oslc.factories;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ericsson.eif.tfs.oslc.factories.WorkItemHydrator.WorkItemSource;
+import com.microsoft.tfs.core.clients.workitem.WorkItem;
+
+/**
+ * Compares getting the workitems one by one with getting them in batches,
+ * using a stand-in for TFS that sleeps a fixed time per round trip.
+ *
+ * Arguments: [noOfWorkItems] [latencyMs] [batchSize] [parallelism]
+ */
+public class WorkItemHydrationBenchmark {
+
+    public static void main(String[] args) {
+        int noOfWorkItems = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int latency = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        int[] ids = new int[noOfWorkItems];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + 1;
+        }
+
+        run("one by one", ids, latency, 1, Executors.newSingleThreadExecutor());
+        run("batched", ids, latency, batchSize,
+                Executors.newFixedThreadPool(parallelism));
+    }
+
+    private static void run(String name, int[] ids, int latency,
+            int batchSize, ExecutorService executor) {
+        LatencySource source = new LatencySource(latency);
+        WorkItemHydrator hydrator = new WorkItemHydrator(source, batchSize,
+                executor);
+        long start = System.nanoTime();
+        List<WorkItem> workItems = hydrator.getWorkItems(ids);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        for (int i = 0; i < ids.length; i++) {
+            if (workItems.get(i).getID() != ids[i]) {
+                throw new IllegalStateException("Order not preserved at " + i);
+            }
+        }
+        System.out.println(name + ": " + workItems.size() + " workitems, "
+                + source.roundTrips.get() + " round trips, " + elapsed + " ms");
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stand-in for the work item client - each call is one round trip
+     */
+    private static class LatencySource implements WorkItemSource {
+        private final int latency;
+        private final AtomicInteger roundTrips = new AtomicInteger();
+
+        LatencySource(int latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public List<WorkItem> getWorkItems(int[] ids) {
+            roundTrips.incrementAndGet();
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<WorkItem> workItems = new ArrayList<>();
+            // return in reverse to check that the order is restored
+            for (int i = ids.length - 1; i >= 0; i--) {
+                workItems.add(newWorkItem(ids[i]));
+            }
+            return workItems;
+        }
+    }
+
+    private static WorkItem newWorkItem(final int id) {
+        return (WorkItem) Proxy.newProxyInstance(
+                WorkItem.class.getClassLoader(),
+                new Class<?>[] { WorkItem.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getID")) {
+                            return id;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
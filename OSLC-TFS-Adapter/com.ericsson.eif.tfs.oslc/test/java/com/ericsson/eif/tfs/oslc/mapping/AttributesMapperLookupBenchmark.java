@@ -0,0 +1,132 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.ericsson.eif.tfs.oslc.mapping.BiDirectionalMap.Direction;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Compares the cost of looking up the forward properties of all ECM
+ * properties in attribute_mapping.xml, filtering a live multimap on each
+ * lookup as was done before, against the compiled plan of the
+ * {@link AttributesMapper}.
+ *
+ * Arguments: [rounds] [attributeMappingFile]
+ */
+public class AttributesMapperLookupBenchmark {
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        File mappingFile = args.length > 1 ? new File(args[1]) : new File(".."
+                + File.separator + "com.ericsson.eif.tfs.common"
+                + File.separator + "attribute_mapping.xml");
+
+        AttributesMapper am = AttributesMapper.getInstance();
+        am.setTestAttributesMappingFile(mappingFile.getAbsolutePath());
+        am.load();
+
+        final Multimap<String, Property> forwardMap = HashMultimap.create();
+        Iterator<Entry<String, Property>> iterator = am.getForwardIterator();
+        while (iterator.hasNext()) {
+            Entry<String, Property> entry = iterator.next();
+            forwardMap.put(entry.getKey(), entry.getValue());
+        }
+        List<String> keys = new ArrayList<>(forwardMap.keySet());
+
+        Lookup multimap = new Lookup() {
+            @Override
+            public Collection<Property> get(String key) {
+                if (forwardMap.containsKey(key)) {
+                    Collection<Property> properties = forwardMap.get(key);
+                    for (Iterator<Property> it = properties.iterator(); it
+                            .hasNext();) {
+                        if (it.next().getDirection().equals(Direction.INVERSE)) {
+                            it.remove();
+                        }
+                    }
+                    return properties;
+                }
+                return null;
+            }
+        };
+        final AttributesMapper mapper = am;
+        Lookup plan = new Lookup() {
+            @Override
+            public Collection<Property> get(String key) {
+                return mapper.getForwardProperties(key);
+            }
+        };
+
+        // warm up both before measuring
+        run(multimap, keys, rounds / 10);
+        run(plan, keys, rounds / 10);
+
+        report("filtered multimap", run(multimap, keys, rounds), keys, rounds);
+        report("compiled plan", run(plan, keys, rounds), keys, rounds);
+    }
+
+    private interface Lookup {
+        Collection<Property> get(String key);
+    }
+
+    private static long run(Lookup lookup, List<String> keys, int rounds) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String key : keys) {
+                Collection<Property> properties = lookup.get(key);
+                if (properties != null) {
+                    found += properties.size();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found < 0) {
+            System.out.println(found); // keep the result alive
+        }
+        return elapsed;
+    }
+
+    private static void report(String name, long elapsed, List<String> keys,
+            int rounds) {
+        long lookups = (long) keys.size() * rounds;
+        System.out.println(name + ": " + lookups + " lookups, "
+                + (elapsed / 1000000) + " ms, "
+                + String.format("%.1f", (double) elapsed / lookups)
+                + " ns/lookup");
+    }
+}
@@ -0,0 +1,304 @@
+package com.ericsson.eif.tfs.oslc.mapping;
+
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.ericsson.eif.tfs.oslc.mapping.BiDirectionalMap.Direction;
+
+/**
+ * Compares loading generated attribute and product mapping files by
+ * building a DOM and selecting the nodes with XPath, as was done before,
+ * against the streaming loaders of {@link AttributesMapper} and
+ * {@link ProductMapper}, and against loading them from a
+ * {@link MappingSnapshot}. Reports the time and the memory allocated per
+ * load.
+ *
+ * Arguments: [noOfMaps] [noOfProducts] [rounds]
+ */
+public class MappingLoadBenchmark {
+
+    private static final int MAPS_PER_PROPERTY = 500;
+    private static final int PRODUCTS_PER_PROVIDER = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int noOfMaps = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int noOfProducts = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File attributes = writeAttributeMapping(noOfMaps);
+        File products = writeProductMapping(noOfProducts);
+
+        final AttributesMapper attributesMapper = AttributesMapper.getInstance();
+        final ProductMapper productMapper = ProductMapper.getInstance();
+        File snapshot = File.createTempFile("mapping", ".snapshot");
+        snapshot.delete();
+        snapshot.deleteOnExit();
+
+        Loader domAttributes = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                try (InputStream input = new FileInputStream(file)) {
+                    loadAttributesWithDom(input);
+                }
+            }
+        };
+        Loader streamAttributes = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                try (InputStream input = new FileInputStream(file)) {
+                    attributesMapper.load(input, false);
+                }
+            }
+        };
+        Loader snapshotAttributes = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                attributesMapper.addMappingRules(file.getPath(), false);
+            }
+        };
+        Loader domProducts = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                try (InputStream input = new FileInputStream(file)) {
+                    loadProductsWithDom(input);
+                }
+            }
+        };
+        Loader streamProducts = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                try (InputStream input = new FileInputStream(file)) {
+                    productMapper.load(input);
+                }
+            }
+        };
+        Loader snapshotProducts = new Loader() {
+            @Override
+            public void load(File file) throws Exception {
+                productMapper.setTestMappingFile(file.getPath());
+                productMapper.load();
+            }
+        };
+
+        System.out.println(noOfMaps + " <map> entries, " + attributes.length()
+                + " bytes");
+        run("  DOM + XPath", domAttributes, attributes, rounds);
+        run("  StAX", streamAttributes, attributes, rounds);
+        System.out.println(noOfProducts + " <product> entries, "
+                + products.length() + " bytes");
+        run("  DOM + XPath", domProducts, products, rounds);
+        run("  StAX", streamProducts, products, rounds);
+
+        // write the snapshot, and read it as at the next start
+        MappingSnapshot.open(snapshot);
+        snapshotAttributes.load(attributes);
+        snapshotProducts.load(products);
+        MappingSnapshot.saveIfChanged();
+        MappingSnapshot.open(snapshot);
+        System.out.println("Snapshot, " + snapshot.length() + " bytes");
+        run("  attributes", snapshotAttributes, attributes, rounds);
+        run("  products", snapshotProducts, products, rounds);
+    }
+
+    private interface Loader {
+        void load(File file) throws Exception;
+    }
+
+    private static void run(String name, Loader loader, File file, int rounds)
+            throws Exception {
+        // the first load warms up
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i <= rounds; i++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            loader.load(file);
+            long elapsed = System.nanoTime() - start;
+            if (i > 0) {
+                best = Math.min(best, elapsed);
+                allocated = getAllocatedBytes() - allocatedBefore;
+            }
+        }
+        System.out.println(name + ": " + (best / 1000000) + " ms"
+                + (allocated > 0 ? ", " + (allocated / (1024 * 1024))
+                        + " MB allocated" : ""));
+    }
+
+    // Allocated by this thread, if supported by the JVM
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static File writeAttributeMapping(int noOfMaps) throws IOException {
+        File file = File.createTempFile("attribute_mapping", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+            out.println("<mapping>");
+            for (int i = 0; i < noOfMaps; i++) {
+                int property = i / MAPS_PER_PROPERTY;
+                if (i % MAPS_PER_PROPERTY == 0) {
+                    if (i > 0) {
+                        out.println("  </property>");
+                    }
+                    out.println("  <property key=\"ecm:property" + property
+                            + "\" value=\"Generated.Field" + property + "\">");
+                    out.println("    <default inverseValue=\"UNDEF\"/>");
+                }
+                out.println("    <map key=\"KEY" + i + "\" value=\"Value " + i
+                        + "\"" + (i % 10 == 0 ? " forwardWhen=\"Active,Resolved\"" : "")
+                        + "/>");
+            }
+            if (noOfMaps > 0) {
+                out.println("  </property>");
+            }
+            out.println("</mapping>");
+        }
+        return file;
+    }
+
+    private static File writeProductMapping(int noOfProducts) throws IOException {
+        File file = File.createTempFile("product_mapping", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+            out.println("<mapping>");
+            for (int i = 0; i < noOfProducts; i++) {
+                int provider = i / PRODUCTS_PER_PROVIDER;
+                if (i % PRODUCTS_PER_PROVIDER == 0) {
+                    if (i > 0) {
+                        out.println("  </serviceProvider>");
+                    }
+                    out.println("  <serviceProvider name=\"Project " + provider
+                            + "\" collectionName=\"DefaultCollection\">");
+                }
+                out.println("    <product primProdNo=\"CRH 109 " + i
+                        + "\" primRState=\"R1A\" mapTo=\"Release " + i
+                        + "\" team=\"Team " + (i % 7) + "\"/>");
+            }
+            if (noOfProducts > 0) {
+                out.println("  </serviceProvider>");
+            }
+            out.println("</mapping>");
+        }
+        return file;
+    }
+
+    private static Document parse(InputStream input) throws Exception {
+        DocumentBuilderFactory domFactory = DocumentBuilderFactory
+                .newInstance();
+        domFactory.setNamespaceAware(true);
+        return domFactory.newDocumentBuilder().parse(input);
+    }
+
+    // The way the attribute mapping was loaded before
+    private static List<Property> loadAttributesWithDom(InputStream input)
+            throws Exception {
+        Document doc = parse(input);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        NodeList propertyNodes = (NodeList) xpath.evaluate(
+                "//mapping//property", doc, XPathConstants.NODESET);
+        List<Property> properties = new ArrayList<>();
+        for (int i = 0; i < propertyNodes.getLength(); i++) {
+            Element node = (Element) propertyNodes.item(i);
+            Property property = new Property(node.getAttribute("key"),
+                    node.getAttribute("value"), Direction.BIDIRECTIONAL,
+                    false, null, null);
+            NodeList children = node.getChildNodes();
+            for (int j = 0; j < children.getLength(); j++) {
+                Node child = children.item(j);
+                if (child.getNodeName().equals("map")) {
+                    Element map = (Element) child;
+                    String when = map.getAttribute("forwardWhen");
+                    property.addEntry(map.getAttribute("key"),
+                            map.getAttribute("value"),
+                            when.isEmpty() ? Direction.BIDIRECTIONAL
+                                    : Direction.FORWARD,
+                            when.isEmpty() ? null : when, null);
+                } else if (child.getNodeName().equals("default")) {
+                    property.setDefault(null,
+                            ((Element) child).getAttribute("inverseValue"));
+                }
+            }
+            properties.add(property);
+        }
+        return properties;
+    }
+
+    // The way the product mapping was loaded before
+    private static Map<PrimProduct, BackendEntity> loadProductsWithDom(
+            InputStream input) throws Exception {
+        Document doc = parse(input);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        NodeList spNodes = (NodeList) xpath.evaluate(
+                "//mapping//serviceProvider", doc, XPathConstants.NODESET);
+        Map<PrimProduct, BackendEntity> products = new LinkedHashMap<>();
+        for (int i = 0; i < spNodes.getLength(); i++) {
+            NodeList children = spNodes.item(i).getChildNodes();
+            for (int j = 0; j < children.getLength(); j++) {
+                Node child = children.item(j);
+                if (child instanceof Element) {
+                    Element product = (Element) child;
+                    products.put(
+                            new PrimProduct(product.getAttribute("primProdNo"),
+                                    product.getAttribute("primRState")),
+                            new BackendEntity(product.getAttribute("mapTo"),
+                                    product.getAttribute("team")));
+                }
+            }
+        }
+        return products;
+    }
+}
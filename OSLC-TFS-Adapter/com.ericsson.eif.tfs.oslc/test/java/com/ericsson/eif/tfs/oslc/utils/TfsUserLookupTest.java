@@ -0,0 +1,111 @@
+package com.ericsson.eif.tfs.oslc.utils;
+
+/*
+* Copyright (C) 2015 Ericsson AB. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+* 1. Redistributions of source code must retain the above copyright
+*    notice, this list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright
+*    notice, this list of conditions and the following disclaimer
+*    in the documentation and/or other materials provided with the
+*    distribution.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+* "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+* LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+* A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+* OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+* SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+* DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+* THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+* OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.tfs.core.clients.webservices.IIdentityManagementService;
+
+/**
+ * Checks the cache hits, misses and expiry of {@link TfsUserLookup}, using a
+ * stand-in for TFS that finds no users and counts the round trips.
+ */
+public class TfsUserLookupTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        CountingService service = new CountingService();
+        TfsUserLookup lookup = new TfsUserLookup(service.proxy(), 10, 3600, 1);
+
+        // miss
+        check(lookup.getUserName("eabc") == null, "no user for eabc");
+        check(service.calls.get() == 1, "miss looked up in TFS");
+
+        // hit, in both directions kept apart
+        lookup.getUserName("eabc");
+        check(service.calls.get() == 1, "hit served from the cache");
+        lookup.getSignum("Abc Def");
+        check(service.calls.get() == 2, "other direction looked up in TFS");
+
+        // expiry after the negative ttl
+        Thread.sleep(1100);
+        lookup.getUserName("eabc");
+        check(service.calls.get() == 3, "expired entry looked up in TFS");
+
+        // invalidation
+        lookup.getUserName("eabc");
+        check(service.calls.get() == 3, "hit served from the cache");
+        lookup.invalidateAll();
+        lookup.getUserName("eabc");
+        check(service.calls.get() == 4, "invalidated entry looked up in TFS");
+
+        // disabled cache
+        TfsUserLookup disabled = new TfsUserLookup(service.proxy(), 0, 3600, 300);
+        disabled.getUserName("eabc");
+        disabled.getUserName("eabc");
+        check(service.calls.get() == 6, "disabled cache looks up each time");
+
+        // no prefetch unless found users are cached
+        TfsUserLookup negativeOnly = new TfsUserLookup(service.proxy(), 10, 0,
+                300);
+        negativeOnly.prefetchSignums(Arrays.asList("Abc Def", "Ghi Jkl"));
+        check(service.calls.get() == 6, "no prefetch with ttl 0");
+
+        System.out.println("OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + message);
+        }
+    }
+
+    /**
+     * Stand-in for the identity service - finds no users
+     */
+    private static class CountingService implements InvocationHandler {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        IIdentityManagementService proxy() {
+            return (IIdentityManagementService) Proxy.newProxyInstance(
+                    IIdentityManagementService.class.getClassLoader(),
+                    new Class<?>[] { IIdentityManagementService.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().startsWith("readIdentit")) {
+                calls.incrementAndGet();
+            }
+            return null;
+        }
+    }
+}